@@ -1,8 +1,25 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+import textbook.BinaryTree;
+import textbook.EulerTour;
+import textbook.EulerVisitor;
 import textbook.LinkedBinaryTree;
-import textbook.LinkedQueue;
+import textbook.MutableBinaryTree;
+import textbook.PersistentBinaryTree;
 import textbook.Position;
+import textbook.TreeCursor;
+import textbook.TreeWalk;
 
 public class Assignment {
 
@@ -12,6 +29,8 @@ public class Assignment {
 	 * Binary operators are +, -, * (i.e. addition, subtraction, multiplication)
 	 * Anything else is assumed to be a variable or numeric value
 	 * 
+	 * Tokens are separated by one or more whitespace characters
+	 * 
 	 * Example: "+ 2 15" will be a tree with root "+", left child "2" and right
 	 * child "15" i.e. + 2 15
 	 * 
@@ -27,48 +46,170 @@ public class Assignment {
 	 * @throws IllegalArgumentException
 	 *             if expression was not a valid expression
 	 */
-	public static LinkedBinaryTree<String> prefix2tree(String expression) throws IllegalArgumentException {
+	public static LinkedBinaryTree<String> prefix2tree(CharSequence expression) throws IllegalArgumentException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression string was null");
+		}
+		// read the tokens straight out of the expression as the tree is built
+		return prefix2tree(tokens(expression), new ExpressionTree());
+	}
+
+	// the tokens of an expression. As when the expression was split on spaces,
+	// an empty expression is a single empty token, i.e. a one node tree
+	private static Iterator<String> tokens(CharSequence expression){
+		if (expression.length() == 0){
+			return Collections.singletonList("").iterator();
+		}
+		return new PrefixTokenizer(expression);
+	}
+
+	/**
+	 * Convert an arithmetic expression (in prefix notation) read from a Reader,
+	 * to a binary tree, without holding the whole expression in memory. The
+	 * reader is not closed.
+	 * 
+	 * This method runs in O(n) time
+	 * 
+	 * @param expression
+	 *            - a source of an arithmetic expression in prefix notation
+	 * @return BinaryTree representing an expression expressed in prefix
+	 *         notation
+	 * @throws IllegalArgumentException
+	 *             if expression was not a valid expression
+	 * @throws java.io.UncheckedIOException
+	 *             if the reader fails
+	 */
+	public static LinkedBinaryTree<String> prefix2tree(Reader expression) throws IllegalArgumentException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression reader was null");
+		}
+		return prefix2tree(new PrefixTokenizer(expression), new ExpressionTree());
+	}
+
+	/**
+	 * Convert an arithmetic expression (in prefix notation) stored as ASCII
+	 * text in a file, to a binary tree. The file is memory mapped and the
+	 * tokens are read straight from the mapped bytes, so the text of the
+	 * expression is never held on the heap.
+	 * 
+	 * This method runs in O(n) time
+	 * 
+	 * @param file
+	 *            - a file containing an arithmetic expression in prefix
+	 *            notation
+	 * @return BinaryTree representing an expression expressed in prefix
+	 *         notation
+	 * @throws IllegalArgumentException
+	 *             if expression was not a valid expression
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public static LinkedBinaryTree<String> prefix2tree(Path file) throws IllegalArgumentException, IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("Expression file was null");
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return prefix2tree(channel);
+		}
+	}
+
+	/**
+	 * Convert an arithmetic expression (in prefix notation) stored as ASCII
+	 * text in a file, from the current position of the channel to the end of
+	 * the file, to a binary tree. The channel is not closed.
+	 * 
+	 * This method runs in O(n) time
+	 * 
+	 * @param channel
+	 *            - a channel open for reading on a file containing an
+	 *            arithmetic expression in prefix notation
+	 * @return BinaryTree representing an expression expressed in prefix
+	 *         notation
+	 * @throws IllegalArgumentException
+	 *             if expression was not a valid expression
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public static LinkedBinaryTree<String> prefix2tree(FileChannel channel) throws IllegalArgumentException, IOException {
+		if (channel == null) {
+			throw new IllegalArgumentException("Expression channel was null");
+		}
+		try {
+			return prefix2tree(new PrefixTokenizer(channel), new ExpressionTree());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Convert an arithmetic expression (in prefix notation), into the given
+	 * empty tree. This allows the expression to be stored in any kind of tree,
+	 * e.g. an ArrayBinaryTree.
+	 * 
+	 * This method runs in O(n) time
+	 * 
+	 * @param expression
+	 *            - an arithmetic expression in prefix notation
+	 * @param tree
+	 *            - an empty tree to build the expression in
+	 * @return the tree, now representing the expression
+	 * @throws IllegalArgumentException
+	 *             if expression was not a valid expression, or the tree was not
+	 *             empty
+	 */
+	public static <T extends MutableBinaryTree<String>> T prefix2tree(CharSequence expression, T tree) throws IllegalArgumentException {
 		if (expression == null) {
 			throw new IllegalArgumentException("Expression string was null");
 		}
-		// break up the expression string using spaces, into a queue
-		LinkedQueue<String> tokens = new LinkedQueue<String>();
-		for (String token : expression.split(" ")) {
-			tokens.enqueue(token);
+		if (tree == null || !tree.isEmpty()) {
+			throw new IllegalArgumentException("Tree must be empty");
 		}
-		// recursively build the tree
-		return prefix2tree(tokens);
+		return prefix2tree(tokens(expression), tree);
 	}
 
 	/**
-	 * Recursive helper method to build an tree representing an arithmetic
-	 * expression in prefix notation, where the expression has already been
-	 * broken up into a queue of tokens
+	 * Helper method to build an tree representing an arithmetic expression in
+	 * prefix notation, reading the tokens one at a time.
+	 * 
+	 * The tree is built top down without recursion: operators still waiting
+	 * for their right operand are kept on an explicit stack, so the depth of
+	 * the expression is only limited by the heap, not the thread stack.
 	 * 
 	 * @param tokens
 	 * @return
 	 * @throws IllegalArgumentException
 	 *             if expression was not a valid expression
 	 */
-	private static LinkedBinaryTree<String> prefix2tree(LinkedQueue<String> tokens) throws IllegalArgumentException {
-		LinkedBinaryTree<String> tree = new LinkedBinaryTree<String>();
-
-		// use the next element of the queue to build the root
-		if (tokens.isEmpty()) {
+	static <T extends MutableBinaryTree<String>> T prefix2tree(Iterator<String> tokens, T tree) throws IllegalArgumentException {
+		// use the next token to build the root
+		if (!tokens.hasNext()) {
 			throw new IllegalArgumentException("String was not a valid arithmetic expression in prefix notation");
 		}
-		String element = tokens.dequeue();
-		tree.addRoot(element);
+		String element = tokens.next();
+		Position<String> root = tree.addRoot(element);
 
-		// if the element is a binary operation, we need to build the left and
-		// right subtrees
-		if (element.equals("+") || element.equals("-") || element.equals("*")) {
-			LinkedBinaryTree<String> left = prefix2tree(tokens);
-			LinkedBinaryTree<String> right = prefix2tree(tokens);
-			tree.attach(tree.root(), left, right);
+		// the operator whose left operand is the next token (if any)
+		Position<String> open = isOperator(element) ? root : null;
+		// operators which have a left operand, waiting for their right operand
+		Deque<Position<String>> waiting = new ArrayDeque<Position<String>>();
+
+		while (open != null || !waiting.isEmpty()) {
+			if (!tokens.hasNext()) {
+				throw new IllegalArgumentException("String was not a valid arithmetic expression in prefix notation");
+			}
+			element = tokens.next();
+			Position<String> child;
+			if (open != null) {
+				child = tree.addLeft(open, element);
+				waiting.push(open);
+			} else {
+				child = tree.addRight(waiting.pop(), element);
+			}
+			// if the element is a binary operation, its operands come next,
+			// otherwise it's a variable or a value, so it's a leaf (i.e.
+			// nothing more to do)
+			open = isOperator(element) ? child : null;
 		}
-		// otherwise, assume it's a variable or a value, so it's a leaf (i.e.
-		// nothing more to do)
 
 		return tree;
 	}
@@ -81,37 +222,39 @@ public class Assignment {
 	 * @param b
 	 * @return true if the trees have the same structure and values, false otherwise
 	 */
-	public static boolean equals(LinkedBinaryTree<String> a, LinkedBinaryTree<String> b) {
-		return equals(a, b, a.root(), b.root());
+	public static boolean equals(BinaryTree<String> a, BinaryTree<String> b) {
+		//if either of the trees is empty, then they are the same only if they are both empty
+		if (a.isEmpty() || b.isEmpty()) {
+			return a.isEmpty() && b.isEmpty();
+		}
+		return equals(TreeCursor.of(a), TreeCursor.of(b));
 	}
 
 	/**
-	 * Recursive helper method to compare two trees
-	 * @param aTree one of the trees to compare
-	 * @param bTree the other tree to compare
-	 * @param aRoot a position in the first tree
-	 * @param bRoot a position in the second tree (corresponding to a position in the first)
-	 * @return true if the subtrees rooted at the given positions are identical
+	 * Helper method to compare two subtrees, walking both in step. The cursors
+	 * are moved around the subtrees, and are back where they started if it
+	 * returns true.
+	 * @param aRoot a cursor on a node of the first tree
+	 * @param bRoot a cursor on a node of the second tree (corresponding to the node in the first)
+	 * @return true if the subtrees rooted at the cursors are identical
 	 */
-	private static boolean equals(LinkedBinaryTree<String> aTree, LinkedBinaryTree<String> bTree, Position<String> aRoot, Position<String> bRoot) {
-		//if either of the positions is null, then they are the same only if they are both null
-		if(aRoot == null || bRoot == null) {
-			return (aRoot == null) && (bRoot == null);
-		}
-		//first check that the elements stored in the current positions are the same
-		String a = aRoot.getElement();
-		String b = bRoot.getElement();
-		if((a==null && b==null) || a.equals(b)) {
-			//then recursively check if the left subtrees are the same...
-			boolean left = equals(aTree, bTree, aTree.left(aRoot), bTree.left(bRoot));
-			//...and if the right subtrees are the same
-			boolean right = equals(aTree, bTree, aTree.right(aRoot), bTree.right(bRoot));
-			//return true if they both matched
-			return left && right;
-		}
-		else {
-			return false;
+	private static boolean equals(TreeCursor<String> aRoot, TreeCursor<String> bRoot) {
+		TreeWalk<String> aWalk = new TreeWalk<String>(aRoot);
+		TreeWalk<String> bWalk = new TreeWalk<String>(bRoot);
+		while (aWalk.nextPre()) {
+			bWalk.nextPre();
+			//the elements stored at the current nodes must be the same, and so
+			//must the children they have, so that both walks keep in step
+			String a = aRoot.element();
+			String b = bRoot.element();
+			if(!((a==null && b==null) || (a!=null && a.equals(b)))) {
+				return false;
+			}
+			if (aRoot.hasLeft() != bRoot.hasLeft() || aRoot.hasRight() != bRoot.hasRight()) {
+				return false;
+			}
 		}
+		return true;
 	}
 
 
@@ -133,37 +276,53 @@ public class Assignment {
 	 *             if tree was not a valid expression
 	 */
 
-	public static String tree2prefix(LinkedBinaryTree<String> tree) throws IllegalArgumentException {
+	public static String tree2prefix(BinaryTree<String> tree) throws IllegalArgumentException {
 		
-		if (tree == null){
-			throw new IllegalArgumentException();
-		}
-
-		if (isArithmeticExpression(tree) == false){
-			throw new IllegalArgumentException();
+		StringBuilder solution = new StringBuilder(); // String to be return 
+		try {
+			render(tree, solution, false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // a StringBuilder can't fail
 		}
+		return solution.toString();
+	}
 
-		String solution = ""; // String to be return 
-
-		solution = solution + prefixrecurse(tree,tree.root());
-
-		return solution;
+	/**
+	 * Write the prefix notation of a tree (as tree2prefix would return it) to
+	 * any Appendable, e.g. a Writer or a StringBuilder, in a single O(n) pass
+	 * without recursion and without building any intermediate Strings.
+	 * 
+	 * If the tree turns out not to be a valid expression, part of it may
+	 * already have been written.
+	 * 
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void tree2prefix(BinaryTree<String> tree, Appendable out) throws IllegalArgumentException, IOException {
+		render(tree, out, false);
 	}
 
-	private static String prefixrecurse(LinkedBinaryTree<String> tree ,Position<String> p){
-		//pre-order traversal
-		if (p == null){
-			return null;
-		}
-		// position has 0 children base case
-		if (tree.numChildren(p) == 0){
-			return p.getElement();
-		}
-		// position has 2 children recurse in pre-order and add to string
-		if (tree.numChildren(p) == 2 ){
-			return p.getElement() + " " +prefixrecurse(tree,tree.left(p)) + " " +prefixrecurse(tree,tree.right(p));
-		}
-		return "";
+	/**
+	 * Write the prefix notation of a tree to an OutputStream, as UTF-8. The
+	 * stream is flushed but not closed.
+	 * 
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void tree2prefix(BinaryTree<String> tree, OutputStream out) throws IllegalArgumentException, IOException {
+		render(tree, out, false);
 	}
 
 	/**
@@ -189,36 +348,135 @@ public class Assignment {
 	 * @throws IllegalArgumentException
 	 *             if tree was not a valid expression
 	 */
-	public static String tree2infix(LinkedBinaryTree<String> tree) throws IllegalArgumentException {
+	public static String tree2infix(BinaryTree<String> tree) throws IllegalArgumentException {
 		
-		if (tree == null){
+		StringBuilder solution = new StringBuilder(); // String to be return 
+		try {
+			render(tree, solution, true);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // a StringBuilder can't fail
+		}
+		return solution.toString();
+	}
+
+	/**
+	 * Write the infix notation of a tree (as tree2infix would return it) to
+	 * any Appendable, e.g. a Writer or a StringBuilder, in a single O(n) pass
+	 * without recursion and without building any intermediate Strings.
+	 * 
+	 * If the tree turns out not to be a valid expression, part of it may
+	 * already have been written.
+	 * 
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void tree2infix(BinaryTree<String> tree, Appendable out) throws IllegalArgumentException, IOException {
+		render(tree, out, true);
+	}
+
+	/**
+	 * Write the infix notation of a tree to an OutputStream, as UTF-8. The
+	 * stream is flushed but not closed.
+	 * 
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void tree2infix(BinaryTree<String> tree, OutputStream out) throws IllegalArgumentException, IOException {
+		render(tree, out, true);
+	}
+
+	private static void render(BinaryTree<String> tree, OutputStream out, boolean infix) throws IOException {
+		if (out == null){
 			throw new IllegalArgumentException();
 		}
-		if (isArithmeticExpression(tree) == false){
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		render(tree, writer, infix);
+		writer.flush();
+	}
+
+	private static void render(BinaryTree<String> tree, Appendable out, boolean infix) throws IOException {
+		if (tree == null || out == null){
 			throw new IllegalArgumentException();
 		}
+		Renderer renderer = new Renderer(out, infix);
+		EulerTour.tour(TreeCursor.of(tree), renderer);
+		if (renderer.failure != null){
+			throw renderer.failure;
+		}
+	}
 
-		String solution = ""; // String to be return 
+	// checks each node when it is first reached. Operators are written on
+	// their PRE visit in prefix and their IN visit in infix. The visits can't
+	// throw an IOException, so the first one ends the tour and is kept for
+	// render to throw
+	private static final class Renderer implements EulerVisitor<String> {
+		private final Appendable out;
+		private final boolean infix;
+		private IOException failure;
+
+		Renderer(Appendable out, boolean infix){
+			this.out = out;
+			this.infix = infix;
+		}
 
-		solution = solution + infixrecurse(tree,tree.root());
+		public boolean onPre(TreeCursor<String> p){
+			int children = p.numChildren();
+			String element = p.element();
+			// operators have two children, numbers and variables have none
+			if (children == 1 || (children == 0) == ExpressionTree.term(p).isOperator()){
+				throw new IllegalArgumentException();
+			}
+			if (children == 0){
+				return write(element);
+			}
+			return infix ? write('(') : write(element) && write(' ');
+		}
 
-		return solution;
+		public boolean onIn(TreeCursor<String> p){
+			if (p.numChildren() == 0){
+				return true;
+			}
+			return infix ? write(p.element()) : write(' ');
+		}
 
-	}
-	private static String infixrecurse(LinkedBinaryTree<String> tree ,Position<String> p){
-		//in-order traversal
-		if (p == null){
-			return null;
+		public boolean onPost(TreeCursor<String> p){
+			if (!infix || p.numChildren() == 0){
+				return true;
+			}
+			return write(')');
 		}
-		// position has 0 children base case
-		if (tree.numChildren(p) == 0){
-			return p.getElement();
+
+		private boolean write(CharSequence text){
+			try {
+				out.append(text);
+				return true;
+			} catch (IOException e) {
+				failure = e;
+				return false;
+			}
 		}
-		// position has 2 children recurse in in-order and add to string
-		if (tree.numChildren(p) == 2 ){
-			return "("+infixrecurse(tree,tree.left(p))+p.getElement() +infixrecurse(tree,tree.right(p))+")";
+
+		private boolean write(char c){
+			try {
+				out.append(c);
+				return true;
+			} catch (IOException e) {
+				failure = e;
+				return false;
+			}
 		}
-		return "";
 	}
 
 	/**
@@ -234,7 +492,7 @@ public class Assignment {
 	 * @throws IllegalArgumentException
 	 *             if tree was not a valid expression
 	 */
-	public static LinkedBinaryTree<String> simplify(LinkedBinaryTree<String> tree) throws IllegalArgumentException {
+	public static <T extends MutableBinaryTree<String>> T simplify(T tree) throws IllegalArgumentException {
 		
 		if (tree == null){
 			throw new IllegalArgumentException();
@@ -246,7 +504,7 @@ public class Assignment {
 		if (tree.numChildren(tree.root()) == 0){
 			return tree;
 		}
-		simplifyhelp(tree,tree.root());
+		EulerTour.tour(TreeCursor.of(tree), new Folder(tree));
 		return tree;
 	}
 	
@@ -254,87 +512,51 @@ public class Assignment {
 	private static Integer toInteger(String s){
 		return Integer.parseInt(s);
 	}
-	// check if string is a number by using regex. Assumed case of O(1).
-	private static boolean checkNum(String s){
-		return s.matches("^-?\\d+$");
-	}
 	// Check if string is an operator. Assumed case of O(1). 
 	private static boolean isOperator(String s){
-		return (s.equals("+") || s.equals("-") || s.equals("*"));
-	}
-	
-	private static boolean isVar(String s){
-		if (checkNum(s) == false && isOperator(s) == false){
-			return true;
-		}
-		return false;
+		return Term.of(s).isOperator();
 	}
-	
-	// Sum the left and right node and simplify the sub tree
-	private static void sumNode(LinkedBinaryTree<String> tree, Position<String> p){
-		Integer left = toInteger(tree.left(p).getElement());
-		Integer right = toInteger(tree.right(p).getElement());
-		String sum = Integer.toString(left+right);
-		tree.set(p, sum);
-		tree.remove(tree.left(p));
-		tree.remove(tree.right(p));
-	}
-	
-	// Sum the left and right node and simplify the sub tree
-	private static void timesNode(LinkedBinaryTree<String> tree, Position<String> p){
-		Integer left = toInteger(tree.left(p).getElement());
-		Integer right = toInteger(tree.right(p).getElement());
-		String sum = Integer.toString(left*right);
-		tree.set(p, sum);
-		tree.remove(tree.left(p));
-		tree.remove(tree.right(p));
-	}
-	
-	// Subtract the left and right node and simplify the sub tree
-	private static void subtractNode(LinkedBinaryTree<String> tree, Position<String> p){
-		Integer left = toInteger(tree.left(p).getElement());
-		Integer right = toInteger(tree.right(p).getElement());
-		String sum = Integer.toString(left-right);
-		tree.set(p, sum);
+
+	// Replace an operator whose children are both numbers by the result, and
+	// remove the children
+	private static void foldNode(MutableBinaryTree<String> tree, Position<String> p, Term operator){
+		int left = toInteger(tree.left(p).getElement());
+		int right = toInteger(tree.right(p).getElement());
+		tree.set(p, Integer.toString(operator.apply(left, right)));
 		tree.remove(tree.left(p));
 		tree.remove(tree.right(p));
 	}
 	
-	//simplify helper recursion method
-	private static void simplifyhelp(LinkedBinaryTree<String> tree, Position<String> p){
-		// should be post-order left right root
-		if (p == null){
-			return;
+	//simplify helper. Each operator is folded on its POST visit, when both
+	//of its subtrees have already been simplified, so looking at its
+	//children tells whether they are numbers now
+	private static final class Folder implements EulerVisitor<String> {
+		private final MutableBinaryTree<String> tree;
+
+		Folder(MutableBinaryTree<String> tree){
+			this.tree = tree;
 		}
-		
-		// if the position is operator 
-		if (isOperator(p.getElement())){
-			
-			// if left node is not number recurse left
-			if (!checkNum(tree.left(p).getElement())){
-				simplifyhelp(tree,tree.left(p));
-			}
-			// if right node is not number recurse right
-			if (!checkNum(tree.right(p).getElement())){
-				simplifyhelp(tree,tree.right(p));
+
+		public int visits(){
+			// should be post-order left right root
+			return EulerTour.POST;
+		}
+
+		public boolean onPost(TreeCursor<String> p){
+			if (p.numChildren() == 0){
+				return true;
 			}
+			p.toLeft();
+			Term left = ExpressionTree.term(p);
+			p.toSibling();
+			Term right = ExpressionTree.term(p);
+			p.toParent();
 			
 			// if both left and right is number, perform operations.
-			if (checkNum(tree.left(p).getElement()) && checkNum(tree.right(p).getElement())){
-
-				if(p.getElement().equals("+")){
-
-					sumNode(tree,p);
-				}
-				if(p.getElement().equals("-")){
-
-					subtractNode(tree,p);
-				}
-				if(p.getElement().equals("*")){
-
-					timesNode(tree,p);
-				}
+			if (left == Term.LITERAL && right == Term.LITERAL){
+				foldNode(tree,p.position(),ExpressionTree.term(p));
 			}
+			return true;
 		}
 	}
 	/**
@@ -358,7 +580,7 @@ public class Assignment {
 	 * @throws IllegalArgumentException
 	 *             if tree was not a valid expression
 	 */
-	public static LinkedBinaryTree<String> simplifyFancy(LinkedBinaryTree<String> tree) throws IllegalArgumentException {
+	public static <T extends MutableBinaryTree<String>> T simplifyFancy(T tree) throws IllegalArgumentException {
 		
 		if (tree == null){
 			throw new IllegalArgumentException();
@@ -369,175 +591,185 @@ public class Assignment {
 		if (tree.numChildren(tree.root()) == 0){
 			return tree;
 		}
-		simplifyFancyhelp(tree,tree.root());
+		EulerTour.tour(TreeCursor.of(tree), new FancyFolder(tree));
 
 		return tree;
 	}
 	
-	// recurse the sub tree and remove nodes in post-order 
-	private static void removeSubtree(LinkedBinaryTree<String> tree, Position<String> p){
-		if (p == null){
-			return;
-		}
+	// applies the rules to each operator on its POST visit
+	private static final class FancyFolder implements EulerVisitor<String> {
+		private final MutableBinaryTree<String> tree;
 
-		removeSubtree(tree,tree.left(p));
-		removeSubtree(tree,tree.right(p));
-		tree.remove(p);
-	}
+		FancyFolder(MutableBinaryTree<String> tree){
+			this.tree = tree;
+		}
 
-	private static void simplifyFancyhelp(LinkedBinaryTree<String> tree, Position<String> p){
-		// post-order left right root
-		if (p == null){
-			return;
+		public int visits(){
+			// post-order left right root
+			return EulerTour.POST;
 		}
 
-		if (isOperator(p.getElement())){
-			
-			if (isOperator(tree.left(p).getElement())){
-				simplifyFancyhelp(tree,tree.left(p));
-			}
-			if (isOperator(tree.right(p).getElement())){
-				simplifyFancyhelp(tree,tree.right(p));
+		public boolean onPost(TreeCursor<String> at){
+			if (at.numChildren() == 2){
+				simplifyFancyNode(tree, at);
 			}
+			return true;
+		}
+	}
 
+	// simplifies the operator at the cursor on its POST visit, when its
+	// subtrees are already simplified. If the operator is replaced by one of its children, the
+	// cursor is moved onto that child, so the walk carries on from there
+	private static void simplifyFancyNode(MutableBinaryTree<String> tree, TreeCursor<String> at){
+		Term kind = ExpressionTree.term(at);
+		at.toLeft();
+		String left = at.element();
+		Term lk = ExpressionTree.term(at);
+		at.toSibling();
+		String right = at.element();
+		Term rk = ExpressionTree.term(at);
+		at.toParent();
+		Position<String> p = at.position();
+
+		// case for all multiplication as defined in the specification
+
+		if(kind == Term.TIMES){
+
+			if (lk == Term.LITERAL && rk == Term.LITERAL){
+				foldNode(tree,p,kind);
+				return;
+			}
+			else if (left.equals("1") && rk.isOperator()){
 
-			// case for all multiplication as defined in the specification
-
-			if(p.getElement().equals("*")){
-				String left = tree.left(p).getElement();
-				String right = tree.right(p).getElement();
-
-				if (checkNum(left) && checkNum(right)){
-					timesNode(tree,p);
-				}
-				else if (left.equals("1") && isOperator(right)){
-
-					tree.remove(tree.left(p));
-					tree.remove(p);
-				}
-				else if (right.equals("1") && isOperator(left)){
+				tree.remove(tree.left(p));
+				at.toRight();
+				tree.remove(p);
+				return;
+			}
+			else if (right.equals("1") && lk.isOperator()){
 
-					tree.remove(tree.right(p));
-					tree.remove(p);
-				}
-				// special case of O(n^2)
-				else if (left.equals("0") && isOperator(right)){ 
-					removeSubtree(tree,tree.right(p));
-					tree.set(p, "0");
-					tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				at.toLeft();
+				tree.remove(p);
+				return;
+			}
+			// the whole subtree goes at once (in O(1) for a LinkedBinaryTree)
+			else if (left.equals("0") && rk.isOperator()){ 
+				tree.removeSubtree(tree.right(p));
+				tree.set(p, "0");
+				tree.remove(tree.left(p));
+				return;
+			}
+			else if (right.equals("0") && lk.isOperator()){
+				tree.removeSubtree(tree.left(p));
+				tree.set(p, "0");
+				tree.remove(tree.right(p));
+				return;
+			}
+			else if (left.equals("1") && rk == Term.VARIABLE){
 
-				}
-				// special case of O(n^2)
-				else if (right.equals("0") && isOperator(left)){
-					removeSubtree(tree,tree.left(p));
-					tree.set(p, "0");
-					tree.remove(tree.right(p));
+				tree.set(p, right);
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
+			else if (right.equals("1") && lk == Term.VARIABLE){
 
-				}
-				else if (left.equals("1") && isVar(right)){
+				tree.set(p, left);
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
+			else if ((left.equals("0") && rk == Term.VARIABLE) || (right.equals("0") && lk == Term.VARIABLE)){
 
-					tree.set(p, right);
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
-				else if (right.equals("1") && isVar(left)){
+				tree.set(p, "0");
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
 
-					tree.set(p, left);
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
-				else if (left.equals("0") && isVar(right)){
+		}
 
-					tree.set(p, "0");
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
-				else if (right.equals("0") && isVar(left)){
+		// case for all addition as defined in the specification
 
-					tree.set(p, "0");
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
+		else if (kind == Term.PLUS){
 
+			if (lk == Term.LITERAL && rk == Term.LITERAL){
+				foldNode(tree,p,kind);
+				return;
 			}
+			else if (left.equals("0") && rk == Term.VARIABLE){
 
-			// case for all addition as defined in the specification
-
-			else if (p.getElement().equals("+")){
-				String left = tree.left(p).getElement();
-				String right = tree.right(p).getElement();
-
-				if (checkNum(left) && checkNum(right)){
-					sumNode(tree,p);
-				}
-				else if (left.equals("0") && isVar(right)){
-
-					tree.set(p, right);
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
+				tree.set(p, right);
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
 
-				else if (right.equals("0") && isVar(left)){
+			else if (right.equals("0") && lk == Term.VARIABLE){
 
-					tree.set(p, left);
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
+				tree.set(p, left);
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
+			else if (right.equals("0") && lk.isOperator()){
 
-				}
-				else if (right.equals("0") && isOperator(left)){
+				tree.remove(tree.right(p));
+				at.toLeft();
+				tree.remove(p);
+				return;
+			}
+			else if (left.equals("0") && rk.isOperator()){
 
-					tree.remove(tree.right(p));
-					tree.remove(p);
+				tree.remove(tree.left(p));
+				at.toRight();
+				tree.remove(p);
+				return;
+			}
 
-				}
-				else if (left.equals("0") && isOperator(right)){
+		}
 
-					tree.remove(tree.left(p));
-					tree.remove(p);
+		// case for all subtraction as defined in the specification
 
-				}
+		else {
 
+			if (lk == Term.LITERAL && rk == Term.LITERAL){
+				foldNode(tree,p,kind);
+				return;
 			}
+			else if (right.equals("0") && lk == Term.VARIABLE){
 
-			// case for all subtraction as defined in the specification
-
-			else if (p.getElement().equals("-")){
-				String left = tree.left(p).getElement();
-				String right = tree.right(p).getElement();
-
-				if (checkNum(left) && checkNum(right)){
-					subtractNode(tree,p);
-				}
-				else if (right.equals("0") && isVar(left)){
-
-					tree.set(p, left);
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-				}
+				tree.set(p, left);
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
+			
+			else if (lk == Term.VARIABLE && rk == Term.VARIABLE && right.equals(left)){
 				
-				else if (right.equals(left) && (isVar(left) && isVar(right))){
-					
-					tree.set(p, "0");
-					tree.remove(tree.left(p));
-					tree.remove(tree.right(p));
-					
-				}
-				// special case of O(n^2)
-				else if (equals(tree, tree, tree.left(p), tree.right(p)) && (isOperator(left) && isOperator(right))){
-					removeSubtree(tree,tree.left(p));
-					removeSubtree(tree,tree.right(p));
-					tree.set(p, "0");
-				}
-				else if (right.equals("0") && isOperator(left)){
-					
-					tree.remove(tree.right(p));
-					tree.remove(p);
-
-				}
-
+				tree.set(p, "0");
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+				return;
+			}
+			// comparing the subtrees is O(n), but removing them is O(1) for a
+			// LinkedBinaryTree
+			else if (lk.isOperator() && rk.isOperator() && equals(TreeCursor.of(tree, tree.left(p)), TreeCursor.of(tree, tree.right(p)))){
+				tree.removeSubtree(tree.left(p));
+				tree.removeSubtree(tree.right(p));
+				tree.set(p, "0");
+				return;
+			}
+			else if (right.equals("0") && lk.isOperator()){
+				
+				tree.remove(tree.right(p));
+				at.toLeft();
+				tree.remove(p);
+				return;
 			}
-		}
 
+		}
 	}
 
 	/**
@@ -558,7 +790,7 @@ public class Assignment {
 	 *             if tree was not a valid expression, or either of the other
 	 *             arguments are null
 	 */
-	public static LinkedBinaryTree<String> substitute(LinkedBinaryTree<String> tree, String variable, int value)
+	public static <T extends MutableBinaryTree<String>> T substitute(T tree, String variable, int value)
 			throws IllegalArgumentException {
 		
 		if (tree == null){
@@ -573,27 +805,44 @@ public class Assignment {
 		if (tree.numChildren(tree.root()) == 0){
 			return tree;
 		}
-		return substitutehelp(tree, variable, value,tree.root());
+		// variables in parsed trees are the canonical instance from the
+		// SymbolTable, so look that up once rather than per node
+		String name = SymbolTable.canonical(variable);
+		EulerTour.tour(TreeCursor.of(tree), new Substituter(tree, name, Integer.toString(value)));
+		return tree;
 	}
 	
-	// helper method to recurse and find the variable that needs to be substitute
-	// recurse in post order
-	private static LinkedBinaryTree<String> substitutehelp(LinkedBinaryTree<String> tree, String variable, int value,Position<String> p){
-
-		if (p.getElement().equals(variable)){
-
-			tree.set(p, Integer.toString(value));
-		}
-		if (tree.numChildren(p) == 2 ){
-			substitutehelp(tree,variable,value,tree.left(p));
-			substitutehelp(tree,variable,value,tree.right(p));
-			return tree;
+	// check if a tree element is the given variable. Comparing the (cached) hash
+	// codes first rejects other variables without looking at their characters,
+	// and the canonical instance is accepted by String.equals without doing so
+	// either. Assumed case of O(1).
+	private static boolean isSymbol(String element, String name){
+		return element == name || (element.hashCode() == name.hashCode() && element.equals(name));
+	}
+	
+	// helper to find the variable that needs to be substitute, looking at
+	// each node on its PRE visit, in preorder
+	private static final class Substituter implements EulerVisitor<String> {
+		private final MutableBinaryTree<String> tree;
+		private final String name;
+		private final String value;
+
+		Substituter(MutableBinaryTree<String> tree, String name, String value){
+			this.tree = tree;
+			this.name = name;
+			this.value = value;
 		}
-		if (tree.numChildren(p) == 0){
-			return tree;
+
+		public int visits(){
+			return EulerTour.PRE;
 		}
 
-		return tree;
+		public boolean onPre(TreeCursor<String> p){
+			if (isSymbol(p.element(), name)){
+				tree.set(p.position(), value);
+			}
+			return true;
+		}
 	}
 	/**
 	 * Given a tree and a a map of variable labels to values, this should
@@ -612,7 +861,7 @@ public class Assignment {
 	 *             if tree was not a valid expression, or map is null, or tries
 	 *             to substitute a null into the tree
 	 */
-	public static LinkedBinaryTree<String> substitute(LinkedBinaryTree<String> tree, HashMap<String, Integer> map)
+	public static <T extends MutableBinaryTree<String>> T substitute(T tree, HashMap<String, Integer> map)
 			throws IllegalArgumentException {
 		
 		if (tree == null){
@@ -628,34 +877,320 @@ public class Assignment {
 			throw new IllegalArgumentException();
 		}
 
-		return substituteMaphelp(tree,tree.root(), map);
+		HashSet<String> unbound = new HashSet<String>();
+		HashMap<String, String> values = bindings(map, unbound);
+		EulerTour.tour(TreeCursor.of(tree), new MapSubstituter(tree, values, unbound));
+		return tree;
+	}
+
+	// resolve the map once: each key that is a variable name is mapped from its
+	// canonical instance to its value, already formatted, and keys mapped to
+	// null are collected in unbound. Looking up a parsed leaf (which holds the
+	// canonical instance) then compares the cached hash codes and references
+	// only, and other keys can never match a leaf.
+	private static HashMap<String, String> bindings(Map<String, Integer> map, Set<String> unbound){
+		HashMap<String, String> values = new HashMap<String, String>(2 * map.size());
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			String key = entry.getKey();
+			if (key == null || Term.of(key) != Term.VARIABLE) {
+				continue;
+			}
+			key = SymbolTable.canonical(key);
+			if (entry.getValue() == null) {
+				unbound.add(key);
+			} else {
+				values.put(key, Integer.toString(entry.getValue()));
+			}
+		}
+		return values;
 	}
 	
-	// helper method, recurse to find matching variable in the tree that match the keys in the map
-	private static LinkedBinaryTree<String> substituteMaphelp(LinkedBinaryTree<String> tree, Position<String> p, HashMap<String, Integer> map ){
-		if (p == null){
+	// helper to find variables in the tree that match the keys in the map
+	private static final class MapSubstituter implements EulerVisitor<String> {
+		private final MutableBinaryTree<String> tree;
+		private final Map<String, String> values;
+		private final Set<String> unbound;
+
+		MapSubstituter(MutableBinaryTree<String> tree, Map<String, String> values, Set<String> unbound){
+			this.tree = tree;
+			this.values = values;
+			this.unbound = unbound;
+		}
+
+		public int visits(){
+			return EulerTour.PRE;
+		}
+
+		public boolean onPre(TreeCursor<String> p){
+			if (p.numChildren() != 0){
+				return true;
+			}
+			String value = values.get(p.element());
+			if (value != null){
+				tree.set(p.position(), value);
+			}
+			else if (!unbound.isEmpty() && unbound.contains(p.element())){
+				throw new IllegalArgumentException();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Non-destructive version of simplify: the given tree is left unchanged,
+	 * and the result shares every subtree that did not need simplifying with
+	 * it. If nothing could be simplified, the given tree itself is returned.
+	 *
+	 * @param tree
+	 *            - a persistent tree representing an arithmetic expression
+	 * @return a new version of the tree with as many subtrees evaluated as
+	 *         possible
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 */
+	public static PersistentBinaryTree<String> simplify(PersistentBinaryTree<String> tree) throws IllegalArgumentException {
+
+		if (tree == null){
 			throw new IllegalArgumentException();
 		}
-		if (isVar(p.getElement()) == true){
-			if (map.containsKey(p.getElement())){
-				if (map.get(p.getElement()) == null){
-					throw new IllegalArgumentException();
-				}
-				Integer x = (map.get(p.getElement()));
-				tree.set(p, Integer.toString(x));
+		if (isArithmeticExpression(tree) == false){
+			throw new IllegalArgumentException();
+		}
+		return rebuild(tree, new Rebuild(){
+			public PersistentBinaryTree<String> node(PersistentBinaryTree<String> t, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right){
+				return simplifyhelp(t, left, right);
+			}
+		});
+	}
+
+	// post-order rebuild of a persistent tree: node says what to do with each
+	// node, given its subtree and what its children's subtrees have become
+	// (both null if it is a leaf). Persistent nodes have no parent links, so
+	// the tour goes through the tree's positions (each of which knows its path
+	// to the root), and the rebuilt subtrees waiting for their parent are kept
+	// on a stack on the heap rather than on the call stack
+	private static abstract class Rebuild implements EulerVisitor<String> {
+		private PersistentBinaryTree<String> tree;
+		private final ArrayDeque<PersistentBinaryTree<String>> built = new ArrayDeque<PersistentBinaryTree<String>>();
+
+		abstract PersistentBinaryTree<String> node(PersistentBinaryTree<String> tree, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right);
+
+		public int visits(){
+			return EulerTour.POST;
+		}
+
+		public boolean onPost(TreeCursor<String> p){
+			// the root's subtree is the tree itself, so an unchanged tree is returned as it is
+			PersistentBinaryTree<String> subtree = p.hasParent() ? tree.subtree(p.position()) : tree;
+			if (p.numChildren() == 0){
+				built.push(node(subtree, null, null));
+			} else {
+				PersistentBinaryTree<String> right = built.pop();
+				PersistentBinaryTree<String> left = built.pop();
+				built.push(node(subtree, left, right));
 			}
+			return true;
 		}
-		if (tree.numChildren(p) == 2){
-			substituteMaphelp(tree,tree.left(p),map);
-			substituteMaphelp(tree,tree.right(p),map);
+	}
+
+	private static PersistentBinaryTree<String> rebuild(PersistentBinaryTree<String> tree, Rebuild rule){
+		rule.tree = tree;
+		EulerTour.tour(tree, rule);
+		return rule.built.pop();
+	}
+
+	// only creates nodes for the subtrees which change
+	private static PersistentBinaryTree<String> simplifyhelp(PersistentBinaryTree<String> tree, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right){
+		if (left == null){
 			return tree;
 		}
-		if (tree.numChildren(p) == 0){
+		String l = left.root().getElement();
+		String r = right.root().getElement();
+		if (Term.of(l) == Term.LITERAL && Term.of(r) == Term.LITERAL){
+			Term kind = Term.of(tree.root().getElement());
+			return PersistentBinaryTree.leaf(Integer.toString(kind.apply(toInteger(l), toInteger(r))));
+		}
+		return tree.withSubtrees(left, right);
+	}
+
+	/**
+	 * Non-destructive version of simplifyFancy: the given tree is left
+	 * unchanged, and the result shares every subtree that did not need
+	 * simplifying with it.
+	 *
+	 * @param tree
+	 *            - a persistent tree representing an arithmetic expression
+	 * @return a new version of the tree after applying the simplifications
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 */
+	public static PersistentBinaryTree<String> simplifyFancy(PersistentBinaryTree<String> tree) throws IllegalArgumentException {
+
+		if (tree == null){
+			throw new IllegalArgumentException();
+		}
+		if (isArithmeticExpression(tree) == false){
+			throw new IllegalArgumentException();
+		}
+		return rebuild(tree, new Rebuild(){
+			public PersistentBinaryTree<String> node(PersistentBinaryTree<String> t, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right){
+				return simplifyFancyhelp(t, left, right);
+			}
+		});
+	}
+
+	// the same rules as the mutable simplifyFancyhelp. Where that one promotes a
+	// child into p's place, this one just returns the child's subtree
+	private static PersistentBinaryTree<String> simplifyFancyhelp(PersistentBinaryTree<String> tree, PersistentBinaryTree<String> leftTree, PersistentBinaryTree<String> rightTree){
+		if (leftTree == null){
 			return tree;
 		}
+		Term kind = Term.of(tree.root().getElement());
+		String left = leftTree.root().getElement();
+		String right = rightTree.root().getElement();
+		Term lk = Term.of(left);
+		Term rk = Term.of(right);
+
+		if (lk == Term.LITERAL && rk == Term.LITERAL){
+			return PersistentBinaryTree.leaf(Integer.toString(kind.apply(toInteger(left), toInteger(right))));
+		}
+		if (kind == Term.TIMES){
+			if (left.equals("1") && rk != Term.LITERAL){
+				return rightTree;
+			}
+			if (right.equals("1") && lk != Term.LITERAL){
+				return leftTree;
+			}
+			if ((left.equals("0") && rk != Term.LITERAL) || (right.equals("0") && lk != Term.LITERAL)){
+				return PersistentBinaryTree.leaf("0");
+			}
+		}
+		else if (kind == Term.PLUS){
+			if (left.equals("0") && rk != Term.LITERAL){
+				return rightTree;
+			}
+			if (right.equals("0") && lk != Term.LITERAL){
+				return leftTree;
+			}
+		}
+		else {
+			if (right.equals("0") && lk != Term.LITERAL){
+				return leftTree;
+			}
+			if (lk == Term.VARIABLE && rk == Term.VARIABLE && right.equals(left)){
+				return PersistentBinaryTree.leaf("0");
+			}
+			if (lk.isOperator() && rk.isOperator() && equals(leftTree, rightTree)){
+				return PersistentBinaryTree.leaf("0");
+			}
+		}
+		return tree.withSubtrees(leftTree, rightTree);
+	}
+
+	/**
+	 * Non-destructive version of substitute: the given tree is left unchanged,
+	 * and only the paths from each replaced variable up to the root are copied.
+	 *
+	 * @param tree
+	 *            - a persistent tree representing an arithmetic expression
+	 * @param variable
+	 *            - a variable label that might exist in the tree
+	 * @param value
+	 *            - an integer value that the variable represents
+	 * @return a new version of the tree with all instances of the specified
+	 *         variable replaced by its numeric value
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or variable is null
+	 */
+	public static PersistentBinaryTree<String> substitute(PersistentBinaryTree<String> tree, String variable, int value)
+			throws IllegalArgumentException {
+
+		if (tree == null){
+			throw new IllegalArgumentException();
+		}
+		if (isArithmeticExpression(tree) == false){
+			throw new IllegalArgumentException();
+		}
+		if (variable == null){
+			throw new IllegalArgumentException();
+		}
+		final String symbol = SymbolTable.canonical(variable);
+		final PersistentBinaryTree<String> leaf = PersistentBinaryTree.leaf(Integer.toString(value));
+		return rebuild(tree, new Rebuild(){
+			public PersistentBinaryTree<String> node(PersistentBinaryTree<String> t, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right){
+				return substitutehelp(t, left, right, symbol, leaf);
+			}
+		});
+	}
 
-		return tree;
+	// every occurrence of the variable shares the same replacement leaf
+	private static PersistentBinaryTree<String> substitutehelp(PersistentBinaryTree<String> tree, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right, String name, PersistentBinaryTree<String> value){
+		if (left == null){
+			return isSymbol(tree.root().getElement(), name) ? value : tree;
+		}
+		return tree.withSubtrees(left, right);
 	}
+
+	/**
+	 * Non-destructive version of substitute with a map of variables: the
+	 * given tree is left unchanged, and only the paths from each replaced
+	 * variable up to the root are copied.
+	 *
+	 * @param tree
+	 *            - a persistent tree representing an arithmetic expression
+	 * @param map
+	 *            - a map of variable labels to integer values
+	 * @return a new version of the tree with all instances of variables which
+	 *         are keys in the map replaced by their numeric values
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or map is null or
+	 *             empty, or tries to substitute a null into the tree
+	 */
+	public static PersistentBinaryTree<String> substitute(PersistentBinaryTree<String> tree, HashMap<String, Integer> map)
+			throws IllegalArgumentException {
+
+		if (tree == null){
+			throw new IllegalArgumentException();
+		}
+		if (map == null){
+			throw new IllegalArgumentException();
+		}
+		if (isArithmeticExpression(tree) == false){
+			throw new IllegalArgumentException();
+		}
+		if (map.isEmpty()){
+			throw new IllegalArgumentException();
+		}
+
+		// as for the mutable version, resolve the map once, and make a single
+		// replacement leaf for each variable
+		final Set<String> unbound = new HashSet<String>();
+		final HashMap<String, PersistentBinaryTree<String>> leaves = new HashMap<String, PersistentBinaryTree<String>>(2 * map.size());
+		for (Map.Entry<String, String> entry : bindings(map, unbound).entrySet()) {
+			leaves.put(entry.getKey(), PersistentBinaryTree.leaf(entry.getValue()));
+		}
+		return rebuild(tree, new Rebuild(){
+			public PersistentBinaryTree<String> node(PersistentBinaryTree<String> t, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right){
+				return substituteMaphelp(t, left, right, leaves, unbound);
+			}
+		});
+	}
+
+	private static PersistentBinaryTree<String> substituteMaphelp(PersistentBinaryTree<String> tree, PersistentBinaryTree<String> left, PersistentBinaryTree<String> right, Map<String, PersistentBinaryTree<String>> leaves, Set<String> unbound){
+		if (left == null){
+			String element = tree.root().getElement();
+			PersistentBinaryTree<String> value = leaves.get(element);
+			if (value != null){
+				return value;
+			}
+			if (!unbound.isEmpty() && unbound.contains(element)){
+				throw new IllegalArgumentException();
+			}
+			return tree;
+		}
+		return tree.withSubtrees(left, right);
+	}
+
 	/**
 	 * Given a tree, identify if that tree represents a valid arithmetic
 	 * expression (possibly with variables)
@@ -667,33 +1202,39 @@ public class Assignment {
 	 * @return true if the tree is not null and it obeys the structure of an
 	 *              arithmetic expression. Otherwise, it returns false
 	 */
-	public static boolean isArithmeticExpression(LinkedBinaryTree<String> tree) {
+	public static boolean isArithmeticExpression(BinaryTree<String> tree) {
 		
 		if (tree == null){
 			return false;
 		}
-		if (tree.numChildren(tree.root()) == 1){
+		TreeCursor<String> p = TreeCursor.of(tree, tree.root());
+		if (p.numChildren() == 1){
 			return false;
 		}
-
-		return isArithHelp(tree,tree.root());
-	}
-	
-	// traverse the tree to find a node that invalidate the tree
-	private static boolean isArithHelp(LinkedBinaryTree<String> tree, Position<String> p){
-		
-		if (tree.numChildren(p) == 0 && isOperator(p.getElement()) == true){
-			return false;
-		}
-		if (tree.numChildren(p) != 0 && (checkNum(p.getElement()) || isVar(p.getElement()))){
-			return false;
-		}
-		if (tree.left(p) == null || tree.right(p) == null){
-			return true;
+		// walk the tree in preorder with the cursor, ending at the first node
+		// that invalidate the tree
+		while (true){
+			int children = p.numChildren();
+			// operators have children, numbers and variables have none
+			if ((children == 0) == ExpressionTree.term(p).isOperator()){
+				return false;
+			}
+			// below the root, an operator with one child is accepted without
+			// looking at its subtree, as it always has been
+			if (children == 2){
+				p.toLeft();
+				continue;
+			}
+			// climb to the next right subtree still to be checked. Only the
+			// children of operators with two children are visited, so a left
+			// child always has a sibling
+			while (!p.isLeftChild()){
+				if (!p.toParent()){
+					return true;
+				}
+			}
+			p.toSibling();
 		}
-		
-		return isArithHelp(tree,tree.left(p)) && isArithHelp(tree,tree.right(p));
-
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,1472 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import textbook.ArrayBinaryTree;
+import textbook.BinaryTree;
+import textbook.LinkedBinaryTree;
+import textbook.LinkedQueue;
+import textbook.PersistentBinaryTree;
+import textbook.Position;
+
+/**
+ * Rough timings for the expensive parts of Assignment, run from the command
+ * line:
+ *
+ * java Benchmark [name]
+ *
+ * where name picks a single benchmark (default is to run all of them). Each
+ * benchmark warms up before it is timed, and reports the best of several runs.
+ */
+public class Benchmark {
+
+	private static final int WARMUP = 5;
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) {
+		String which = args.length > 0 ? args[0] : "all";
+		if (selected(which, "tokenizer")) {
+			tokenizer();
+		}
+		if (selected(which, "mapped")) {
+			mapped();
+		}
+		if (selected(which, "symbols")) {
+			symbols();
+		}
+		if (selected(which, "shared")) {
+			shared();
+		}
+		if (selected(which, "array")) {
+			array();
+		}
+		if (selected(which, "offheap")) {
+			offheap();
+		}
+		if (selected(which, "typed")) {
+			typed();
+		}
+		if (selected(which, "cached")) {
+			cached();
+		}
+		if (selected(which, "iterators")) {
+			iterators();
+		}
+		if (selected(which, "streams")) {
+			streams();
+		}
+		if (selected(which, "cursor")) {
+			cursor();
+		}
+		if (selected(which, "persistent")) {
+			persistent();
+		}
+		if (selected(which, "copy")) {
+			copy();
+		}
+		if (selected(which, "prune")) {
+			prune();
+		}
+		if (selected(which, "codec")) {
+			codec();
+		}
+		if (selected(which, "flat")) {
+			flat();
+		}
+		if (selected(which, "render")) {
+			render();
+		}
+		if (selected(which, "walk")) {
+			walk();
+		}
+		if (selected(which, "euler")) {
+			euler();
+		}
+		if (selected(which, "rpn")) {
+			rpn();
+		}
+		if (selected(which, "jit")) {
+			jit();
+		}
+		if (selected(which, "columnar")) {
+			columnar();
+		}
+	}
+
+	private static boolean selected(String which, String name) {
+		return which.equals("all") || which.equals(name);
+	}
+
+	// run task a few times to warm up, then report the best time in ms
+	private static double time(String label, Runnable task) {
+		for (int i = 0; i < WARMUP; i++) {
+			task.run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double ms = best / 1e6;
+		System.out.printf("  %-40s %10.2f ms%n", label, ms);
+		return ms;
+	}
+
+	// heap in use after a full collection, in bytes
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// a balanced expression with 2^(depth+1)-1 tokens, e.g. "+ * x 1 - y 2"
+	static String balancedExpression(int depth) {
+		StringBuilder sb = new StringBuilder();
+		appendBalanced(sb, depth, 0);
+		return sb.toString();
+	}
+
+	private static int appendBalanced(StringBuilder sb, int depth, int counter) {
+		if (sb.length() > 0) {
+			sb.append(' ');
+		}
+		if (depth == 0) {
+			if (counter % 2 == 0) {
+				sb.append(counter);
+			} else {
+				sb.append("x").append(counter % 97);
+			}
+			return counter + 1;
+		}
+		sb.append("+-*".charAt(depth % 3));
+		counter = appendBalanced(sb, depth - 1, counter);
+		return appendBalanced(sb, depth - 1, counter);
+	}
+
+	// ---------------------------------------------------------------------
+	// tokenizer: prefix2tree using the streaming tokenizer vs split + queue
+
+	private static void tokenizer() {
+		final String expression = balancedExpression(19);
+		System.out.printf("tokenizer: %d tokens, %.1f MB of text%n", (1 << 20) - 1,
+				expression.length() / (1024.0 * 1024.0));
+
+		double before = time("split + LinkedQueue", new Runnable() {
+			public void run() {
+				splitAndQueue(expression);
+			}
+		});
+		double after = time("PrefixTokenizer", new Runnable() {
+			public void run() {
+				Assignment.prefix2tree(expression);
+			}
+		});
+		time("PrefixTokenizer (tokens only)", new Runnable() {
+			public void run() {
+				Iterator<String> tokens = new PrefixTokenizer(expression);
+				while (tokens.hasNext()) {
+					tokens.next();
+				}
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	// the way prefix2tree used to work: split into an array, copy into a queue
+	private static LinkedBinaryTree<String> splitAndQueue(String expression) {
+		LinkedQueue<String> tokens = new LinkedQueue<String>();
+		for (String token : expression.split(" ")) {
+			tokens.enqueue(token);
+		}
+		return fromQueue(tokens);
+	}
+
+	private static LinkedBinaryTree<String> fromQueue(LinkedQueue<String> tokens) {
+		LinkedBinaryTree<String> tree = new LinkedBinaryTree<String>();
+		String element = tokens.dequeue();
+		tree.addRoot(element);
+		if (element.equals("+") || element.equals("-") || element.equals("*")) {
+			LinkedBinaryTree<String> left = fromQueue(tokens);
+			LinkedBinaryTree<String> right = fromQueue(tokens);
+			tree.attach(tree.root(), left, right);
+		}
+		return tree;
+	}
+
+	// ---------------------------------------------------------------------
+	// mapped: prefix2tree straight from a memory mapped file vs reading the
+	// file into a String first
+
+	private static void mapped() {
+		final Path file;
+		final long bytes;
+		try {
+			file = Files.createTempFile("expression", ".txt");
+			Files.write(file, balancedExpression(21).getBytes(StandardCharsets.US_ASCII));
+			bytes = Files.size(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		double mb = bytes / (1024.0 * 1024.0);
+		System.out.printf("mapped: %.1f MB file%n", mb);
+		try {
+			double read = time("read into String + prefix2tree", new Runnable() {
+				public void run() {
+					try {
+						Assignment.prefix2tree(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+			double map = time("prefix2tree(Path), memory mapped", new Runnable() {
+				public void run() {
+					try {
+						Assignment.prefix2tree(file);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+			System.out.printf("  throughput %.1f MB/s (vs %.1f MB/s)%n", mb / (map / 1000), mb / (read / 1000));
+		} finally {
+			try {
+				Files.delete(file);
+			} catch (IOException e) {
+				// leave it for the OS to clean up
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// symbols: heap used by the variables of a parsed tree, and the cost of
+	// substitute, with and without the SymbolTable
+
+	private static void symbols() {
+		String expression = balancedExpression(19);
+		final HashMap<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < 97; i++) {
+			map.put("x" + i, i);
+		}
+
+		long base = usedHeap();
+		LinkedBinaryTree<String> plain = splitAndQueue(expression);
+		long plainBytes = usedHeap() - base;
+		plain = null;
+		base = usedHeap();
+		LinkedBinaryTree<String> interned = Assignment.prefix2tree(expression);
+		long internedBytes = usedHeap() - base;
+		System.out.printf("symbols: %d nodes, 97 distinct variables%n", interned.size());
+		System.out.printf("  %-40s %10.1f MB%n", "heap, a String per variable leaf", plainBytes / (1024.0 * 1024.0));
+		System.out.printf("  %-40s %10.1f MB%n", "heap, canonical variables", internedBytes / (1024.0 * 1024.0));
+		interned = null;
+
+		// substitute changes the tree, so each run gets a freshly parsed one
+		final Deque<LinkedBinaryTree<String>> trees = new ArrayDeque<LinkedBinaryTree<String>>();
+		for (int i = 0; i < 2 * (WARMUP + RUNS); i++) {
+			trees.add(Assignment.prefix2tree(expression));
+		}
+		double before = time("substitute(map), regex + map lookups", new Runnable() {
+			public void run() {
+				oldSubstitute(trees.pop(), map);
+			}
+		});
+		double after = time("substitute(map), canonical names", new Runnable() {
+			public void run() {
+				Assignment.substitute(trees.pop(), map);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	// the way substitute(tree, map) used to work
+	private static void oldSubstitute(LinkedBinaryTree<String> tree, HashMap<String, Integer> map) {
+		if (!Assignment.isArithmeticExpression(tree)) {
+			throw new IllegalArgumentException();
+		}
+		oldSubstitute(tree, tree.root(), map);
+	}
+
+	private static void oldSubstitute(LinkedBinaryTree<String> tree, Position<String> p, HashMap<String, Integer> map) {
+		String e = p.getElement();
+		if (!e.matches("^-?\\d+$") && !(e.equals("+") || e.equals("-") || e.equals("*"))) {
+			if (map.containsKey(e)) {
+				if (map.get(e) == null) {
+					throw new IllegalArgumentException();
+				}
+				tree.set(p, Integer.toString(map.get(e)));
+			}
+		}
+		if (tree.numChildren(p) == 2) {
+			oldSubstitute(tree, tree.left(p), map);
+			oldSubstitute(tree, tree.right(p), map);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// shared: heap and equality of a repetitive expression as a tree vs as
+	// hash-consed SharedExpression nodes
+
+	// a balanced expression built from a handful of repeated subexpressions
+	private static String repetitiveExpression(int depth) {
+		StringBuilder sb = new StringBuilder();
+		appendRepetitive(sb, depth, 0);
+		return sb.toString();
+	}
+
+	private static int appendRepetitive(StringBuilder sb, int depth, int counter) {
+		if (depth == 0) {
+			sb.append(counter % 3 == 0 ? "* x y " : counter % 3 == 1 ? "- x 1 " : "+ y 2 ");
+			return counter + 1;
+		}
+		sb.append("+-*".charAt(depth % 3)).append(' ');
+		counter = appendRepetitive(sb, depth - 1, counter);
+		return appendRepetitive(sb, depth - 1, counter);
+	}
+
+	private static void shared() {
+		final String expression = repetitiveExpression(18);
+		long base = usedHeap();
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		long treeBytes = usedHeap() - base;
+		base = usedHeap();
+		final SharedExpression dag = SharedExpression.parse(expression);
+		long dagBytes = usedHeap() - base;
+		System.out.printf("shared: %d nodes as a tree%n", tree.size());
+		System.out.printf("  %-40s %10.1f MB%n", "heap, LinkedBinaryTree", treeBytes / (1024.0 * 1024.0));
+		System.out.printf("  %-40s %10.3f MB%n", "heap, SharedExpression", dagBytes / (1024.0 * 1024.0));
+
+		final LinkedBinaryTree<String> other = Assignment.prefix2tree(expression);
+		time("Assignment.equals on trees", new Runnable() {
+			public void run() {
+				Assignment.equals(tree, other);
+			}
+		});
+		final SharedExpression otherDag = SharedExpression.parse(expression);
+		time("SharedExpression.equals", new Runnable() {
+			public void run() {
+				otherDag.equals(dag);
+			}
+		});
+		time("prefix2tree", new Runnable() {
+			public void run() {
+				Assignment.prefix2tree(expression);
+			}
+		});
+		time("SharedExpression.parse", new Runnable() {
+			public void run() {
+				SharedExpression.parse(expression);
+			}
+		});
+	}
+
+	// ---------------------------------------------------------------------
+	// array: heap per node and traversal speed of ArrayBinaryTree vs
+	// LinkedBinaryTree
+
+	private static void array() {
+		final String expression = balancedExpression(20);
+		long base = usedHeap();
+		final LinkedBinaryTree<String> linked = Assignment.prefix2tree(expression);
+		long linkedBytes = usedHeap() - base;
+		base = usedHeap();
+		final ArrayBinaryTree<String> array = Assignment.prefix2tree(expression,
+				new ArrayBinaryTree<String>(linked.size()));
+		long arrayBytes = usedHeap() - base;
+		System.out.printf("array: %d nodes (bytes per node include the element Strings)%n", linked.size());
+		System.out.printf("  %-40s %10.1f bytes/node%n", "heap, LinkedBinaryTree", linkedBytes / (double) linked.size());
+		System.out.printf("  %-40s %10.1f bytes/node%n", "heap, ArrayBinaryTree", arrayBytes / (double) array.size());
+
+		time("preorder via Positions, LinkedBinaryTree", new Runnable() {
+			public void run() {
+				countOperators(linked);
+			}
+		});
+		time("preorder via Positions, ArrayBinaryTree", new Runnable() {
+			public void run() {
+				countOperators(array);
+			}
+		});
+		time("preorder via indices, ArrayBinaryTree", new Runnable() {
+			public void run() {
+				countOperators(array, new int[64]);
+			}
+		});
+	}
+
+	// walk the tree in preorder with an explicit stack, counting operators
+	private static int countOperators(BinaryTree<String> tree) {
+		int count = 0;
+		Deque<Position<String>> todo = new ArrayDeque<Position<String>>();
+		todo.push(tree.root());
+		while (!todo.isEmpty()) {
+			Position<String> p = todo.pop();
+			if (p.getElement().length() == 1 && "+-*".indexOf(p.getElement().charAt(0)) >= 0) {
+				count++;
+				todo.push(tree.right(p));
+				todo.push(tree.left(p));
+			}
+		}
+		return count;
+	}
+
+	private static int countOperators(ArrayBinaryTree<String> tree, int[] stack) {
+		int count = 0;
+		int top = 0;
+		stack[top++] = tree.rootIndex();
+		while (top > 0) {
+			int i = stack[--top];
+			if (tree.leftIndex(i) != ArrayBinaryTree.NONE) {
+				count++;
+				stack[top++] = tree.rightIndex(i);
+				stack[top++] = tree.leftIndex(i);
+			}
+		}
+		return count;
+	}
+
+	private static void offheap() {
+		final String expression = balancedExpression(20);
+		long base = usedHeap();
+		LinkedBinaryTree<String> linked = Assignment.prefix2tree(expression);
+		long linkedBytes = usedHeap() - base;
+		System.out.printf("offheap: %d nodes%n", linked.size());
+		System.out.printf("  %-40s %10.1f bytes/node%n", "heap, LinkedBinaryTree", linkedBytes / (double) linked.size());
+		time("full GC with LinkedBinaryTree alive", new Runnable() {
+			public void run() {
+				System.gc();
+			}
+		});
+		int linkedSize = linked.size();
+		linked = null;
+
+		base = usedHeap();
+		OffHeapExpressionTree offHeap = Assignment.prefix2tree(expression, new OffHeapExpressionTree());
+		long offHeapBytes = usedHeap() - base;
+		System.out.printf("  %-40s %10.1f bytes/node%n", "heap, OffHeapExpressionTree", offHeapBytes / (double) linkedSize);
+		System.out.printf("  %-40s %10.1f bytes/node%n", "direct, OffHeapExpressionTree",
+				offHeap.storageBytes() / (double) offHeap.size());
+		time("full GC with OffHeapExpressionTree alive", new Runnable() {
+			public void run() {
+				System.gc();
+			}
+		});
+		offHeap.close();
+	}
+
+	// ---------------------------------------------------------------------
+	// typed: simplify on an ExpressionTree, whose nodes are classified once
+	// when parsed, against classifying every node with Term.of on each visit
+	// (on a plain LinkedBinaryTree), and the way it used to test every node
+	// with a regex, several times over
+
+	private static void typed() {
+		String expression = balancedExpression(18);
+		final Deque<LinkedBinaryTree<String>> trees = new ArrayDeque<LinkedBinaryTree<String>>();
+		for (int i = 0; i < 2 * (WARMUP + RUNS); i++) {
+			trees.add(Assignment.prefix2tree(expression));
+		}
+		final Deque<LinkedBinaryTree<String>> plain = new ArrayDeque<LinkedBinaryTree<String>>();
+		for (int i = 0; i < WARMUP + RUNS; i++) {
+			plain.add(Assignment.prefix2tree(expression, new LinkedBinaryTree<String>()));
+		}
+		System.out.printf("typed: %d nodes%n", trees.peek().size());
+		double before = time("simplify, regex per visit", new Runnable() {
+			public void run() {
+				oldSimplify(trees.pop());
+			}
+		});
+		time("simplify, Term.of per visit", new Runnable() {
+			public void run() {
+				Assignment.simplify(plain.pop());
+			}
+		});
+		double after = time("simplify, Term per node", new Runnable() {
+			public void run() {
+				Assignment.simplify(trees.pop());
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	// the way simplify(tree) used to work
+	private static void oldSimplify(LinkedBinaryTree<String> tree) {
+		if (!Assignment.isArithmeticExpression(tree)) {
+			throw new IllegalArgumentException();
+		}
+		oldSimplify(tree, tree.root());
+	}
+
+	private static void oldSimplify(LinkedBinaryTree<String> tree, Position<String> p) {
+		String e = p.getElement();
+		if (e.equals("+") || e.equals("-") || e.equals("*")) {
+			if (!tree.left(p).getElement().matches("^-?\\d+$")) {
+				oldSimplify(tree, tree.left(p));
+			}
+			if (!tree.right(p).getElement().matches("^-?\\d+$")) {
+				oldSimplify(tree, tree.right(p));
+			}
+			if (tree.left(p).getElement().matches("^-?\\d+$") && tree.right(p).getElement().matches("^-?\\d+$")) {
+				int left = Integer.parseInt(tree.left(p).getElement());
+				int right = Integer.parseInt(tree.right(p).getElement());
+				int result = e.equals("+") ? left + right : e.equals("-") ? left - right : left * right;
+				tree.set(p, Integer.toString(result));
+				tree.remove(tree.left(p));
+				tree.remove(tree.right(p));
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// cached: what keeping subtree sizes and heights costs when building and
+	// simplifying a tree, and what it saves when they are asked for
+
+	private static void cached() {
+		final String expression = balancedExpression(18);
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		System.out.printf("cached: %d nodes%n", tree.size());
+		time("parse (marks ancestors stale)", new Runnable() {
+			public void run() {
+				Assignment.prefix2tree(expression);
+			}
+		});
+		time("parse + first height(root)", new Runnable() {
+			public void run() {
+				LinkedBinaryTree<String> fresh = Assignment.prefix2tree(expression);
+				fresh.height(fresh.root());
+			}
+		});
+		final Deque<LinkedBinaryTree<String>> trees = new ArrayDeque<LinkedBinaryTree<String>>();
+		for (int i = 0; i < 2 * (WARMUP + RUNS); i++) {
+			LinkedBinaryTree<String> fresh = Assignment.prefix2tree(expression);
+			fresh.height(fresh.root());
+			trees.add(fresh);
+		}
+		time("simplify, then height(root)", new Runnable() {
+			public void run() {
+				LinkedBinaryTree<String> simplified = Assignment.simplify(trees.pop());
+				simplified.height(simplified.root());
+			}
+		});
+		double before = time("height of every operator, recursive", new Runnable() {
+			public void run() {
+				heights(tree, false);
+			}
+		});
+		double after = time("height of every operator, cached", new Runnable() {
+			public void run() {
+				heights(tree, true);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	// sum of the heights of every operator, the way a scheduler deciding where
+	// to split up work would ask for them
+	private static long heights(LinkedBinaryTree<String> tree, boolean cached) {
+		long sum = 0;
+		Deque<Position<String>> todo = new ArrayDeque<Position<String>>();
+		todo.push(tree.root());
+		while (!todo.isEmpty()) {
+			Position<String> p = todo.pop();
+			if (tree.left(p) != null) {
+				sum += cached ? tree.height(p) : recursiveHeight(tree, p);
+				todo.push(tree.right(p));
+				todo.push(tree.left(p));
+			}
+		}
+		return sum;
+	}
+
+	// the way AbstractTree computes heights
+	private static int recursiveHeight(BinaryTree<String> tree, Position<String> p) {
+		int h = 0;
+		for (Position<String> c : tree.children(p)) {
+			h = Math.max(h, 1 + recursiveHeight(tree, c));
+		}
+		return h;
+	}
+
+	// ---------------------------------------------------------------------
+	// iterators: walking a tree with an explicit stack of Positions, against
+	// the LinkedBinaryTree traversals that follow parent links
+
+	private static void iterators() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(20));
+		System.out.printf("iterators: %d nodes%n", tree.size());
+		Runnable stack = new Runnable() {
+			public void run() {
+				countOperators(tree);
+			}
+		};
+		Runnable preorder = new Runnable() {
+			public void run() {
+				countOperators(tree.preorder());
+			}
+		};
+		Runnable postorder = new Runnable() {
+			public void run() {
+				countOperators(tree.postorder());
+			}
+		};
+		Runnable breadthfirst = new Runnable() {
+			public void run() {
+				countOperators(tree.breadthfirst());
+			}
+		};
+		time("preorder, ArrayDeque of Positions", stack);
+		time("preorder()", preorder);
+		time("postorder()", postorder);
+		time("breadthfirst()", breadthfirst);
+		System.out.printf("  %-40s %10d bytes%n", "allocated, ArrayDeque of Positions", allocated(stack));
+		System.out.printf("  %-40s %10d bytes%n", "allocated, preorder()", allocated(preorder));
+		System.out.printf("  %-40s %10d bytes%n", "allocated, breadthfirst()", allocated(breadthfirst));
+	}
+
+	private static int countOperators(Iterable<Position<String>> positions) {
+		int count = 0;
+		for (Position<String> p : positions) {
+			if (p.getElement().length() == 1 && "+-*".indexOf(p.getElement().charAt(0)) >= 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// bytes allocated by the current thread while running task (HotSpot only)
+	private static long allocated(Runnable task) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		task.run();
+		return threads.getThreadAllocatedBytes(id) - before;
+	}
+
+	// ---------------------------------------------------------------------
+	// streams: whole-tree scans as sequential and parallel streams
+
+	private static void streams() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(22));
+		System.out.printf("streams: %d nodes, %d cores%n", tree.size(), Runtime.getRuntime().availableProcessors());
+		final Predicate<Position<String>> literal = new Predicate<Position<String>>() {
+			public boolean test(Position<String> p) {
+				return Term.of(p.getElement()) == Term.LITERAL;
+			}
+		};
+		final Predicate<Position<String>> badLeaf = new Predicate<Position<String>>() {
+			public boolean test(Position<String> p) {
+				return tree.isExternal(p) == Term.of(p.getElement()).isOperator();
+			}
+		};
+		double before = time("count literals, stream()", new Runnable() {
+			public void run() {
+				tree.stream().filter(literal).count();
+			}
+		});
+		double after = time("count literals, parallelStream()", new Runnable() {
+			public void run() {
+				tree.parallelStream().filter(literal).count();
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+		before = time("check leaves, stream()", new Runnable() {
+			public void run() {
+				tree.stream().anyMatch(badLeaf);
+			}
+		});
+		after = time("check leaves, parallelStream()", new Runnable() {
+			public void run() {
+				tree.parallelStream().anyMatch(badLeaf);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+		final Function<Position<String>, String> element = new Function<Position<String>, String>() {
+			public String apply(Position<String> p) {
+				return p.getElement();
+			}
+		};
+		final Predicate<String> variable = new Predicate<String>() {
+			public boolean test(String s) {
+				return Term.of(s) == Term.VARIABLE;
+			}
+		};
+		before = time("collect variables, stream()", new Runnable() {
+			public void run() {
+				tree.stream().map(element).filter(variable).collect(Collectors.toSet());
+			}
+		});
+		after = time("collect variables, parallelStream()", new Runnable() {
+			public void run() {
+				tree.parallelStream().map(element).filter(variable).collect(Collectors.toSet());
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	// ---------------------------------------------------------------------
+	// cursor: the read-only Assignment methods walking with TreeCursors,
+	// against the same walks through left(p), right(p) and numChildren(p)
+
+	private static void cursor() {
+		String expression = balancedExpression(20);
+		LinkedBinaryTree<String> linked = Assignment.prefix2tree(expression);
+		System.out.printf("cursor: %d nodes%n", linked.size());
+		cursor("linked", linked, Assignment.prefix2tree(expression));
+		cursor("array", Assignment.prefix2tree(expression, new ArrayBinaryTree<String>(linked.size())),
+				Assignment.prefix2tree(expression, new ArrayBinaryTree<String>(linked.size())));
+	}
+
+	private static void cursor(String name, final BinaryTree<String> a, final BinaryTree<String> b) {
+		double before = time("tree2prefix, Positions, " + name, new Runnable() {
+			public void run() {
+				positionIsArithmetic(a, a.root());
+				StringBuilder sb = new StringBuilder();
+				positionPrefix(a, a.root(), sb);
+				sb.toString();
+			}
+		});
+		double after = time("tree2prefix, TreeCursor, " + name, new Runnable() {
+			public void run() {
+				Assignment.tree2prefix(a);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+		before = time("equals, Positions, " + name, new Runnable() {
+			public void run() {
+				positionEquals(a, b, a.root(), b.root());
+			}
+		});
+		after = time("equals, TreeCursor, " + name, new Runnable() {
+			public void run() {
+				Assignment.equals(a, b);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+		before = time("isArithmeticExpression, Positions, " + name, new Runnable() {
+			public void run() {
+				positionIsArithmetic(a, a.root());
+			}
+		});
+		after = time("isArithmeticExpression, TreeCursor, " + name, new Runnable() {
+			public void run() {
+				Assignment.isArithmeticExpression(a);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", before / after);
+	}
+
+	private static void positionPrefix(BinaryTree<String> tree, Position<String> p, StringBuilder sb) {
+		if (tree.numChildren(p) == 0) {
+			sb.append(p.getElement());
+		}
+		if (tree.numChildren(p) == 2) {
+			sb.append(p.getElement()).append(' ');
+			positionPrefix(tree, tree.left(p), sb);
+			sb.append(' ');
+			positionPrefix(tree, tree.right(p), sb);
+		}
+	}
+
+	private static boolean positionEquals(BinaryTree<String> aTree, BinaryTree<String> bTree, Position<String> a,
+			Position<String> b) {
+		if (a == null || b == null) {
+			return a == null && b == null;
+		}
+		return a.getElement().equals(b.getElement()) && positionEquals(aTree, bTree, aTree.left(a), bTree.left(b))
+				&& positionEquals(aTree, bTree, aTree.right(a), bTree.right(b));
+	}
+
+	private static boolean positionIsArithmetic(BinaryTree<String> tree, Position<String> p) {
+		if ((tree.numChildren(p) == 0) == Term.of(p.getElement()).isOperator()) {
+			return false;
+		}
+		if (tree.left(p) == null || tree.right(p) == null) {
+			return true;
+		}
+		return positionIsArithmetic(tree, tree.left(p)) && positionIsArithmetic(tree, tree.right(p));
+	}
+
+	// keeps many versions of one expression, each with a different variable
+	// substituted, as mutable copies and as persistent versions
+	private static void persistent() {
+		final int versions = 64;
+		final String expression = balancedExpression(16);
+		final PersistentBinaryTree<String> base = PersistentBinaryTree.copyOf(Assignment.prefix2tree(expression));
+		System.out.printf("persistent: %d nodes, %d versions%n", base.size(), versions);
+
+		long before = usedHeap();
+		List<LinkedBinaryTree<String>> copies = new ArrayList<LinkedBinaryTree<String>>();
+		for (int i = 0; i < versions; i++) {
+			copies.add(Assignment.substitute(Assignment.prefix2tree(expression), "x" + i, i));
+		}
+		long mutable = usedHeap() - before;
+		copies.clear();
+		before = usedHeap();
+		List<PersistentBinaryTree<String>> kept = new ArrayList<PersistentBinaryTree<String>>();
+		for (int i = 0; i < versions; i++) {
+			kept.add(Assignment.substitute(base, "x" + i, i));
+		}
+		long shared = usedHeap() - before;
+		System.out.printf("  %-40s %10.1f MB%n", "heap, mutable copies", mutable / 1e6);
+		System.out.printf("  %-40s %10.1f MB%n", "heap, persistent versions", shared / 1e6);
+		kept.clear();
+
+		double copying = time("copy and substitute, mutable", new Runnable() {
+			public void run() {
+				Assignment.substitute(Assignment.prefix2tree(expression), "x1", 1);
+			}
+		});
+		double persisting = time("substitute, persistent", new Runnable() {
+			public void run() {
+				Assignment.substitute(base, "x1", 1);
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", copying / persisting);
+		final Position<String> leaf = base.left(base.left(base.left(base.root())));
+		time("withElement, persistent", new Runnable() {
+			public void run() {
+				base.withElement(leaf, "y");
+			}
+		});
+	}
+	// copies trees of 10^3 to 10^7 nodes, shaped as left chains (the deepest
+	// possible) and as balanced trees
+	private static void copy() {
+		System.out.println("copy:");
+		for (int n = 1000; n <= 10000000; n *= 10) {
+			copy("chain", chain(n));
+		}
+		for (int depth = 9; depth <= 23; depth += 3) {
+			copy("balanced", Assignment.prefix2tree(balancedExpression(depth)));
+		}
+		final String expression = balancedExpression(20);
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		double reparse = time("tree2prefix and prefix2tree", new Runnable() {
+			public void run() {
+				Assignment.prefix2tree(Assignment.tree2prefix(tree));
+			}
+		});
+		double copy = time("copy", new Runnable() {
+			public void run() {
+				tree.copy();
+			}
+		});
+		System.out.printf("  speedup %.2fx%n", reparse / copy);
+	}
+
+	private static void copy(String shape, final LinkedBinaryTree<String> tree) {
+		double ms = time(shape + ", " + tree.size() + " nodes", new Runnable() {
+			public void run() {
+				tree.copy();
+			}
+		});
+		System.out.printf("  %-40s %10.1f M nodes/s%n", "  throughput", tree.size() / ms / 1e3);
+	}
+
+	// a tree of about n nodes in which every right child is a leaf
+	private static LinkedBinaryTree<String> chain(int n) {
+		LinkedBinaryTree<String> tree = new LinkedBinaryTree<String>();
+		Position<String> p = tree.addRoot("+");
+		for (int i = 1; i < n / 2; i++) {
+			tree.addRight(p, "1");
+			p = tree.addLeft(p, "+");
+		}
+		tree.addRight(p, "1");
+		tree.addLeft(p, "1");
+		return tree;
+	}
+	// removes a large subtree whole, and node by node as simplifyFancy used to
+	private static void prune() {
+		final String expression = balancedExpression(20);
+		System.out.printf("prune: %d nodes%n", Assignment.prefix2tree(expression).size());
+		double whole = removal("removeSubtree, LinkedBinaryTree", new Function<String, Runnable>() {
+			public Runnable apply(String e) {
+				final LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ 1 " + e);
+				return new Runnable() {
+					public void run() {
+						tree.removeSubtree(tree.right(tree.root()));
+					}
+				};
+			}
+		}, expression);
+		double nodes = removal("removeSubtree, node by node", new Function<String, Runnable>() {
+			public Runnable apply(String e) {
+				final LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ 1 " + e);
+				return new Runnable() {
+					public void run() {
+						oldRemoveSubtree(tree, tree.right(tree.root()));
+					}
+				};
+			}
+		}, expression);
+		System.out.printf("  speedup %.0fx%n", nodes / whole);
+	}
+
+	// the old Assignment.removeSubtree
+	private static void oldRemoveSubtree(LinkedBinaryTree<String> tree, Position<String> p) {
+		if (p == null) {
+			return;
+		}
+		oldRemoveSubtree(tree, tree.left(p));
+		oldRemoveSubtree(tree, tree.right(p));
+		tree.remove(p);
+	}
+
+	// times task (built fresh for each run by setup) from the moment it starts
+	private static double removal(String label, Function<String, Runnable> setup, String expression) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < WARMUP + RUNS; i++) {
+			Runnable task = setup.apply(expression);
+			long start = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double ms = best / 1e6;
+		System.out.printf("  %-40s %10.3f ms%n", label, ms);
+		return ms;
+	}
+	// passes a tree through its prefix string and through ExpressionCodec
+	private static void codec() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(20));
+		final String prefix = Assignment.tree2prefix(tree);
+		final byte[] encoded = ExpressionCodec.encode(tree);
+		final ByteBuffer buffer = ByteBuffer.allocate(encoded.length);
+		System.out.printf("codec: %d nodes%n", tree.size());
+		System.out.printf("  %-40s %10.2f MB%n", "size, prefix string (UTF-8)", prefix.getBytes(StandardCharsets.UTF_8).length / 1e6);
+		System.out.printf("  %-40s %10.2f MB%n", "size, encoded", encoded.length / 1e6);
+		double stringWrite = time("encode, tree2prefix", new Runnable() {
+			public void run() {
+				Assignment.tree2prefix(tree);
+			}
+		});
+		double codecWrite = time("encode, ExpressionCodec to ByteBuffer", new Runnable() {
+			public void run() {
+				buffer.clear();
+				ExpressionCodec.write(tree, buffer);
+			}
+		});
+		time("encode, ExpressionCodec to byte[]", new Runnable() {
+			public void run() {
+				ExpressionCodec.encode(tree);
+			}
+		});
+		System.out.printf("  speedup %.2fx, %.1f M nodes/s%n", stringWrite / codecWrite, tree.size() / codecWrite / 1e3);
+		double stringRead = time("decode, prefix2tree", new Runnable() {
+			public void run() {
+				Assignment.prefix2tree(prefix);
+			}
+		});
+		double codecRead = time("decode, ExpressionCodec", new Runnable() {
+			public void run() {
+				ExpressionCodec.decode(encoded);
+			}
+		});
+		System.out.printf("  speedup %.2fx, %.1f M nodes/s%n", stringRead / codecRead, tree.size() / codecRead / 1e3);
+	}
+	// stores a million small expressions, one per line as prefix strings and
+	// one after the other as FlatExpressions, and loads and evaluates them all
+	private static void flat() {
+		final int count = 1000000;
+		final Path text;
+		final Path flat;
+		try {
+			text = Files.createTempFile("expressions", ".txt");
+			flat = Files.createTempFile("expressions", ".flat");
+			StringBuilder sb = new StringBuilder();
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			try (FileChannel out = FileChannel.open(flat, StandardOpenOption.WRITE)) {
+				for (int i = 0; i < count; i++) {
+					String expression = "+ * x" + (i % 97) + " " + i + " - " + (i % 13) + " y";
+					sb.append(expression).append('\n');
+					buffer.clear();
+					FlatExpression.write(Assignment.prefix2tree(expression), buffer);
+					buffer.flip();
+					out.write(buffer);
+				}
+			}
+			Files.write(text, sb.toString().getBytes(StandardCharsets.US_ASCII));
+			System.out.printf("flat: %d expressions, %.1f MB as text, %.1f MB flat%n", count,
+					Files.size(text) / 1e6, Files.size(flat) / 1e6);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		final HashMap<String, Integer> values = new HashMap<String, Integer>();
+		for (int i = 0; i < 97; i++) {
+			values.put("x" + i, i);
+		}
+		values.put("y", 1);
+		try {
+			double parse = time("load, read lines + prefix2tree", new Runnable() {
+				public void run() {
+					try {
+						for (String line : Files.readAllLines(text, StandardCharsets.US_ASCII)) {
+							Assignment.prefix2tree(line);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+			double map = time("load, map + FlatExpression.at", new Runnable() {
+				public void run() {
+					for (FlatExpression e : mapAll(flat)) {
+						e.size();
+					}
+				}
+			});
+			System.out.printf("  speedup %.2fx%n", parse / map);
+			final List<LinkedBinaryTree<String>> trees = new ArrayList<LinkedBinaryTree<String>>();
+			try {
+				for (String line : Files.readAllLines(text, StandardCharsets.US_ASCII)) {
+					trees.add(Assignment.prefix2tree(line));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			final List<FlatExpression> mapped = mapAll(flat);
+			double tree = time("evaluate, substitute + simplify", new Runnable() {
+				public void run() {
+					for (LinkedBinaryTree<String> t : trees) {
+						Assignment.simplify(Assignment.substitute(t.copy(), values));
+					}
+				}
+			});
+			double inPlace = time("evaluate, FlatExpression in place", new Runnable() {
+				public void run() {
+					for (FlatExpression e : mapped) {
+						e.evaluate(values);
+					}
+				}
+			});
+			System.out.printf("  speedup %.2fx%n", tree / inPlace);
+		} finally {
+			try {
+				Files.delete(text);
+				Files.delete(flat);
+			} catch (IOException e) {
+				// leave them for the OS to clean up
+			}
+		}
+	}
+
+	private static List<FlatExpression> mapAll(Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			List<FlatExpression> all = new ArrayList<FlatExpression>();
+			for (int offset = 0; offset < buffer.limit(); offset += all.get(all.size() - 1).byteSize()) {
+				all.add(FlatExpression.at(buffer, offset));
+			}
+			return all;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	// writes left chains in prefix and infix notation, with String concatenation
+	// as the original tree2prefix and tree2infix did, and with the streaming
+	// writers. The concatenating versions recurse, so they run on a thread
+	// with a large stack
+	private static void render() {
+		System.out.println("render:");
+		for (int depth = 500; depth <= 500000; depth *= 10) {
+			final LinkedBinaryTree<String> tree = chain(2 * depth + 1);
+			final int nodes = tree.size();
+			if (depth <= 50000) {
+				final double[] concat = new double[2];
+				onLargeStack(new Runnable() {
+					public void run() {
+						concat[0] = time("prefix, concatenation, " + nodes + " nodes", new Runnable() {
+							public void run() {
+								concatPrefix(tree, tree.root());
+							}
+						});
+						concat[1] = time("infix, concatenation, " + nodes + " nodes", new Runnable() {
+							public void run() {
+								concatInfix(tree, tree.root());
+							}
+						});
+					}
+				});
+				double prefix = time("prefix, streaming, " + nodes + " nodes", new Runnable() {
+					public void run() {
+						Assignment.tree2prefix(tree);
+					}
+				});
+				double infix = time("infix, streaming, " + nodes + " nodes", new Runnable() {
+					public void run() {
+						Assignment.tree2infix(tree);
+					}
+				});
+				System.out.printf("  speedup %.0fx prefix, %.0fx infix%n", concat[0] / prefix, concat[1] / infix);
+			} else {
+				time("prefix, streaming, " + nodes + " nodes", new Runnable() {
+					public void run() {
+						Assignment.tree2prefix(tree);
+					}
+				});
+				time("infix, streaming, " + nodes + " nodes", new Runnable() {
+					public void run() {
+						Assignment.tree2infix(tree);
+					}
+				});
+				time("prefix, streaming to a Writer", new Runnable() {
+					public void run() {
+						try {
+							Writer out = new BufferedWriter(new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8));
+							Assignment.tree2prefix(tree, out);
+							out.flush();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	// the original tree2prefix helper
+	private static String concatPrefix(LinkedBinaryTree<String> tree, Position<String> p) {
+		if (tree.numChildren(p) == 0) {
+			return p.getElement();
+		}
+		return p.getElement() + " " + concatPrefix(tree, tree.left(p)) + " " + concatPrefix(tree, tree.right(p));
+	}
+
+	// the original tree2infix helper
+	private static String concatInfix(LinkedBinaryTree<String> tree, Position<String> p) {
+		if (tree.numChildren(p) == 0) {
+			return p.getElement();
+		}
+		return "(" + concatInfix(tree, tree.left(p)) + p.getElement() + concatInfix(tree, tree.right(p)) + ")";
+	}
+
+	private static void onLargeStack(Runnable task) {
+		Thread thread = new Thread(null, task, "large stack", 1L << 30);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+	// the Assignment operations on a balanced tree, and on a deep chain on this
+	// (default sized) thread stack
+	private static void walk() {
+		String balanced = balancedExpression(20);
+		System.out.printf("walk: %d nodes, balanced%n", Assignment.prefix2tree(balanced).size());
+		walk(Assignment.prefix2tree(balanced));
+		System.out.println("walk: 1000001 nodes, left chain");
+		walk(chain(1000001));
+	}
+
+	private static void walk(final LinkedBinaryTree<String> tree) {
+		final LinkedBinaryTree<String> other = tree.copy();
+		final PersistentBinaryTree<String> persistent = PersistentBinaryTree.copyOf(tree);
+		walkTime("isArithmeticExpression", new Runnable() {
+			public void run() {
+				Assignment.isArithmeticExpression(tree);
+			}
+		});
+		walkTime("equals", new Runnable() {
+			public void run() {
+				Assignment.equals(tree, other);
+			}
+		});
+		walkTime("substitute, no matches", new Runnable() {
+			public void run() {
+				Assignment.substitute(tree, "w", 1);
+			}
+		});
+		double copy = walkTime("copy", new Runnable() {
+			public void run() {
+				tree.copy();
+			}
+		});
+		double simplify = walkTime("copy + simplify", new Runnable() {
+			public void run() {
+				Assignment.simplify(tree.copy());
+			}
+		});
+		double fancy = walkTime("copy + simplifyFancy", new Runnable() {
+			public void run() {
+				Assignment.simplifyFancy(tree.copy());
+			}
+		});
+		System.out.printf("  %-40s %10.2f ms%n  %-40s %10.2f ms%n", "simplify", simplify - copy, "simplifyFancy", fancy - copy);
+		walkTime("simplify, persistent", new Runnable() {
+			public void run() {
+				Assignment.simplify(persistent);
+			}
+		});
+	}
+
+	// times a task, or reports that it ran out of stack
+	private static double walkTime(String label, Runnable task) {
+		try {
+			return time(label, task);
+		} catch (StackOverflowError e) {
+			System.out.printf("  %-40s %13s%n", label, "stack overflow");
+			return Double.NaN;
+		}
+	}
+	// the Assignment operations run as Euler tours: bytes allocated by one
+	// call (nothing per node), then the times from the walk section
+	private static void euler() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(20));
+		System.out.printf("euler: %d nodes%n", tree.size());
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8));
+		Runnable isArithmetic = new Runnable() {
+			public void run() {
+				Assignment.isArithmeticExpression(tree);
+			}
+		};
+		Runnable substitute = new Runnable() {
+			public void run() {
+				Assignment.substitute(tree, "w", 1);
+			}
+		};
+		Runnable prefix = new Runnable() {
+			public void run() {
+				try {
+					Assignment.tree2prefix(tree, out);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+		for (int i = 0; i < WARMUP; i++) {
+			isArithmetic.run();
+			substitute.run();
+			prefix.run();
+		}
+		System.out.printf("  %-40s %10d bytes%n", "allocated, isArithmeticExpression", allocated(isArithmetic));
+		System.out.printf("  %-40s %10d bytes%n", "allocated, substitute, no matches", allocated(substitute));
+		System.out.printf("  %-40s %10d bytes%n", "allocated, tree2prefix to a Writer", allocated(prefix));
+		walk(tree);
+	}
+	// evaluates one expression against many sets of variable values: by
+	// substituting into a copy of the tree and simplifying it, and by running
+	// a compiled ExpressionProgram
+	private static void rpn() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(10));
+		final ExpressionProgram program = ExpressionProgram.compile(tree);
+		System.out.printf("rpn: %d nodes, %d variables, %d instructions%n", tree.size(), program.variables().size(),
+				program.length());
+		final int rows = 1000;
+		final long[][] bindings = new long[rows][program.variables().size()];
+		final List<HashMap<String, Integer>> maps = new ArrayList<HashMap<String, Integer>>();
+		Random random = new Random(42);
+		for (int row = 0; row < rows; row++) {
+			HashMap<String, Integer> map = new HashMap<String, Integer>();
+			for (int slot = 0; slot < bindings[row].length; slot++) {
+				bindings[row][slot] = random.nextInt(100);
+				map.put(program.variables().get(slot), (int) bindings[row][slot]);
+			}
+			maps.add(map);
+		}
+		double substituted = time("copy + substitute + simplify, " + rows + " rows", new Runnable() {
+			public void run() {
+				for (HashMap<String, Integer> map : maps) {
+					Assignment.simplify(Assignment.substitute(tree.copy(), map)).root().getElement();
+				}
+			}
+		});
+		final long[] stack = program.newStack();
+		final long[] sink = new long[1];
+		Runnable evaluate = new Runnable() {
+			public void run() {
+				long sum = 0;
+				for (int row = 0; row < rows; row++) {
+					sum += program.evaluate(bindings[row], stack);
+				}
+				sink[0] = sum;
+			}
+		};
+		double compiled = time("ExpressionProgram.evaluate, " + rows + " rows", evaluate);
+		System.out.printf("  %-40s %10.0f rows/s%n", "tree", rows / substituted * 1000);
+		System.out.printf("  %-40s %10.0f rows/s%n", "ExpressionProgram", rows / compiled * 1000);
+		System.out.printf("  %-40s %10d bytes%n", "allocated, ExpressionProgram, " + rows + " rows", allocated(evaluate));
+		time("compile", new Runnable() {
+			public void run() {
+				ExpressionProgram.compile(tree);
+			}
+		});
+	}
+	// evaluates one expression against many sets of variable values, walking
+	// the tree, with ExpressionProgram, and with ExpressionJit
+	private static void jit() {
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(balancedExpression(9));
+		final ExpressionProgram program = ExpressionProgram.compile(tree);
+		final int rows = 10000;
+		System.out.printf("jit: %d nodes, %d variables, %d instructions, %d rows%n", tree.size(),
+				program.variables().size(), program.length(), rows);
+		final long[][] bindings = new long[rows][program.variables().size()];
+		final List<HashMap<String, Integer>> maps = new ArrayList<HashMap<String, Integer>>();
+		Random random = new Random(42);
+		for (int row = 0; row < rows; row++) {
+			HashMap<String, Integer> map = new HashMap<String, Integer>();
+			for (int slot = 0; slot < bindings[row].length; slot++) {
+				bindings[row][slot] = random.nextInt(100);
+				map.put(program.variables().get(slot), (int) bindings[row][slot]);
+			}
+			maps.add(map);
+		}
+		final FlatExpression flat = FlatExpression.of(tree);
+		final long[] sink = new long[1];
+		double walked = time("copy + substitute + simplify, rows / 10", new Runnable() {
+			public void run() {
+				for (int row = 0; row < rows / 10; row++) {
+					Assignment.simplify(Assignment.substitute(tree.copy(), maps.get(row))).root().getElement();
+				}
+			}
+		}) * 10;
+		double flatTime = time("FlatExpression.evaluate", new Runnable() {
+			public void run() {
+				long sum = 0;
+				for (int row = 0; row < rows; row++) {
+					sum += flat.evaluate(maps.get(row));
+				}
+				sink[0] = sum;
+			}
+		});
+		final long[] stack = program.newStack();
+		double interpreted = time("ExpressionProgram.evaluate", new Runnable() {
+			public void run() {
+				long sum = 0;
+				for (int row = 0; row < rows; row++) {
+					sum += program.evaluate(bindings[row], stack);
+				}
+				sink[0] = sum;
+			}
+		});
+		final ExpressionJit.Evaluator evaluator = ExpressionJit.compile(program);
+		double compiled = time("ExpressionJit", new Runnable() {
+			public void run() {
+				long sum = 0;
+				for (int row = 0; row < rows; row++) {
+					sum += evaluator.eval(bindings[row]);
+				}
+				sink[0] = sum;
+			}
+		});
+		System.out.printf("  %-40s %10.0f rows/s%n", "tree (a tenth of the rows, scaled)", rows / walked * 1000);
+		System.out.printf("  %-40s %10.0f rows/s%n", "FlatExpression", rows / flatTime * 1000);
+		System.out.printf("  %-40s %10.0f rows/s%n", "ExpressionProgram", rows / interpreted * 1000);
+		System.out.printf("  %-40s %10.0f rows/s%n", "ExpressionJit", rows / compiled * 1000);
+		final int[] shape = new int[1];
+		time("ExpressionJit.compile, new shape each time", new Runnable() {
+			public void run() {
+				ExpressionJit.compile(ExpressionProgram.compile(Assignment.prefix2tree("+ x " + shape[0]++ + "000000")));
+			}
+		});
+		time("ExpressionJit.compile, cached", new Runnable() {
+			public void run() {
+				ExpressionJit.compile(program);
+			}
+		});
+	}
+	// evaluates one expression over columns of 10^7 rows: a row at a time, by
+	// walking the tree, with ExpressionProgram and with ExpressionJit, and a
+	// chunk of rows at a time with ColumnarExpression
+	private static void columnar() {
+		final String expression = "- + * 3 x * y y * - z 4 + x 10";
+		final LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		final ColumnarExpression columnar = ColumnarExpression.compile(tree);
+		final ExpressionProgram program = ExpressionProgram.compile(tree);
+		final ExpressionJit.Evaluator evaluator = ExpressionJit.compile(program);
+		final int rows = 10000000;
+		final int variables = columnar.variables().size();
+		System.out.printf("columnar: %s, %d rows%n", expression, rows);
+		final int[][] ints = new int[variables][rows];
+		final long[][] longs = new long[variables][rows];
+		Random random = new Random(42);
+		for (int column = 0; column < variables; column++) {
+			for (int row = 0; row < rows; row++) {
+				ints[column][row] = random.nextInt(1000);
+				longs[column][row] = ints[column][row];
+			}
+		}
+		final long[] out = new long[rows];
+		final int treeRows = 10000;
+		double walked = time("copy + substitute + simplify, " + treeRows + " rows", new Runnable() {
+			public void run() {
+				HashMap<String, Integer> map = new HashMap<String, Integer>();
+				for (int row = 0; row < treeRows; row++) {
+					for (int column = 0; column < variables; column++) {
+						map.put(columnar.variables().get(column), ints[column][row]);
+					}
+					Assignment.simplify(Assignment.substitute(tree.copy(), map)).root().getElement();
+				}
+			}
+		});
+		final long[] bindings = new long[variables];
+		final long[] stack = program.newStack();
+		double interpreted = time("ExpressionProgram, row at a time", new Runnable() {
+			public void run() {
+				for (int row = 0; row < rows; row++) {
+					for (int column = 0; column < variables; column++) {
+						bindings[column] = longs[column][row];
+					}
+					out[row] = program.evaluate(bindings, stack);
+				}
+			}
+		});
+		double compiled = time("ExpressionJit, row at a time", new Runnable() {
+			public void run() {
+				for (int row = 0; row < rows; row++) {
+					for (int column = 0; column < variables; column++) {
+						bindings[column] = longs[column][row];
+					}
+					out[row] = evaluator.eval(bindings);
+				}
+			}
+		});
+		double fromLongs = time("ColumnarExpression, long[] columns", new Runnable() {
+			public void run() {
+				columnar.evaluate(longs, out);
+			}
+		});
+		double fromInts = time("ColumnarExpression, int[] columns", new Runnable() {
+			public void run() {
+				columnar.evaluate(ints, out);
+			}
+		});
+		System.out.printf("  %-40s %10.3g rows/s%n", "tree", treeRows / walked * 1000);
+		System.out.printf("  %-40s %10.3g rows/s%n", "ExpressionProgram", rows / interpreted * 1000);
+		System.out.printf("  %-40s %10.3g rows/s%n", "ExpressionJit", rows / compiled * 1000);
+		System.out.printf("  %-40s %10.3g rows/s%n", "ColumnarExpression, long[]", rows / fromLongs * 1000);
+		System.out.printf("  %-40s %10.3g rows/s%n", "ColumnarExpression, int[]", rows / fromInts * 1000);
+	}
+}
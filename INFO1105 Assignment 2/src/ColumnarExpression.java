@@ -0,0 +1,269 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import textbook.BinaryTree;
+
+/**
+ * Evaluates one expression over many rows at once, with the value of each
+ * variable given as a column: a long[] or int[] holding its value in every
+ * row.
+ *
+ * The expression is compiled to an ExpressionProgram, and the program is
+ * run a chunk of CHUNK rows at a time. Each instruction works on the whole
+ * chunk in one simple loop (e.g. sum[i] = left[i] + right[i]), which the
+ * JIT unrolls and compiles to SIMD instructions where the hardware has them,
+ * and the chunk's intermediate values stay in the CPU cache. long[] columns
+ * are read in place; int[] columns are widened a chunk at a time. Constant
+ * operands are applied as scalars rather than being spread over a chunk.
+ *
+ * Arithmetic is the same (wrapping) long arithmetic as
+ * ExpressionProgram.evaluate. A ColumnarExpression never changes once
+ * compiled, so it can be shared between threads.
+ *
+ * Example:
+ *
+ * ColumnarExpression f = ColumnarExpression.compile(Assignment.prefix2tree("+ * 3 x y"));
+ * long[] out = new long[rows];
+ * f.evaluate(new long[][] { xs, ys }, out); // out[i] = 3 * xs[i] + ys[i]
+ */
+public final class ColumnarExpression {
+
+	/** The number of rows evaluated at a time */
+	public static final int CHUNK = 1024;
+
+	private final ExpressionProgram program;
+	private final int[] code;
+	private final long[] constants;
+
+	private ColumnarExpression(ExpressionProgram program) {
+		this.program = program;
+		this.code = program.code();
+		this.constants = program.constants();
+	}
+
+	/**
+	 * Compile an expression tree. Its variables are numbered as
+	 * ExpressionProgram numbers them, which is the order the columns are
+	 * given in.
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the compiled expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or has a number that
+	 *             doesn't fit in a long
+	 */
+	public static ColumnarExpression compile(BinaryTree<String> tree) throws IllegalArgumentException {
+		return new ColumnarExpression(ExpressionProgram.compile(tree));
+	}
+
+	/**
+	 * @return the variables of the expression, in the order of their columns
+	 */
+	public List<String> variables() {
+		return program.variables();
+	}
+
+	/**
+	 * Evaluate the expression for every row, i.e. for each index of out
+	 *
+	 * @param columns
+	 *            - the values of each variable, in the order of variables()
+	 * @param out
+	 *            - where to put the value for each row
+	 * @throws IllegalArgumentException
+	 *             if a column is missing or shorter than out
+	 */
+	public void evaluate(long[][] columns, long[] out) throws IllegalArgumentException {
+		run(columns, out, out.length);
+	}
+
+	/**
+	 * Evaluate the expression for every row, with int columns
+	 *
+	 * @param columns
+	 *            - the values of each variable, in the order of variables()
+	 * @param out
+	 *            - where to put the value for each row
+	 * @throws IllegalArgumentException
+	 *             if a column is missing or shorter than out
+	 */
+	public void evaluate(int[][] columns, long[] out) throws IllegalArgumentException {
+		run(columns, out, out.length);
+	}
+
+	/**
+	 * Evaluate the expression for the given number of rows, with a column for
+	 * each variable by name. Columns may be long[] or int[], and may be mixed.
+	 *
+	 * @param columns
+	 *            - a map of variable labels to their columns
+	 * @param rows
+	 *            - the number of rows
+	 * @return the value for each row
+	 * @throws IllegalArgumentException
+	 *             if a column is missing, shorter than rows, or not a long[]
+	 *             or int[]
+	 */
+	public long[] evaluate(Map<String, ?> columns, int rows) throws IllegalArgumentException {
+		List<String> variables = variables();
+		Object[] ordered = new Object[variables.size()];
+		for (int i = 0; i < ordered.length; i++) {
+			ordered[i] = columns.get(variables.get(i));
+		}
+		long[] out = new long[rows];
+		run(ordered, out, rows);
+		return out;
+	}
+
+	private void run(Object[] columns, long[] out, int rows) throws IllegalArgumentException {
+		if (columns.length < program.variables().size()) {
+			throw new IllegalArgumentException("Expected " + program.variables().size() + " columns");
+		}
+		for (int i = 0; i < program.variables().size(); i++) {
+			Object column = columns[i];
+			int length = column instanceof long[] ? ((long[]) column).length
+					: column instanceof int[] ? ((int[]) column).length : -1;
+			if (length < rows) {
+				throw new IllegalArgumentException("Column for " + program.variables().get(i) + " is missing or too short");
+			}
+		}
+
+		// the stack holds a constant, or a chunk of values in an array (a
+		// column, read in place, or the scratch array for that stack entry)
+		int depth = program.maxStack();
+		long[][] scratch = new long[depth][CHUNK];
+		boolean[] constant = new boolean[depth];
+		long[] values = new long[depth];
+		long[][] arrays = new long[depth][];
+		int[] offsets = new int[depth];
+
+		for (int start = 0; start < rows; start += CHUNK) {
+			int n = Math.min(CHUNK, rows - start);
+			int sp = 0;
+			for (int instruction : code) {
+				int operand = ExpressionProgram.operand(instruction);
+				switch (ExpressionProgram.op(instruction)) {
+				case ExpressionProgram.CONST:
+					constant[sp] = true;
+					values[sp] = constants[operand];
+					sp++;
+					break;
+				case ExpressionProgram.LOAD:
+					constant[sp] = false;
+					if (columns[operand] instanceof long[]) {
+						arrays[sp] = (long[]) columns[operand];
+						offsets[sp] = start;
+					} else {
+						widen((int[]) columns[operand], start, scratch[sp], n);
+						arrays[sp] = scratch[sp];
+						offsets[sp] = 0;
+					}
+					sp++;
+					break;
+				default:
+					sp--;
+					int left = sp - 1;
+					int op = ExpressionProgram.op(instruction);
+					if (constant[left] && constant[sp]) {
+						values[left] = apply(op, values[left], values[sp]);
+						break;
+					}
+					// the result goes in the left entry's scratch array, which
+					// is never the right operand's array
+					long[] result = scratch[left];
+					if (constant[sp]) {
+						applyRight(op, arrays[left], offsets[left], values[sp], result, n);
+					} else if (constant[left]) {
+						applyLeft(op, values[left], arrays[sp], offsets[sp], result, n);
+					} else {
+						apply(op, arrays[left], offsets[left], arrays[sp], offsets[sp], result, n);
+					}
+					constant[left] = false;
+					arrays[left] = result;
+					offsets[left] = 0;
+					break;
+				}
+			}
+			if (constant[0]) {
+				Arrays.fill(out, start, start + n, values[0]);
+			} else {
+				System.arraycopy(arrays[0], offsets[0], out, start, n);
+			}
+		}
+	}
+
+	private static long apply(int op, long left, long right) {
+		switch (op) {
+		case ExpressionProgram.ADD:
+			return left + right;
+		case ExpressionProgram.SUB:
+			return left - right;
+		default:
+			return left * right;
+		}
+	}
+
+	// the loops over a chunk, kept to one operation each so the JIT can
+	// vectorize them
+
+	private static void widen(int[] column, int start, long[] result, int n) {
+		for (int i = 0; i < n; i++) {
+			result[i] = column[start + i];
+		}
+	}
+
+	// left op right, for two chunks
+	private static void apply(int op, long[] left, int l, long[] right, int r, long[] result, int n) {
+		switch (op) {
+		case ExpressionProgram.ADD:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] + right[r + i];
+			}
+			break;
+		case ExpressionProgram.SUB:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] - right[r + i];
+			}
+			break;
+		default:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] * right[r + i];
+			}
+			break;
+		}
+	}
+
+	// left op right, for a chunk and a constant
+	private static void applyRight(int op, long[] left, int l, long right, long[] result, int n) {
+		switch (op) {
+		case ExpressionProgram.ADD:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] + right;
+			}
+			break;
+		case ExpressionProgram.SUB:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] - right;
+			}
+			break;
+		default:
+			for (int i = 0; i < n; i++) {
+				result[i] = left[l + i] * right;
+			}
+			break;
+		}
+	}
+
+	// left op right, for a constant and a chunk
+	private static void applyLeft(int op, long left, long[] right, int r, long[] result, int n) {
+		if (op == ExpressionProgram.SUB) {
+			for (int i = 0; i < n; i++) {
+				result[i] = left - right[r + i];
+			}
+		} else {
+			applyRight(op, right, r, left, result, n); // + and * commute
+		}
+	}
+}
@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import textbook.LinkedBinaryTree;
+
+/**
+ * Runs the same Assignment pipeline over many independent expressions in
+ * parallel: parse with prefix2tree, optionally simplify or simplifyFancy, then
+ * print with tree2prefix or tree2infix.
+ *
+ * The expressions are shared out across a ForkJoinPool with the given
+ * parallelism. An expression that fails (e.g. prefix2tree throws an
+ * IllegalArgumentException) only fails its own Result, the rest of the batch
+ * still runs. Results are always returned in the same order as the input.
+ *
+ * Example:
+ *
+ * try (ExpressionBatch batch = new ExpressionBatch(8, Simplification.SIMPLIFY, Notation.INFIX)) {
+ *     List<Result> results = batch.process(expressions);
+ * }
+ */
+public class ExpressionBatch implements AutoCloseable {
+
+	/** Which simplification to apply to each tree, if any */
+	public enum Simplification {
+		NONE, SIMPLIFY, SIMPLIFY_FANCY
+	}
+
+	/** How to print each tree */
+	public enum Notation {
+		PREFIX, INFIX
+	}
+
+	/**
+	 * The outcome of processing one expression: either the printed tree, or
+	 * the exception that stopped it.
+	 */
+	public static final class Result {
+		private final String input;
+		private final String output;
+		private final RuntimeException error;
+
+		private Result(String input, String output, RuntimeException error) {
+			this.input = input;
+			this.output = output;
+			this.error = error;
+		}
+
+		/** @return the expression this is the result for */
+		public String getInput() {
+			return input;
+		}
+
+		/** @return the processed expression, or null if it failed */
+		public String getOutput() {
+			return output;
+		}
+
+		/** @return the exception that stopped the expression, or null if it succeeded */
+		public RuntimeException getError() {
+			return error;
+		}
+
+		/** @return true if the expression was processed without error */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public String toString() {
+			return isSuccess() ? output : "error: " + error;
+		}
+	}
+
+	// below this many expressions a task runs them itself rather than splitting
+	private static final int THRESHOLD = 64;
+
+	private final ForkJoinPool pool;
+	private final Simplification simplification;
+	private final Notation notation;
+
+	/**
+	 * Create a batch processor with its own pool of worker threads. Call
+	 * close() when finished with it to stop the threads.
+	 *
+	 * @param parallelism
+	 *            - the number of worker threads
+	 * @param simplification
+	 *            - which simplification to apply to each expression
+	 * @param notation
+	 *            - how to print each simplified expression
+	 * @throws IllegalArgumentException
+	 *             if parallelism is not positive, or either of the other
+	 *             arguments are null
+	 */
+	public ExpressionBatch(int parallelism, Simplification simplification, Notation notation) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		if (simplification == null || notation == null) {
+			throw new IllegalArgumentException();
+		}
+		this.pool = new ForkJoinPool(parallelism);
+		this.simplification = simplification;
+		this.notation = notation;
+	}
+
+	/**
+	 * Create a batch processor using one worker thread per available processor
+	 *
+	 * @param simplification
+	 *            - which simplification to apply to each expression
+	 * @param notation
+	 *            - how to print each simplified expression
+	 */
+	public ExpressionBatch(Simplification simplification, Notation notation) {
+		this(Runtime.getRuntime().availableProcessors(), simplification, notation);
+	}
+
+	/** @return the number of worker threads */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Process every expression in parallel
+	 *
+	 * @param expressions
+	 *            - arithmetic expressions in prefix notation
+	 * @return one Result per expression, in the same order as the input
+	 * @throws IllegalArgumentException
+	 *             if expressions is null
+	 */
+	public List<Result> process(Collection<String> expressions) {
+		if (expressions == null) {
+			throw new IllegalArgumentException();
+		}
+		String[] inputs = expressions.toArray(new String[expressions.size()]);
+		Result[] results = new Result[inputs.length];
+		pool.invoke(new Task(inputs, results, 0, inputs.length));
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	/**
+	 * Process every expression of a stream in parallel. The stream is read to
+	 * the end before processing starts, so that the results can be put back in
+	 * order.
+	 *
+	 * @param expressions
+	 *            - arithmetic expressions in prefix notation
+	 * @return one Result per expression, in the same order as the stream
+	 * @throws IllegalArgumentException
+	 *             if expressions is null
+	 */
+	public List<Result> process(Stream<String> expressions) {
+		if (expressions == null) {
+			throw new IllegalArgumentException();
+		}
+		List<String> inputs = expressions.collect(Collectors.toList());
+		return process(inputs);
+	}
+
+	/**
+	 * Process one expression on the caller's thread
+	 *
+	 * @param expression
+	 *            - an arithmetic expression in prefix notation
+	 * @return the Result for the expression
+	 */
+	public Result process(String expression) {
+		try {
+			LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+			switch (simplification) {
+			case SIMPLIFY:
+				tree = Assignment.simplify(tree);
+				break;
+			case SIMPLIFY_FANCY:
+				tree = Assignment.simplifyFancy(tree);
+				break;
+			default:
+				break;
+			}
+			String output = notation == Notation.PREFIX ? Assignment.tree2prefix(tree) : Assignment.tree2infix(tree);
+			return new Result(expression, output, null);
+		} catch (RuntimeException e) {
+			return new Result(expression, null, e);
+		}
+	}
+
+	/** Stops the worker threads. Expressions already being processed are finished. */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	// process inputs[from, to) into results[from, to), splitting in half
+	// while there are more than THRESHOLD expressions
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final String[] inputs;
+		private final Result[] results;
+		private final int from;
+		private final int to;
+
+		Task(String[] inputs, Result[] results, int from, int to) {
+			this.inputs = inputs;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					results[i] = process(inputs[i]);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(inputs, results, from, mid), new Task(inputs, results, mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,513 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import textbook.BinaryTree;
+import textbook.LinkedBinaryTree;
+import textbook.MutableBinaryTree;
+import textbook.TreeCursor;
+
+/**
+ * A compact binary encoding of expression trees, to pass them between programs
+ * without writing them out with tree2prefix and parsing them again with
+ * prefix2tree.
+ *
+ * An encoded tree is a header followed by its nodes in prefix order, one
+ * opcode byte per node:
+ *
+ * - header: the bytes 'E' 'X' 'P' and the format version (1)
+ *
+ * - 0, 1, 2: the operators +, - and *, each followed by its left and right
+ * operands
+ *
+ * - 8 to 255: the integer literals 0 to 247
+ *
+ * - 3: any other integer literal that fits in a long, followed by its value as
+ * a zigzag varint
+ *
+ * - 4: a symbol seen for the first time, followed by its length in bytes as a
+ * varint, and its UTF-8 bytes. Symbols are numbered from 0 in the order they
+ * are first seen, forming a dictionary that is built up as the tree is read
+ *
+ * - 5: a symbol seen before, followed by its number as a varint
+ *
+ * Varints are little endian base 128, as in protocol buffers. Symbols are
+ * variables, and also numbers that are not written the way Long.toString would
+ * write them (e.g. "007"), so every element comes back exactly as it was.
+ *
+ * Nothing is read past the end of a tree, so several trees can be written one
+ * after the other to the same stream. Neither writing nor reading uses
+ * recursion, so any depth of tree can be encoded.
+ */
+public final class ExpressionCodec {
+
+	/** The version of the format written by this class */
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = ('E' << 16) | ('X' << 8) | 'P';
+
+	// opcodes
+	private static final int PLUS = 0;
+	private static final int MINUS = 1;
+	private static final int TIMES = 2;
+	private static final int LITERAL = 3;
+	private static final int NEW_SYMBOL = 4;
+	private static final int SYMBOL = 5;
+	private static final int SMALL_LITERAL = 8;
+
+	// bytes gathered before they are written out
+	private static final int CHUNK_SIZE = 8192;
+
+	// the literals with an opcode of their own, shared as the operators are
+	private static final String[] SMALL_LITERALS = new String[256 - SMALL_LITERAL];
+
+	static {
+		for (int i = 0; i < SMALL_LITERALS.length; i++) {
+			SMALL_LITERALS[i] = Integer.toString(i);
+		}
+	}
+
+	private ExpressionCodec() {
+	}
+
+	/**
+	 * Encode an expression tree into a new byte array
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the encoded tree
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 */
+	public static byte[] encode(BinaryTree<String> tree) throws IllegalArgumentException {
+		Encoder encoder = new Encoder(null, null);
+		try {
+			encoder.write(tree);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // only a DataOutput can fail
+		}
+		return Arrays.copyOf(encoder.chunk, encoder.count);
+	}
+
+	/**
+	 * Decode an expression tree from a byte array
+	 *
+	 * @param bytes
+	 *            - an encoded expression tree
+	 * @return the decoded tree
+	 * @throws IllegalArgumentException
+	 *             if bytes doesn't hold an encoded expression, or ends before
+	 *             the tree does
+	 */
+	public static LinkedBinaryTree<String> decode(byte[] bytes) throws IllegalArgumentException {
+		try {
+			return read(ByteBuffer.wrap(bytes));
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Encoded expression was truncated");
+		}
+	}
+
+	/**
+	 * Write an expression tree to a DataOutput. If the tree turns out not to
+	 * be a valid expression, part of it may already have been written.
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the encoded tree
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void write(BinaryTree<String> tree, DataOutput out) throws IllegalArgumentException, IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output was null");
+		}
+		new Encoder(out, null).write(tree);
+	}
+
+	/**
+	 * Write an expression tree to a ByteBuffer, from its current position
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the encoded tree
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 * @throws BufferOverflowException
+	 *             if the tree doesn't fit in the remaining space
+	 */
+	public static void write(BinaryTree<String> tree, ByteBuffer out) throws IllegalArgumentException {
+		if (out == null) {
+			throw new IllegalArgumentException("Buffer was null");
+		}
+		try {
+			new Encoder(null, out).write(tree);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // only a DataOutput can fail
+		}
+	}
+
+	/**
+	 * Read an expression tree from a DataInput, stopping at the end of the tree
+	 *
+	 * @param in
+	 *            - where to read the encoded tree from
+	 * @return the decoded tree
+	 * @throws IllegalArgumentException
+	 *             if in doesn't hold an encoded expression
+	 * @throws IOException
+	 *             if in fails, or ends before the tree does
+	 */
+	public static LinkedBinaryTree<String> read(DataInput in) throws IllegalArgumentException, IOException {
+		return read(in, new ExpressionTree());
+	}
+
+	/**
+	 * Read an expression tree from a DataInput into the given empty tree
+	 *
+	 * @param in
+	 *            - where to read the encoded tree from
+	 * @param tree
+	 *            - an empty tree to build the expression in
+	 * @return the tree, now representing the expression
+	 * @throws IllegalArgumentException
+	 *             if in doesn't hold an encoded expression, or the tree was not
+	 *             empty
+	 * @throws IOException
+	 *             if in fails, or ends before the tree does
+	 */
+	public static <T extends MutableBinaryTree<String>> T read(DataInput in, T tree)
+			throws IllegalArgumentException, IOException {
+		if (in == null) {
+			throw new IllegalArgumentException("Input was null");
+		}
+		if (tree == null || !tree.isEmpty()) {
+			throw new IllegalArgumentException("Tree must be empty");
+		}
+		try {
+			return Assignment.prefix2tree(new Decoder(in, null), tree);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Read an expression tree from a ByteBuffer, from its current position to
+	 * the end of the tree
+	 *
+	 * @param in
+	 *            - where to read the encoded tree from
+	 * @return the decoded tree
+	 * @throws IllegalArgumentException
+	 *             if in doesn't hold an encoded expression
+	 * @throws BufferUnderflowException
+	 *             if the buffer ends before the tree does
+	 */
+	public static LinkedBinaryTree<String> read(ByteBuffer in) throws IllegalArgumentException {
+		return read(in, new ExpressionTree());
+	}
+
+	/**
+	 * Read an expression tree from a ByteBuffer into the given empty tree
+	 *
+	 * @param in
+	 *            - where to read the encoded tree from
+	 * @param tree
+	 *            - an empty tree to build the expression in
+	 * @return the tree, now representing the expression
+	 * @throws IllegalArgumentException
+	 *             if in doesn't hold an encoded expression, or the tree was not
+	 *             empty
+	 * @throws BufferUnderflowException
+	 *             if the buffer ends before the tree does
+	 */
+	public static <T extends MutableBinaryTree<String>> T read(ByteBuffer in, T tree) throws IllegalArgumentException {
+		if (in == null) {
+			throw new IllegalArgumentException("Buffer was null");
+		}
+		if (tree == null || !tree.isEmpty()) {
+			throw new IllegalArgumentException("Tree must be empty");
+		}
+		return Assignment.prefix2tree(new Decoder(null, in), tree);
+	}
+
+	// writes one tree to either a DataOutput, a ByteBuffer, or (if neither is
+	// given) a byte array. The bytes are gathered in a chunk and handed over a
+	// chunk at a time, rather than a byte at a time
+	private static final class Encoder {
+		private final DataOutput out;
+		private final ByteBuffer buffer;
+		private final HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+		private byte[] chunk = new byte[CHUNK_SIZE];
+		private int count = 0; // bytes used in chunk
+
+		Encoder(DataOutput out, ByteBuffer buffer) {
+			this.out = out;
+			this.buffer = buffer;
+		}
+
+		// walk the tree in prefix order with a cursor, remembering on the way
+		// down whether each step was to a left child
+		void write(BinaryTree<String> tree) throws IOException {
+			if (tree == null || tree.isEmpty()) {
+				throw new IllegalArgumentException("Tree was null or empty");
+			}
+			writeByte(MAGIC >>> 16);
+			writeByte(MAGIC >>> 8);
+			writeByte(MAGIC);
+			writeByte(VERSION);
+
+			TreeCursor<String> cursor = TreeCursor.of(tree);
+			boolean[] wentLeft = new boolean[64];
+			int depth = 0;
+			while (true) {
+				String element = cursor.element();
+				boolean operator = writeNode(element, ExpressionTree.term(cursor));
+				if (cursor.numChildren() != (operator ? 2 : 0)) {
+					throw new IllegalArgumentException("Tree was not a valid expression at " + element);
+				}
+				if (operator) {
+					if (depth == wentLeft.length) {
+						wentLeft = Arrays.copyOf(wentLeft, 2 * depth);
+					}
+					wentLeft[depth++] = true;
+					cursor.toLeft();
+					continue;
+				}
+				// climb to the first ancestor whose right subtree is still to come
+				while (depth > 0 && !wentLeft[depth - 1]) {
+					depth--;
+					cursor.toParent();
+				}
+				if (depth == 0) {
+					if (out != null || buffer != null) {
+						flush();
+					}
+					return;
+				}
+				wentLeft[depth - 1] = false;
+				cursor.toSibling();
+			}
+		}
+
+		// returns true if the element was an operator
+		private boolean writeNode(String element, Term kind) throws IOException {
+			switch (kind) {
+			case PLUS:
+				writeByte(PLUS);
+				return true;
+			case MINUS:
+				writeByte(MINUS);
+				return true;
+			case TIMES:
+				writeByte(TIMES);
+				return true;
+			case LITERAL:
+				if (isCanonical(element)) {
+					long value = Long.parseLong(element);
+					if (value >= 0 && value < SMALL_LITERALS.length) {
+						writeByte(SMALL_LITERAL + (int) value);
+					} else {
+						writeByte(LITERAL);
+						writeVarLong((value << 1) ^ (value >> 63));
+					}
+					return false;
+				}
+				break;
+			default:
+				break;
+			}
+			Integer id = symbols.get(element);
+			if (id != null) {
+				writeByte(SYMBOL);
+				writeVarLong(id);
+			} else {
+				symbols.put(element, symbols.size());
+				byte[] utf8 = element.getBytes(StandardCharsets.UTF_8);
+				writeByte(NEW_SYMBOL);
+				writeVarLong(utf8.length);
+				for (byte b : utf8) {
+					writeByte(b);
+				}
+			}
+			return false;
+		}
+
+		// check that a literal is written the way Long.toString would write it,
+		// so that it comes back the same. Only the longest literals need to be
+		// parsed to check that they fit in a long
+		private static boolean isCanonical(String literal) {
+			int start = literal.charAt(0) == '-' ? 1 : 0;
+			if (literal.charAt(start) == '0' && (start == 1 || literal.length() > 1)) {
+				return false;
+			}
+			if (literal.length() - start <= 18) {
+				return true;
+			}
+			try {
+				return Long.toString(Long.parseLong(literal)).equals(literal);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		private void writeByte(int b) throws IOException {
+			if (count == chunk.length) {
+				flush();
+			}
+			chunk[count++] = (byte) b;
+		}
+
+		// empty the chunk into the output, or make room for more when
+		// encoding to an array
+		private void flush() throws IOException {
+			if (out != null) {
+				out.write(chunk, 0, count);
+			} else if (buffer != null) {
+				buffer.put(chunk, 0, count);
+			} else {
+				chunk = Arrays.copyOf(chunk, 2 * chunk.length);
+				return;
+			}
+			count = 0;
+		}
+	}
+
+	// reads the tokens of one tree from either a DataInput or a ByteBuffer, for
+	// Assignment.prefix2tree to build the tree from. A token is only read when
+	// it is asked for, so nothing past the end of the tree is consumed
+	private static final class Decoder implements Iterator<String> {
+		private final DataInput in;
+		private final ByteBuffer buffer;
+		private final ArrayList<String> symbols = new ArrayList<String>();
+		private byte[] bytes = new byte[64]; // bytes of a new symbol
+
+		Decoder(DataInput in, ByteBuffer buffer) {
+			this.in = in;
+			this.buffer = buffer;
+			int magic = (readByte() << 16) | (readByte() << 8) | readByte();
+			if (magic != MAGIC) {
+				throw new IllegalArgumentException("Not an encoded expression");
+			}
+			int version = readByte();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported version " + version);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return true; // the tree decides when it is complete
+		}
+
+		@Override
+		public String next() {
+			int opcode = readByte();
+			switch (opcode) {
+			case PLUS:
+				return PrefixTokenizer.operator('+');
+			case MINUS:
+				return PrefixTokenizer.operator('-');
+			case TIMES:
+				return PrefixTokenizer.operator('*');
+			case LITERAL:
+				long zigzag = readVarLong();
+				return Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+			case NEW_SYMBOL:
+				long length = readVarLong();
+				if (length < 0 || length > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Bad symbol length " + length);
+				}
+				readSymbol((int) length);
+				String name = new String(bytes, 0, (int) length, StandardCharsets.UTF_8);
+				name = PrefixTokenizer.isNumber(name) ? name : SymbolTable.canonical(name);
+				symbols.add(name);
+				return name;
+			case SYMBOL:
+				long id = readVarLong();
+				if (id < 0 || id >= symbols.size()) {
+					throw new IllegalArgumentException("Undefined symbol " + id);
+				}
+				return symbols.get((int) id);
+			default:
+				if (opcode < SMALL_LITERAL) {
+					throw new IllegalArgumentException("Bad opcode " + opcode);
+				}
+				return SMALL_LITERALS[opcode - SMALL_LITERAL];
+			}
+		}
+
+		private long readVarLong() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Varint too long");
+		}
+
+		private int readByte() {
+			if (buffer != null) {
+				return buffer.get() & 0xFF;
+			}
+			try {
+				return in.readUnsignedByte();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// reads the bytes of a new symbol into bytes. The length comes from the
+		// input, so it is checked against what a buffer holds before making
+		// room for it, and a stream's bytes are taken in steps that at most
+		// double what has arrived so far
+		private void readSymbol(int length) {
+			if (buffer != null) {
+				if (length > buffer.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				if (length > bytes.length) {
+					bytes = new byte[(int) Math.max(length, Math.min(2L * bytes.length, Integer.MAX_VALUE))];
+				}
+				buffer.get(bytes, 0, length);
+				return;
+			}
+			try {
+				int done = 0;
+				while (done < length) {
+					if (done == bytes.length) {
+						bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+					}
+					int step = Math.min(length, bytes.length) - done;
+					in.readFully(bytes, done, step);
+					done += step;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
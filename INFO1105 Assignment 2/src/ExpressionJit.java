@@ -0,0 +1,421 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import textbook.BinaryTree;
+
+/**
+ * Compiles expressions to JVM bytecode, so that the JIT can compile a whole
+ * expression into straight-line machine code, with the values kept in
+ * registers rather than on an ExpressionProgram's stack.
+ *
+ * compile() translates the ExpressionProgram for an expression into a class
+ * of its own, whose eval method is the program written out as bytecode: one
+ * load of a constant or a variable, or one arithmetic instruction, per
+ * program instruction, with no loop and no branches. The class is written
+ * here and defined with a class loader of its own, so that it can be
+ * unloaded once it is no longer used.
+ *
+ * Compiled classes are cached by the structure of the program (its
+ * instructions and constants), not the names of its variables, so
+ * expressions that differ only in their variable names share a class. The
+ * cache holds the most recently used CACHE_SIZE classes.
+ *
+ * HotSpot doesn't JIT compile methods of more than 8000 bytes of bytecode,
+ * and running a big method in the bytecode interpreter is slower than
+ * running the program in ExpressionProgram's loop. So programs longer than
+ * MAX_INSTRUCTIONS are not translated; they get an Evaluator which runs the
+ * ExpressionProgram instead.
+ *
+ * Example:
+ *
+ * ExpressionJit.Evaluator f = ExpressionJit.compile(Assignment.prefix2tree("- * 2 x y"));
+ * long value = f.eval(new long[] { 5, 3 }); // 7
+ */
+public final class ExpressionJit {
+
+	/** A compiled expression */
+	public interface Evaluator {
+		/**
+		 * Evaluate the expression, with the same long arithmetic as
+		 * ExpressionProgram.evaluate
+		 *
+		 * @param vars
+		 *            - the value of each variable, by its slot in the
+		 *            ExpressionProgram
+		 * @return the value of the expression
+		 * @throws RuntimeException
+		 *             (an IllegalArgumentException or an
+		 *             ArrayIndexOutOfBoundsException) if there are fewer values
+		 *             than variables
+		 */
+		long eval(long[] vars);
+	}
+
+	/** The longest program that is translated to bytecode */
+	public static final int MAX_INSTRUCTIONS = 1500;
+
+	/** The number of compiled classes kept in the cache */
+	public static final int CACHE_SIZE = 256;
+
+	private static final String EVALUATOR = Evaluator.class.getName().replace('.', '/');
+
+	// least recently used first
+	private static final Map<Shape, Evaluator> cache = new LinkedHashMap<Shape, Evaluator>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Shape, Evaluator> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	private static final AtomicInteger generated = new AtomicInteger(); // names the compiled classes
+
+	private ExpressionJit() {
+	}
+
+	/**
+	 * Compile an expression tree to bytecode (or, if it is too long, to an
+	 * ExpressionProgram). The variables are numbered as ExpressionProgram
+	 * numbers them.
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the compiled expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or has a number that
+	 *             doesn't fit in a long
+	 */
+	public static Evaluator compile(BinaryTree<String> tree) throws IllegalArgumentException {
+		return compile(ExpressionProgram.compile(tree));
+	}
+
+	/**
+	 * Compile an ExpressionProgram to bytecode, or return an Evaluator which
+	 * runs the program if it is longer than MAX_INSTRUCTIONS
+	 *
+	 * @param program
+	 *            - a compiled expression
+	 * @return the compiled expression
+	 */
+	public static Evaluator compile(final ExpressionProgram program) {
+		if (program.length() > MAX_INSTRUCTIONS) {
+			return new Evaluator() {
+				public long eval(long[] vars) {
+					return program.evaluate(vars);
+				}
+			};
+		}
+		Shape shape = new Shape(program.code(), program.constants());
+		synchronized (cache) {
+			Evaluator evaluator = cache.get(shape);
+			if (evaluator != null) {
+				return evaluator;
+			}
+		}
+		// generate the class without holding the lock, so other threads can
+		// use the cache meanwhile. Two threads may both generate the same
+		// shape; the first one cached is kept
+		Evaluator evaluator = generate(program, "GeneratedExpression" + generated.getAndIncrement());
+		synchronized (cache) {
+			Evaluator existing = cache.get(shape);
+			if (existing != null) {
+				return existing;
+			}
+			cache.put(shape, evaluator);
+			return evaluator;
+		}
+	}
+
+	// the cache key: the instructions and constants of a program
+	private static final class Shape {
+		private final int[] code;
+		private final long[] constants;
+		private final int hash;
+
+		Shape(int[] code, long[] constants) {
+			this.code = code;
+			this.constants = constants;
+			this.hash = 31 * Arrays.hashCode(code) + Arrays.hashCode(constants);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Shape)) {
+				return false;
+			}
+			Shape other = (Shape) o;
+			return hash == other.hash && Arrays.equals(code, other.code) && Arrays.equals(constants, other.constants);
+		}
+	}
+
+	// each compiled class has a loader of its own, so it can be unloaded
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(ExpressionJit.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static Evaluator generate(ExpressionProgram program, String name) {
+		byte[] bytes = new ClassWriter(name).write(program);
+		try {
+			return (Evaluator) new Loader().define(name, bytes).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Generated class " + name + " could not be used", e);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// class file writing
+
+	// constant pool tags
+	private static final int UTF8 = 1;
+	private static final int INTEGER = 3;
+	private static final int LONG = 5;
+	private static final int CLASS = 7;
+	private static final int METHODREF = 10;
+	private static final int NAME_AND_TYPE = 12;
+
+	// the bytecode instructions used
+	private static final int ICONST_0 = 0x03;
+	private static final int LCONST_0 = 0x09;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int LALOAD = 0x2f;
+	private static final int LADD = 0x61;
+	private static final int LSUB = 0x65;
+	private static final int LMUL = 0x69;
+	private static final int I2L = 0x85;
+	private static final int LRETURN = 0xad;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	// writes a class file (version 52, i.e. Java 8) for
+	// public final class <name> implements ExpressionJit.Evaluator
+	private static final class ClassWriter {
+		private final String name;
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		private final DataOutputStream poolOut = new DataOutputStream(pool);
+		private final Map<String, Integer> entries = new HashMap<String, Integer>();
+		private int poolCount = 1; // entries are numbered from 1
+
+		ClassWriter(String name) {
+			this.name = name;
+		}
+
+		byte[] write(ExpressionProgram program) {
+			try {
+				// write the methods first, so the pool is complete when the
+				// class file is put together
+				int thisClass = classEntry(name);
+				int superClass = classEntry("java/lang/Object");
+				int evaluator = classEntry(EVALUATOR);
+				byte[] init = method(ACC_PUBLIC, "<init>", "()V", 1, 1, constructor());
+				byte[] eval = method(ACC_PUBLIC, "eval", "([J)J", 2 * program.maxStack() + 2, 2, eval(program));
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + init.length + eval.length + 64);
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(52);
+				out.writeShort(poolCount);
+				pool.writeTo(out);
+				out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(1);
+				out.writeShort(evaluator);
+				out.writeShort(0); // fields
+				out.writeShort(2); // methods
+				out.write(init);
+				out.write(eval);
+				out.writeShort(0); // attributes
+				out.flush();
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e); // a ByteArrayOutputStream can't fail
+			}
+		}
+
+		private byte[] constructor() throws IOException {
+			int object = methodEntry("java/lang/Object", "<init>", "()V");
+			return new byte[] { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (object >> 8), (byte) object, (byte) RETURN };
+		}
+
+		// the program, one or a few bytecodes per instruction
+		private byte[] eval(ExpressionProgram program) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(5 * program.length() + 1);
+			DataOutputStream code = new DataOutputStream(bytes);
+			long[] constants = program.constants();
+			for (int instruction : program.code()) {
+				int operand = ExpressionProgram.operand(instruction);
+				switch (ExpressionProgram.op(instruction)) {
+				case ExpressionProgram.CONST:
+					pushLong(code, constants[operand]);
+					break;
+				case ExpressionProgram.LOAD:
+					code.writeByte(ALOAD_1);
+					pushInt(code, operand);
+					code.writeByte(LALOAD);
+					break;
+				case ExpressionProgram.ADD:
+					code.writeByte(LADD);
+					break;
+				case ExpressionProgram.SUB:
+					code.writeByte(LSUB);
+					break;
+				default:
+					code.writeByte(LMUL);
+					break;
+				}
+			}
+			code.writeByte(LRETURN);
+			code.flush();
+			return bytes.toByteArray();
+		}
+
+		private void pushLong(DataOutputStream code, long value) throws IOException {
+			if (value == 0 || value == 1) {
+				code.writeByte(LCONST_0 + (int) value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				pushInt(code, (int) value);
+				code.writeByte(I2L);
+			} else {
+				code.writeByte(LDC2_W);
+				code.writeShort(longEntry(value));
+			}
+		}
+
+		private void pushInt(DataOutputStream code, int value) throws IOException {
+			if (value >= -1 && value <= 5) {
+				code.writeByte(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				code.writeByte(BIPUSH);
+				code.writeByte(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.writeByte(SIPUSH);
+				code.writeShort(value);
+			} else {
+				code.writeByte(LDC_W);
+				code.writeShort(intEntry(value));
+			}
+		}
+
+		// a method_info with just a Code attribute, with no exception table
+		// (and, as there are no branches, no stack map)
+		private byte[] method(int access, String method, String descriptor, int maxStack, int maxLocals, byte[] code)
+				throws IOException {
+			int nameIndex = utf8Entry(method);
+			int descriptorIndex = utf8Entry(descriptor);
+			int codeIndex = utf8Entry("Code");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.length + 32);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeShort(access);
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+			out.writeShort(1);
+			out.writeShort(codeIndex);
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		// constant pool entries, each written once
+
+		private int utf8Entry(String text) throws IOException {
+			Integer index = entries.get("U" + text);
+			if (index == null) {
+				index = add("U" + text, 1);
+				poolOut.writeByte(UTF8);
+				poolOut.writeUTF(text);
+			}
+			return index;
+		}
+
+		private int classEntry(String internalName) throws IOException {
+			Integer index = entries.get("C" + internalName);
+			if (index == null) {
+				int nameIndex = utf8Entry(internalName);
+				index = add("C" + internalName, 1);
+				poolOut.writeByte(CLASS);
+				poolOut.writeShort(nameIndex);
+			}
+			return index;
+		}
+
+		private int methodEntry(String owner, String method, String descriptor) throws IOException {
+			String key = "M" + owner + "." + method + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				int ownerIndex = classEntry(owner);
+				int nameIndex = utf8Entry(method);
+				int descriptorIndex = utf8Entry(descriptor);
+				int nameAndType = add("N" + method + descriptor, 1);
+				poolOut.writeByte(NAME_AND_TYPE);
+				poolOut.writeShort(nameIndex);
+				poolOut.writeShort(descriptorIndex);
+				index = add(key, 1);
+				poolOut.writeByte(METHODREF);
+				poolOut.writeShort(ownerIndex);
+				poolOut.writeShort(nameAndType);
+			}
+			return index;
+		}
+
+		private int intEntry(int value) throws IOException {
+			Integer index = entries.get("I" + value);
+			if (index == null) {
+				index = add("I" + value, 1);
+				poolOut.writeByte(INTEGER);
+				poolOut.writeInt(value);
+			}
+			return index;
+		}
+
+		private int longEntry(long value) throws IOException {
+			Integer index = entries.get("J" + value);
+			if (index == null) {
+				index = add("J" + value, 2); // a long takes two entries
+				poolOut.writeByte(LONG);
+				poolOut.writeLong(value);
+			}
+			return index;
+		}
+
+		private int add(String key, int slots) {
+			int index = poolCount;
+			poolCount += slots;
+			entries.put(key, index);
+			return index;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import textbook.BinaryTree;
+import textbook.EulerTour;
+import textbook.EulerVisitor;
+import textbook.TreeCursor;
+
+/**
+ * An arithmetic expression compiled to a postfix (reverse Polish) program,
+ * for evaluating the same expression against many sets of variable values.
+ *
+ * The program is an int array of instructions, a pool of long constants and
+ * a list of variables, each of which has a slot: its index in the bindings
+ * array passed to evaluate. Each instruction holds an opcode in its low 3 bits
+ * and an operand (the index of a constant, or a variable's slot) above them.
+ * Evaluating runs the instructions once over a stack of longs, without
+ * touching any Strings and without allocating anything.
+ *
+ * Subtrees without variables are folded into single constants when the
+ * program is compiled. Arithmetic is on longs, wrapping on overflow, so
+ * results agree with substitute and simplify (which use ints) as long as
+ * no intermediate value overflows an int.
+ *
+ * Example:
+ *
+ * ExpressionProgram program = ExpressionProgram.compile(Assignment.prefix2tree("- * 2 x y"));
+ * long[] bindings = new long[program.variables().size()];
+ * long[] stack = program.newStack();
+ * bindings[program.slot("x")] = 5;
+ * bindings[program.slot("y")] = 3;
+ * long value = program.evaluate(bindings, stack); // 7
+ *
+ * A program never changes once compiled, so it can be shared between
+ * threads, as long as each thread has its own stack.
+ */
+public final class ExpressionProgram {
+
+	// opcodes, in the low bits of an instruction (ExpressionJit translates them)
+	static final int OP_BITS = 3;
+	static final int OP_MASK = (1 << OP_BITS) - 1;
+	static final int CONST = 0;
+	static final int LOAD = 1;
+	static final int ADD = 2;
+	static final int SUB = 3;
+	static final int MUL = 4;
+
+	private final int[] code;
+	private final long[] constants;
+	private final String[] variables;
+	private final int maxStack;
+
+	private ExpressionProgram(int[] code, long[] constants, String[] variables, int maxStack) {
+		this.code = code;
+		this.constants = constants;
+		this.variables = variables;
+		this.maxStack = maxStack;
+	}
+
+	/**
+	 * Compile an expression tree. Variables get slots in the order in which
+	 * they first appear in the expression.
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the program
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or has a number that
+	 *             doesn't fit in a long
+	 */
+	public static ExpressionProgram compile(BinaryTree<String> tree) throws IllegalArgumentException {
+		if (tree == null || tree.isEmpty() || !Assignment.isArithmeticExpression(tree)) {
+			throw new IllegalArgumentException();
+		}
+		Compiler compiler = new Compiler(tree.size());
+		EulerTour.tour(tree, compiler);
+		return compiler.finish();
+	}
+
+	// emits each node on its POST visit, which is postfix order. The stack
+	// depth is followed as the code is emitted, to find how much stack the
+	// program needs
+	private static final class Compiler implements EulerVisitor<String> {
+		private int[] code;
+		private int length = 0;
+		private long[] constants = new long[16];
+		private int constantCount = 0;
+		private final Map<Long, Integer> constantIndex = new HashMap<Long, Integer>();
+		private final List<String> variables = new ArrayList<String>();
+		private final Map<String, Integer> slots = new HashMap<String, Integer>();
+		private int depth = 0;
+		private int maxStack = 0;
+
+		Compiler(int nodes) {
+			code = new int[nodes];
+		}
+
+		public int visits() {
+			return EulerTour.POST;
+		}
+
+		public boolean onPost(TreeCursor<String> node) {
+			String element = node.element();
+			Term kind = ExpressionTree.term(node);
+			if (kind == Term.LITERAL) {
+				constant(parse(element));
+			} else if (kind == Term.VARIABLE) {
+				Integer slot = slots.get(element);
+				if (slot == null) {
+					slot = variables.size();
+					slots.put(element, slot);
+					variables.add(element);
+				}
+				emit(LOAD, slot);
+			} else if (length >= 2 && op(code[length - 1]) == CONST && op(code[length - 2]) == CONST) {
+				// both operands are constants (nothing else can come just
+				// before an operator), so work it out now
+				long right = constants[operand(code[length - 1])];
+				long left = constants[operand(code[length - 2])];
+				length -= 2;
+				depth -= 2;
+				constant(apply(kind == Term.PLUS ? ADD : kind == Term.MINUS ? SUB : MUL, left, right));
+			} else {
+				code[length++] = kind == Term.PLUS ? ADD : kind == Term.MINUS ? SUB : MUL;
+				depth--;
+			}
+			return true;
+		}
+
+		private void constant(long value) {
+			Integer index = constantIndex.get(value);
+			if (index == null) {
+				if (constantCount == constants.length) {
+					constants = Arrays.copyOf(constants, 2 * constantCount);
+				}
+				index = constantCount;
+				constants[constantCount++] = value;
+				constantIndex.put(value, index);
+			}
+			emit(CONST, index);
+		}
+
+		private void emit(int op, int operand) {
+			code[length++] = (operand << OP_BITS) | op;
+			maxStack = Math.max(maxStack, ++depth);
+		}
+
+		ExpressionProgram finish() {
+			return new ExpressionProgram(Arrays.copyOf(code, length), Arrays.copyOf(constants, constantCount),
+					variables.toArray(new String[variables.size()]), maxStack);
+		}
+	}
+
+	private static long parse(String literal) {
+		try {
+			return Long.parseLong(literal);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Number too large: " + literal);
+		}
+	}
+
+	static int op(int instruction) {
+		return instruction & OP_MASK;
+	}
+
+	static int operand(int instruction) {
+		return instruction >>> OP_BITS;
+	}
+
+	private static long apply(int op, long left, long right) {
+		switch (op) {
+		case ADD:
+			return left + right;
+		case SUB:
+			return left - right;
+		default:
+			return left * right;
+		}
+	}
+
+	/**
+	 * @return the variables of the expression; the slot of each is its index
+	 *         in this list
+	 */
+	public List<String> variables() {
+		return Collections.unmodifiableList(Arrays.asList(variables));
+	}
+
+	/**
+	 * Find the slot of a variable, i.e. where its value goes in the bindings
+	 *
+	 * @param variable
+	 *            - a variable label
+	 * @return its slot, or -1 if it isn't in the expression
+	 */
+	public int slot(String variable) {
+		for (int i = 0; i < variables.length; i++) {
+			if (variables[i].equals(variable)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Make a bindings array from a map of variable values
+	 *
+	 * @param values
+	 *            - a map of variable labels to values
+	 * @return the value of each variable, by slot
+	 * @throws IllegalArgumentException
+	 *             if a variable of the expression has no value in the map
+	 */
+	public long[] bindings(Map<String, ? extends Number> values) throws IllegalArgumentException {
+		long[] bindings = new long[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			Number value = values.get(variables[i]);
+			if (value == null) {
+				throw new IllegalArgumentException("No value for " + variables[i]);
+			}
+			bindings[i] = value.longValue();
+		}
+		return bindings;
+	}
+
+	// the program itself, for ExpressionJit. Neither array may be changed
+	int[] code() {
+		return code;
+	}
+
+	long[] constants() {
+		return constants;
+	}
+
+	/** @return the number of instructions in the program */
+	public int length() {
+		return code.length;
+	}
+
+	/** @return how many values the program has on its stack at most */
+	public int maxStack() {
+		return maxStack;
+	}
+
+	/** @return a stack big enough to evaluate the program with */
+	public long[] newStack() {
+		return new long[maxStack];
+	}
+
+	/**
+	 * Evaluate the expression, allocating a stack for it. To evaluate it
+	 * many times, use evaluate(bindings, stack) with a stack from newStack()
+	 *
+	 * @param bindings
+	 *            - the value of each variable, by slot
+	 * @return the value of the expression
+	 * @throws IllegalArgumentException
+	 *             if there are fewer bindings than variables
+	 */
+	public long evaluate(long[] bindings) throws IllegalArgumentException {
+		return evaluate(bindings, newStack());
+	}
+
+	/**
+	 * Evaluate the expression. Nothing is allocated.
+	 *
+	 * @param bindings
+	 *            - the value of each variable, by slot
+	 * @param stack
+	 *            - room for the program's stack, at least maxStack() long
+	 * @return the value of the expression
+	 * @throws IllegalArgumentException
+	 *             if there are fewer bindings than variables, or the stack is
+	 *             too small
+	 */
+	public long evaluate(long[] bindings, long[] stack) throws IllegalArgumentException {
+		if (bindings.length < variables.length || stack.length < maxStack) {
+			throw new IllegalArgumentException();
+		}
+		int[] code = this.code;
+		long[] constants = this.constants;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			int instruction = code[pc];
+			switch (instruction & OP_MASK) {
+			case CONST:
+				stack[sp++] = constants[instruction >>> OP_BITS];
+				break;
+			case LOAD:
+				stack[sp++] = bindings[instruction >>> OP_BITS];
+				break;
+			case ADD:
+				sp--;
+				stack[sp - 1] += stack[sp];
+				break;
+			case SUB:
+				sp--;
+				stack[sp - 1] -= stack[sp];
+				break;
+			default:
+				sp--;
+				stack[sp - 1] *= stack[sp];
+				break;
+			}
+		}
+		return stack[0];
+	}
+}
@@ -0,0 +1,75 @@
+import textbook.LinkedBinaryTree;
+import textbook.Position;
+import textbook.TreeCursor;
+
+/**
+ * A LinkedBinaryTree for expressions, whose nodes are classified once: each
+ * node holds the Term of its element, worked out when the node is created or
+ * its element is replaced. Walks over the tree ask the cursor for the Term
+ * (see term), instead of looking at the node's String on every visit.
+ *
+ * prefix2tree and ExpressionCodec build their trees as ExpressionTrees. On any
+ * other tree, term falls back to classifying the element with Term.of.
+ */
+public class ExpressionTree extends LinkedBinaryTree<String> {
+
+	/**
+	 * Construct an empty expression tree
+	 */
+	public ExpressionTree() {
+	}
+
+	/**
+	 * Returns the kind of term at a cursor. On an ExpressionTree it is read
+	 * from the node, anywhere else the element is classified.
+	 *
+	 * @param at
+	 *            - a cursor on a node of an expression
+	 * @return the kind of term of the element at the cursor
+	 */
+	public static Term term(TreeCursor<String> at) {
+		if (at instanceof TermCursor) {
+			return ((TermCursor) at).term();
+		}
+		return Term.of(at.element());
+	}
+
+	@Override
+	protected Node<String> createNode(String e, Node<String> parent, Node<String> left, Node<String> right) {
+		return new TermNode(e, parent, left, right);
+	}
+
+	@Override
+	public TreeCursor<String> cursor(Position<String> p) throws IllegalArgumentException {
+		return new TermCursor(validate(p));
+	}
+
+	// a node that keeps the Term of its element (null once it is removed)
+	private static final class TermNode extends Node<String> {
+		private Term term;
+
+		TermNode(String e, Node<String> parent, Node<String> left, Node<String> right) {
+			super(e, parent, left, right);
+			term = e == null ? null : Term.of(e);
+		}
+
+		@Override
+		public void setElement(String e) {
+			super.setElement(e);
+			term = e == null ? null : Term.of(e);
+		}
+	}
+
+	// a cursor that can read the Term of the node it is on
+	private final class TermCursor extends NodeCursor {
+		TermCursor(Node<String> node) {
+			super(node);
+		}
+
+		Term term() {
+			Node<String> node = node();
+			// subtrees grafted on from other trees have plain nodes
+			return node instanceof TermNode ? ((TermNode) node).term : Term.of(node.getElement());
+		}
+	}
+}
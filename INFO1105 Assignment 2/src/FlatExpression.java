@@ -0,0 +1,551 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import textbook.BinaryTree;
+import textbook.TreeCursor;
+
+/**
+ * An arithmetic expression laid out flat in a ByteBuffer, so that it can be
+ * written once (e.g. to a file) and then used in place, straight from the
+ * buffer, without building a tree. Mapping a file of a million stored
+ * expressions with FileChannel.map and calling at() for each of them costs no
+ * parsing and creates no nodes; each FlatExpression is a small view on its
+ * part of the buffer.
+ *
+ * An expression is a header, a record for each node in prefix order, and a
+ * table of the symbols it uses:
+ *
+ * - header: the bytes 'F' 'L' 'X' and the layout version (1), then the node
+ * count, the symbol count and the total size in bytes (ints)
+ *
+ * - a node record of 12 bytes: tag (int), value (long). The tag holds the size
+ * of the node's subtree above its low 3 bits, and what the node is in them: an
+ * operator, an integer literal (in value) or a symbol (whose index in the
+ * table is in value)
+ *
+ * - symbol table: the offset of each symbol's UTF-8 bytes from the start of
+ * the table's bytes (ints, with one more for the end), then the bytes
+ *
+ * Nodes are numbered by their position in prefix order, with the root at 0. The
+ * left child of operator i is i+1, and the right child follows the left
+ * subtree, at i+1+size(i+1), so moving about the tree takes O(1) time.
+ * Symbols are the variables, and numbers not written the way Long.toString
+ * would write them (e.g. "007"), so every element reads back as it was.
+ *
+ * All numbers are big endian. Nothing in this class uses recursion.
+ *
+ * Only the header is checked by at(), so that using a stored expression costs
+ * no parsing. Records and symbols are checked as they are read, and one that
+ * is corrupt throws an IllegalArgumentException when it is reached.
+ */
+public final class FlatExpression {
+
+	/** The version of the layout written by this class */
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = ('F' << 24) | ('L' << 16) | ('X' << 8) | VERSION;
+
+	// header layout
+	private static final int NODES = 4;
+	private static final int SYMBOLS = 8;
+	private static final int BYTES = 12;
+	private static final int HEADER = 16;
+
+	// record layout
+	private static final int RECORD = 12;
+	private static final int TAG = 0;
+	private static final int VALUE = 4;
+
+	// what a node holds, in the low bits of its tag
+	private static final int TAG_BITS = 3;
+	private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+	private static final int PLUS = 1;
+	private static final int MINUS = 2;
+	private static final int TIMES = 3;
+	private static final int LITERAL = 4;
+	private static final int SYMBOL = 5;
+
+	private static final Term[] TERMS = { null, Term.PLUS, Term.MINUS, Term.TIMES };
+
+	private final ByteBuffer buffer; // starts at the header
+	private final int nodes;
+	private final int symbols;
+	private final int table; // offset of the symbol table
+	private final int text; // offset of the symbols' bytes
+	private final String[] names; // symbols decoded so far
+
+	private FlatExpression(ByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.remaining() < HEADER || buffer.getInt(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a flat expression");
+		}
+		this.nodes = buffer.getInt(NODES);
+		this.symbols = buffer.getInt(SYMBOLS);
+		// worked out in longs, as the counts may be anything
+		long text = HEADER + (long) nodes * RECORD + 4L * (symbols + 1L);
+		if (nodes < 1 || symbols < 0 || buffer.getInt(BYTES) > buffer.remaining()
+				|| text > buffer.getInt(BYTES)) {
+			throw new IllegalArgumentException("Flat expression is truncated");
+		}
+		this.table = HEADER + nodes * RECORD;
+		this.text = (int) text;
+		this.names = new String[symbols];
+	}
+
+	/**
+	 * Use the flat expression stored at the given offset of a buffer, in place.
+	 * The buffer's contents are not copied, so they must not change while the
+	 * expression is in use.
+	 *
+	 * @param buffer
+	 *            - a buffer holding flat expressions, e.g. a mapped file
+	 * @param offset
+	 *            - where the expression starts
+	 * @return the expression
+	 * @throws IllegalArgumentException
+	 *             if there is no complete flat expression at offset
+	 */
+	public static FlatExpression at(ByteBuffer buffer, int offset) throws IllegalArgumentException {
+		if (buffer == null || offset < 0 || offset > buffer.limit()) {
+			throw new IllegalArgumentException("No flat expression at " + offset);
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		return new FlatExpression(view.slice().order(ByteOrder.BIG_ENDIAN));
+	}
+
+	/**
+	 * Lay out an expression tree in a new heap buffer
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the flat expression
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression
+	 */
+	public static FlatExpression of(BinaryTree<String> tree) throws IllegalArgumentException {
+		if (tree == null || tree.isEmpty()) {
+			throw new IllegalArgumentException("Tree was null or empty");
+		}
+		Writer writer = new Writer(tree);
+		ByteBuffer buffer = ByteBuffer.allocate(writer.byteSize());
+		writer.writeTo(buffer, 0);
+		return new FlatExpression(buffer);
+	}
+
+	/**
+	 * Lay out an expression tree in a buffer, from its current position, which
+	 * is moved past it
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @param out
+	 *            - where to write the expression
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException
+	 *             if tree was not a valid expression, or doesn't fit in the
+	 *             remaining space
+	 */
+	public static int write(BinaryTree<String> tree, ByteBuffer out) throws IllegalArgumentException {
+		if (tree == null || tree.isEmpty()) {
+			throw new IllegalArgumentException("Tree was null or empty");
+		}
+		if (out == null) {
+			throw new IllegalArgumentException("Buffer was null");
+		}
+		Writer writer = new Writer(tree);
+		int bytes = writer.byteSize();
+		if (bytes > out.remaining()) {
+			throw new IllegalArgumentException("Flat expression needs " + bytes + " bytes");
+		}
+		writer.writeTo(out.duplicate().order(ByteOrder.BIG_ENDIAN), out.position());
+		out.position(out.position() + bytes);
+		return bytes;
+	}
+
+	/** @return the size of the expression in bytes, i.e. where the next one starts */
+	public int byteSize() {
+		return buffer.getInt(BYTES);
+	}
+
+	/** @return the number of nodes */
+	public int size() {
+		return nodes;
+	}
+
+	/**
+	 * @param i
+	 *            - a node
+	 * @return the number of nodes in the subtree rooted at i
+	 */
+	public int subtreeSize(int i) {
+		return tag(i) >>> TAG_BITS;
+	}
+
+	/**
+	 * @param i
+	 *            - a node
+	 * @return true if i is an operator
+	 */
+	public boolean isOperator(int i) {
+		return kind(i) <= TIMES;
+	}
+
+	/**
+	 * @param i
+	 *            - an operator
+	 * @return its left child
+	 */
+	public int left(int i) {
+		return i + 1;
+	}
+
+	/**
+	 * @param i
+	 *            - an operator
+	 * @return its right child
+	 */
+	public int right(int i) {
+		return i + 1 + subtreeSize(i + 1);
+	}
+
+	/**
+	 * @param i
+	 *            - a node
+	 * @return the operator, number or variable at i
+	 */
+	public String elementAt(int i) {
+		int kind = kind(i);
+		if (kind <= TIMES) {
+			return TERMS[kind].symbol();
+		}
+		long value = buffer.getLong(offset(i) + VALUE);
+		return kind == LITERAL ? Long.toString(value) : name(symbol(i, value));
+	}
+
+	/**
+	 * The variables (and unusually written numbers) in the expression, each
+	 * once, in the order they first appear
+	 *
+	 * @return the expression's symbols
+	 */
+	public String[] symbols() {
+		String[] result = new String[symbols];
+		for (int s = 0; s < symbols; s++) {
+			result[s] = name(s);
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether a variable appears in the expression. Only the symbol table
+	 * is searched, not the nodes.
+	 *
+	 * @param variable
+	 *            - a variable label
+	 * @return true if the variable appears in the expression
+	 */
+	public boolean contains(String variable) {
+		for (int s = 0; s < symbols; s++) {
+			if (name(s).equals(variable)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate the expression, with the same (wrapping) int arithmetic as
+	 * Assignment.simplify. Each variable is looked up in the map once, however
+	 * many times it appears.
+	 *
+	 * @param variables
+	 *            - the values of the variables in the expression
+	 * @return the value of the expression
+	 * @throws IllegalArgumentException
+	 *             if a variable has no value, a literal doesn't fit in an int,
+	 *             or the expression is corrupt
+	 */
+	public int evaluate(Map<String, Integer> variables) throws IllegalArgumentException {
+		int[] values = new int[symbols];
+		boolean[] known = new boolean[symbols];
+		for (int s = 0; s < symbols; s++) {
+			String name = name(s);
+			Integer value;
+			if (PrefixTokenizer.isNumber(name)) {
+				value = toInteger(name); // e.g. "007"
+			} else {
+				value = variables == null ? null : variables.get(name);
+			}
+			if (value != null) {
+				values[s] = value;
+				known[s] = true;
+			}
+		}
+		// in reverse prefix order each operator finds its left operand on top
+		// of the stack, and its right operand below it
+		int[] stack = new int[nodes / 2 + 1];
+		int top = 0;
+		for (int i = nodes - 1; i >= 0; i--) {
+			int kind = kind(i);
+			if (kind <= TIMES) {
+				if (top < 2) {
+					throw new IllegalArgumentException("Operator " + i + " is missing an operand");
+				}
+				int left = stack[--top];
+				stack[top - 1] = TERMS[kind].apply(left, stack[top - 1]);
+				continue;
+			}
+			if (top == stack.length) {
+				throw new IllegalArgumentException("Operand " + i + " has no operator");
+			}
+			long value = buffer.getLong(offset(i) + VALUE);
+			if (kind == LITERAL) {
+				if (value != (int) value) {
+					throw new IllegalArgumentException("Literal " + value + " is too large");
+				}
+				stack[top++] = (int) value;
+			} else if (known[symbol(i, value)]) {
+				stack[top++] = values[(int) value];
+			} else {
+				throw new IllegalArgumentException("No value for " + name((int) value));
+			}
+		}
+		if (top != 1) {
+			throw new IllegalArgumentException("Flat expression has operands with no operator");
+		}
+		return stack[0];
+	}
+
+	/**
+	 * @return the expression in prefix notation, as Assignment.tree2prefix
+	 *         would write it
+	 */
+	public String toPrefix() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < nodes; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(elementAt(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the expression in infix notation, as Assignment.tree2infix
+	 *         would write it
+	 */
+	public String toInfix() {
+		StringBuilder sb = new StringBuilder();
+		// the operators whose right operand is still to come, or is being
+		// written (marked by a negative index)
+		int[] open = new int[16];
+		int depth = 0;
+		for (int i = 0; i < nodes; i++) {
+			if (isOperator(i)) {
+				sb.append('(');
+				if (depth == open.length) {
+					open = Arrays.copyOf(open, 2 * depth);
+				}
+				open[depth++] = i;
+				continue;
+			}
+			sb.append(elementAt(i));
+			// close every operator whose right operand just ended, then write
+			// the operator whose left operand did
+			while (depth > 0 && open[depth - 1] < 0) {
+				sb.append(')');
+				depth--;
+			}
+			if (depth > 0) {
+				sb.append(elementAt(open[depth - 1]));
+				open[depth - 1] = -1;
+			}
+		}
+		return sb.toString();
+	}
+
+	// parse a literal as Assignment does
+	private static int toInteger(String literal) {
+		try {
+			return Integer.parseInt(literal);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Literal " + literal + " is too large");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toPrefix();
+	}
+
+	private int offset(int i) {
+		if (i < 0 || i >= nodes) {
+			throw new IndexOutOfBoundsException("No node " + i);
+		}
+		return HEADER + i * RECORD;
+	}
+
+	private int tag(int i) {
+		return buffer.getInt(offset(i) + TAG);
+	}
+
+	private int kind(int i) {
+		int kind = tag(i) & TAG_MASK;
+		if (kind < PLUS || kind > SYMBOL) {
+			throw new IllegalArgumentException("Node " + i + " is corrupt");
+		}
+		return kind;
+	}
+
+	// the symbol index held by node i
+	private int symbol(int i, long value) {
+		if (value < 0 || value >= symbols) {
+			throw new IllegalArgumentException("Node " + i + " refers to no symbol");
+		}
+		return (int) value;
+	}
+
+	// decode a symbol the first time it is asked for. Variables are replaced by
+	// their canonical instance, as when parsing
+	private String name(int s) {
+		String name = names[s];
+		if (name == null) {
+			int start = buffer.getInt(table + 4 * s);
+			int end = buffer.getInt(table + 4 * s + 4);
+			if (start < 0 || start > end || end > byteSize() - text) {
+				throw new IllegalArgumentException("Symbol " + s + " is corrupt");
+			}
+			byte[] utf8 = new byte[end - start];
+			ByteBuffer bytes = buffer.duplicate();
+			bytes.position(text + start);
+			bytes.get(utf8);
+			name = new String(utf8, StandardCharsets.UTF_8);
+			name = PrefixTokenizer.isNumber(name) ? name : SymbolTable.canonical(name);
+			names[s] = name;
+		}
+		return name;
+	}
+
+	// lays out one tree: the first pass (in the constructor) works out each
+	// node's record and the symbols, and writeTo puts them in a buffer
+	private static final class Writer {
+		private final int[] tags;
+		private final long[] values;
+		private final ArrayList<byte[]> names = new ArrayList<byte[]>();
+		private int nameBytes = 0;
+
+		Writer(BinaryTree<String> tree) {
+			int n = tree.size();
+			if (n > (Integer.MAX_VALUE - HEADER) / RECORD) {
+				throw new IllegalArgumentException("Tree is too large");
+			}
+			tags = new int[n];
+			values = new long[n];
+			HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+			// walk the tree in prefix order with a cursor, keeping the operators
+			// above the current node on a stack (negative once the walk has
+			// gone to their right), so their subtree sizes can be filled in
+			TreeCursor<String> cursor = TreeCursor.of(tree);
+			int[] above = new int[64];
+			int depth = 0;
+			int count = 0;
+			while (true) {
+				String element = cursor.element();
+				Term kind = ExpressionTree.term(cursor);
+				if (cursor.numChildren() != (kind.isOperator() ? 2 : 0)) {
+					throw new IllegalArgumentException("Tree was not a valid expression at " + element);
+				}
+				int i = count++;
+				if (kind.isOperator()) {
+					tags[i] = kind.ordinal() + 1; // PLUS, MINUS or TIMES
+					if (depth == above.length) {
+						above = Arrays.copyOf(above, 2 * depth);
+					}
+					above[depth++] = i;
+					cursor.toLeft();
+					continue;
+				}
+				tags[i] = (1 << TAG_BITS) | encode(element, kind, i, ids);
+				// climb past the operators whose right subtree is complete
+				while (depth > 0 && above[depth - 1] < 0) {
+					int j = ~above[--depth];
+					tags[j] |= (count - j) << TAG_BITS;
+					cursor.toParent();
+				}
+				if (depth == 0) {
+					break;
+				}
+				above[depth - 1] = ~above[depth - 1];
+				cursor.toSibling();
+			}
+		}
+
+		// fill in a leaf's value, and return its kind
+		private int encode(String element, Term kind, int i, HashMap<String, Integer> ids) {
+			if (kind == Term.LITERAL && element.length() <= 20) {
+				try {
+					long value = Long.parseLong(element);
+					if (Long.toString(value).equals(element)) {
+						values[i] = value;
+						return LITERAL;
+					}
+				} catch (NumberFormatException e) {
+					// too large for a long, so kept as a symbol
+				}
+			}
+			Integer id = ids.get(element);
+			if (id == null) {
+				id = names.size();
+				ids.put(element, id);
+				byte[] utf8 = element.getBytes(StandardCharsets.UTF_8);
+				names.add(utf8);
+				nameBytes += utf8.length;
+			}
+			values[i] = id;
+			return SYMBOL;
+		}
+
+		int byteSize() {
+			long bytes = HEADER + (long) tags.length * RECORD + 4L * (names.size() + 1) + nameBytes;
+			if (bytes > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Tree is too large");
+			}
+			return (int) bytes;
+		}
+
+		// write at absolute offsets, leaving the buffer's position alone
+		void writeTo(ByteBuffer out, int base) {
+			int bytes = byteSize();
+			out.putInt(base, MAGIC);
+			out.putInt(base + NODES, tags.length);
+			out.putInt(base + SYMBOLS, names.size());
+			out.putInt(base + BYTES, bytes);
+			int at = base + HEADER;
+			for (int i = 0; i < tags.length; i++, at += RECORD) {
+				out.putInt(at + TAG, tags[i]);
+				out.putLong(at + VALUE, values[i]);
+			}
+			int start = 0;
+			for (byte[] name : names) {
+				out.putInt(at, start);
+				at += 4;
+				start += name.length;
+			}
+			out.putInt(at, start);
+			at += 4;
+			for (byte[] name : names) {
+				for (byte b : name) {
+					out.put(at++, b);
+				}
+			}
+		}
+	}
+}
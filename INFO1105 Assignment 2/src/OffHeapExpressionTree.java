@@ -0,0 +1,535 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import textbook.AbstractBinaryTree;
+import textbook.MutableBinaryTree;
+import textbook.Position;
+import textbook.TreeWalk;
+
+/**
+ * A tree representing an arithmetic expression whose nodes are stored outside
+ * the Java heap, in direct ByteBuffers, so that even a tree with hundreds of
+ * millions of nodes adds nothing for the garbage collector to scan.
+ *
+ * Each node is a fixed width record of 24 bytes:
+ *
+ * parent (int), left (int), right (int), tag (int), value (long)
+ *
+ * where tag says what the node holds (an operator, an integer literal in
+ * value, or a variable whose SymbolTable id is in value) and also carries a
+ * generation stamp used to detect positions of removed nodes. Records are
+ * allocated in fixed size chunks, so the tree never has to copy itself to
+ * grow.
+ *
+ * The tree works through the normal BinaryTree and MutableBinaryTree methods,
+ * so every Assignment method can be used on it. Elements are given back as
+ * Strings, which are created as they are asked for. Positions are small
+ * handles in the same way as for ArrayBinaryTree: positions for the same node
+ * are equal() but not necessarily ==.
+ *
+ * When finished with the tree call close(). After that every method throws an
+ * IllegalStateException, and the buffers' memory is given back to the
+ * operating system at once. There is no public API for this, so close uses
+ * the JDK's own buffer cleaner, found by reflection (sun.misc.Unsafe on Java 9
+ * and later, the buffer's cleaner() on Java 8). On a JVM where neither can be
+ * found the memory is only given back once the buffer objects are collected.
+ * Every access to a record checks whether the tree has been closed (a
+ * volatile flag, set before the memory is freed), so once close has returned
+ * no thread can read the freed memory. A method already running when close
+ * is called may still do so, which can crash the JVM: close must not be
+ * called while another thread is using the tree.
+ */
+public class OffHeapExpressionTree extends AbstractBinaryTree<String>
+		implements MutableBinaryTree<String>, AutoCloseable {
+
+	/** Index used for a missing parent or child */
+	public static final int NONE = -1;
+
+	// record layout
+	private static final int RECORD = 24;
+	private static final int PARENT = 0;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+	private static final int TAG = 12;
+	private static final int VALUE = 16;
+
+	// what a node holds, in the low bits of its tag
+	private static final int TAG_BITS = 3;
+	private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+	private static final int PLUS = 1;
+	private static final int MINUS = 2;
+	private static final int TIMES = 3;
+	private static final int LITERAL = 4;
+	private static final int SYMBOL = 5;
+
+	// records per chunk
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	// A handle on the node at a given index of a given tree
+	private static final class Slot implements Position<String> {
+		private final OffHeapExpressionTree tree;
+		private final int index;
+		private final int stamp;
+
+		Slot(OffHeapExpressionTree tree, int index) {
+			this.tree = tree;
+			this.index = index;
+			this.stamp = tree.stamp(index);
+		}
+
+		public String getElement() throws IllegalStateException {
+			if (!tree.isCurrent(index, stamp)) {
+				throw new IllegalStateException("Position no longer valid");
+			}
+			return tree.elementAt(index);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Slot)) {
+				return false;
+			}
+			Slot other = (Slot) o;
+			return tree == other.tree && index == other.index && stamp == other.stamp;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * index + stamp;
+		}
+	}
+
+	// Frees the memory of a direct buffer at once, rather than when the buffer
+	// is collected, using whichever of the JDK's internal cleaners is there
+	private static final class Deallocator {
+		private static final Object unsafe; // Java 9 and later
+		private static final Method invokeCleaner;
+		private static final Method cleaner; // Java 8
+		private static final Method clean;
+
+		static {
+			Object theUnsafe = null;
+			Method invoke = null;
+			Method getCleaner = null;
+			Method run = null;
+			try {
+				Class<?> type = Class.forName("sun.misc.Unsafe");
+				invoke = type.getMethod("invokeCleaner", ByteBuffer.class);
+				Field field = type.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				theUnsafe = field.get(null);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				invoke = null;
+				try {
+					getCleaner = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+					getCleaner.setAccessible(true);
+					run = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				} catch (ReflectiveOperationException | RuntimeException e2) {
+					getCleaner = null;
+				}
+			}
+			unsafe = theUnsafe;
+			invokeCleaner = invoke;
+			cleaner = getCleaner;
+			clean = run;
+		}
+
+		// false if the memory is left for the garbage collector
+		static boolean free(ByteBuffer buffer) {
+			try {
+				if (invokeCleaner != null) {
+					invokeCleaner.invoke(unsafe, buffer);
+					return true;
+				}
+				if (cleaner != null) {
+					Object c = cleaner.invoke(buffer);
+					if (c != null) {
+						clean.invoke(c);
+					}
+					return true;
+				}
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// left for the garbage collector
+			}
+			return false;
+		}
+	}
+
+	private ByteBuffer[] chunks = new ByteBuffer[4];
+	private int root = NONE;
+	private int size = 0;
+	private int used = 0; // records [0, used) have been handed out at least once
+	private int free = NONE; // head of the list of freed records
+	private volatile boolean closed = false; // checked on every record access
+
+	/** Constructs an empty tree */
+	public OffHeapExpressionTree() {
+	}
+
+	// ---------------- record access ----------------
+
+	private ByteBuffer chunk(int i) {
+		if (closed) {
+			throw new IllegalStateException("Tree has been closed");
+		}
+		return chunks[i >>> CHUNK_BITS];
+	}
+
+	private static int offset(int i) {
+		return (i & CHUNK_MASK) * RECORD;
+	}
+
+	private int getInt(int i, int field) {
+		return chunk(i).getInt(offset(i) + field);
+	}
+
+	private void putInt(int i, int field, int value) {
+		chunk(i).putInt(offset(i) + field, value);
+	}
+
+	private int kind(int i) {
+		return getInt(i, TAG) & TAG_MASK;
+	}
+
+	private int stamp(int i) {
+		return getInt(i, TAG) >>> TAG_BITS;
+	}
+
+	private boolean isCurrent(int index, int generation) {
+		return stamp(index) == generation && getInt(index, PARENT) != index;
+	}
+
+	// store the tag for an element, keeping the stamp of the record
+	private void encode(int i, String e) {
+		if (e == null) {
+			throw new IllegalArgumentException("Elements can't be null");
+		}
+		int kind;
+		long value = 0;
+		Term term = Term.of(e);
+		if (term == Term.PLUS) {
+			kind = PLUS;
+		} else if (term == Term.MINUS) {
+			kind = MINUS;
+		} else if (term == Term.TIMES) {
+			kind = TIMES;
+		} else if (term == Term.LITERAL && isLiteral(e)) {
+			kind = LITERAL;
+			value = Long.parseLong(e);
+		} else {
+			// variables, and numbers that wouldn't print back the same way
+			kind = SYMBOL;
+			value = SymbolTable.intern(e);
+		}
+		putInt(i, TAG, (stamp(i) << TAG_BITS) | kind);
+		chunk(i).putLong(offset(i) + VALUE, value);
+	}
+
+	// check that a number fits in a long and is written the way Long.toString
+	// would write it
+	private static boolean isLiteral(String s) {
+		if (s.length() > 20) {
+			return false;
+		}
+		try {
+			return Long.toString(Long.parseLong(s)).equals(s);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the element of the node at index i. The index is not checked.
+	 *
+	 * @param i
+	 *            - index of a node in the tree
+	 * @return the element stored at that node
+	 */
+	public String elementAt(int i) {
+		switch (kind(i)) {
+		case PLUS:
+			return "+";
+		case MINUS:
+			return "-";
+		case TIMES:
+			return "*";
+		case LITERAL:
+			return Long.toString(chunk(i).getLong(offset(i) + VALUE));
+		default:
+			return SymbolTable.name((int) chunk(i).getLong(offset(i) + VALUE));
+		}
+	}
+
+	/** @return the index of the root (or NONE if the tree is empty) */
+	public int rootIndex() {
+		checkOpen();
+		return root;
+	}
+
+	/**
+	 * @param i
+	 *            - index of a node in the tree (not checked)
+	 * @return index of the left child of that node (or NONE)
+	 */
+	public int leftIndex(int i) {
+		return getInt(i, LEFT);
+	}
+
+	/**
+	 * @param i
+	 *            - index of a node in the tree (not checked)
+	 * @return index of the right child of that node (or NONE)
+	 */
+	public int rightIndex(int i) {
+		return getInt(i, RIGHT);
+	}
+
+	/**
+	 * @param i
+	 *            - index of a node in the tree (not checked)
+	 * @return index of the parent of that node (or NONE for the root)
+	 */
+	public int parentIndex(int i) {
+		return getInt(i, PARENT);
+	}
+
+	// takes a free record (adding a chunk if needed) and fills it in
+	private int allocate(String e, int parent) {
+		checkOpen();
+		int i;
+		if (free != NONE) {
+			i = free;
+			free = getInt(i, LEFT);
+		} else {
+			int c = used >>> CHUNK_BITS;
+			if (c == chunks.length) {
+				chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+			}
+			if (chunks[c] == null) {
+				chunks[c] = ByteBuffer.allocateDirect(RECORD << CHUNK_BITS).order(ByteOrder.nativeOrder());
+			}
+			i = used++;
+		}
+		putInt(i, PARENT, parent);
+		putInt(i, LEFT, NONE);
+		putInt(i, RIGHT, NONE);
+		encode(i, e);
+		size++;
+		return i;
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Tree has been closed");
+		}
+	}
+
+	/**
+	 * Verifies that a Position is a handle on a node of this tree that has not
+	 * been removed.
+	 *
+	 * @param p
+	 *            - a Position (that should belong to this tree)
+	 * @return the index of the node for the position
+	 * @throws IllegalArgumentException
+	 *             if an invalid position is detected
+	 */
+	protected int validate(Position<String> p) throws IllegalArgumentException {
+		checkOpen();
+		if (!(p instanceof Slot)) {
+			throw new IllegalArgumentException("Not valid position type");
+		}
+		Slot slot = (Slot) p;
+		if (slot.tree != this) {
+			throw new IllegalArgumentException("p does not belong to this tree");
+		}
+		if (!isCurrent(slot.index, slot.stamp)) {
+			throw new IllegalArgumentException("p is no longer in the tree");
+		}
+		return slot.index;
+	}
+
+	private Position<String> position(int i) {
+		return i == NONE ? null : new Slot(this, i);
+	}
+
+	// ---------------- BinaryTree methods ----------------
+
+	@Override
+	public int size() {
+		checkOpen();
+		return size;
+	}
+
+	@Override
+	public Position<String> root() {
+		checkOpen();
+		return position(root);
+	}
+
+	@Override
+	public Position<String> parent(Position<String> p) throws IllegalArgumentException {
+		return position(getInt(validate(p), PARENT));
+	}
+
+	@Override
+	public Position<String> left(Position<String> p) throws IllegalArgumentException {
+		return position(getInt(validate(p), LEFT));
+	}
+
+	@Override
+	public Position<String> right(Position<String> p) throws IllegalArgumentException {
+		return position(getInt(validate(p), RIGHT));
+	}
+
+	@Override
+	public Position<String> sibling(Position<String> p) throws IllegalArgumentException {
+		int i = validate(p);
+		int above = getInt(i, PARENT);
+		if (above == NONE) {
+			return null;
+		}
+		return position(getInt(above, LEFT) == i ? getInt(above, RIGHT) : getInt(above, LEFT));
+	}
+
+	@Override
+	public int numChildren(Position<String> p) throws IllegalArgumentException {
+		int i = validate(p);
+		return (getInt(i, LEFT) != NONE ? 1 : 0) + (getInt(i, RIGHT) != NONE ? 1 : 0);
+	}
+
+	@Override
+	public boolean isRoot(Position<String> p) {
+		return validate(p) == root;
+	}
+
+	// positions and elements in preorder, walked with a cursor
+	@Override
+	public Iterable<Position<String>> positions() {
+		return TreeWalk.preorder(this);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return TreeWalk.elements(this);
+	}
+
+	// ---------------- MutableBinaryTree methods ----------------
+
+	@Override
+	public Position<String> addRoot(String e) throws IllegalStateException {
+		if (!isEmpty()) {
+			throw new IllegalStateException("Tree is not empty");
+		}
+		root = allocate(e, NONE);
+		return position(root);
+	}
+
+	@Override
+	public Position<String> addLeft(Position<String> p, String e) throws IllegalArgumentException {
+		int i = validate(p);
+		if (getInt(i, LEFT) != NONE) {
+			throw new IllegalArgumentException("p already has a left child");
+		}
+		int child = allocate(e, i);
+		putInt(i, LEFT, child);
+		return position(child);
+	}
+
+	@Override
+	public Position<String> addRight(Position<String> p, String e) throws IllegalArgumentException {
+		int i = validate(p);
+		if (getInt(i, RIGHT) != NONE) {
+			throw new IllegalArgumentException("p already has a right child");
+		}
+		int child = allocate(e, i);
+		putInt(i, RIGHT, child);
+		return position(child);
+	}
+
+	@Override
+	public String set(Position<String> p, String e) throws IllegalArgumentException {
+		int i = validate(p);
+		String temp = elementAt(i);
+		encode(i, e);
+		return temp;
+	}
+
+	@Override
+	public String remove(Position<String> p) throws IllegalArgumentException {
+		int i = validate(p);
+		int left = getInt(i, LEFT);
+		int right = getInt(i, RIGHT);
+		if (left != NONE && right != NONE) {
+			throw new IllegalArgumentException("p has two children");
+		}
+		int child = left != NONE ? left : right;
+		int above = getInt(i, PARENT);
+		if (child != NONE) {
+			putInt(child, PARENT, above); // child's grandparent becomes its parent
+		}
+		if (i == root) {
+			root = child; // child becomes root
+		} else if (getInt(above, LEFT) == i) {
+			putInt(above, LEFT, child);
+		} else {
+			putInt(above, RIGHT, child);
+		}
+		size--;
+		String temp = elementAt(i);
+		putInt(i, PARENT, i); // our convention for a free record
+		putInt(i, TAG, (stamp(i) + 1) << TAG_BITS); // invalidates outstanding positions
+		putInt(i, RIGHT, NONE);
+		putInt(i, LEFT, free); // add to the list of free records
+		free = i;
+		return temp;
+	}
+
+	/**
+	 * Releases the tree's storage, freeing its off-heap memory at once where
+	 * the JVM allows it. The tree can't be used afterwards. Calling close more
+	 * than once has no further effect.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		// stop every access before the memory goes
+		ByteBuffer[] released = chunks;
+		closed = true;
+		chunks = null;
+		root = NONE;
+		size = 0;
+		free = NONE;
+		for (ByteBuffer chunk : released) {
+			if (chunk != null) {
+				Deallocator.free(chunk);
+			}
+		}
+	}
+
+	/** @return true if close has been called */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/** @return the number of bytes of off-heap storage held by the tree */
+	public long storageBytes() {
+		if (closed) {
+			return 0;
+		}
+		long bytes = 0;
+		for (ByteBuffer chunk : chunks) {
+			if (chunk != null) {
+				bytes += chunk.capacity();
+			}
+		}
+		return bytes;
+	}
+}
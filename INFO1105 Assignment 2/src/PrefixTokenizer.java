@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits an arithmetic expression in prefix notation into its tokens, one
+ * token at a time, straight from the underlying characters.
+ *
+ * The expression can be read from a CharSequence, from a Reader, or from the
+ * ASCII bytes of a file mapped into memory with a FileChannel (in which case
+ * the text never has to be held on the heap).
+ *
+ * Tokens are separated by runs of whitespace (spaces, tabs, line breaks).
+ * Leading and trailing whitespace is ignored. Nothing is read ahead apart from
+ * the next token, so no array or queue of tokens is ever built, and the only
+ * object allocated per token is the token String itself (operators are
+ * returned as shared constants, so they cost nothing).
+ *
+ * Variables are returned as their canonical instance from the SymbolTable, so
+ * every occurrence of a variable in an expression shares a single String. They
+ * are not given ids, and are only held by the table while they are in use.
+ *
+ * Example: "  + 2\t 15 " gives the tokens "+", "2" and "15"
+ */
+public class PrefixTokenizer implements Iterator<String> {
+
+	// size of the buffer used when reading from a Reader
+	private static final int BUFFER_SIZE = 8192;
+
+	// how much of a file is mapped at a time (a MappedByteBuffer is limited to
+	// 2GB, and smaller windows are easier on the address space)
+	private static final int MAP_WINDOW = 1 << 28;
+
+	// reading from a CharSequence
+	private final CharSequence text;
+	private int pos;
+
+	// reading from a Reader
+	private final Reader reader;
+	private final char[] buffer;
+	private int bufferPos;
+	private int bufferLimit;
+	private StringBuilder partial; // a token split across two buffer fills
+
+	// reading from a FileChannel (bufferPos and bufferLimit index the window)
+	private final FileChannel channel;
+	private long mapped; // file offset of the end of the current window
+	private long end; // file offset of the end of the expression
+	private MappedByteBuffer window;
+	private byte[] bytes; // bytes of the token being read
+
+	private String next; // the token that will be returned by next()
+
+	/**
+	 * Tokenize an expression held in memory
+	 *
+	 * @param text
+	 *            - an arithmetic expression in prefix notation
+	 */
+	public PrefixTokenizer(CharSequence text) {
+		if (text == null) {
+			throw new IllegalArgumentException("Expression was null");
+		}
+		this.text = text;
+		this.reader = null;
+		this.buffer = null;
+		this.channel = null;
+		advance();
+	}
+
+	/**
+	 * Tokenize an expression as it is read from a Reader. The reader is not
+	 * closed by the tokenizer.
+	 *
+	 * @param reader
+	 *            - a source of an arithmetic expression in prefix notation
+	 */
+	public PrefixTokenizer(Reader reader) {
+		if (reader == null) {
+			throw new IllegalArgumentException("Reader was null");
+		}
+		this.text = null;
+		this.reader = reader;
+		this.buffer = new char[BUFFER_SIZE];
+		this.channel = null;
+		advance();
+	}
+
+	/**
+	 * Tokenize an expression stored as ASCII text in a file, from the current
+	 * position of the channel to the end of the file. The file is mapped into
+	 * memory a window at a time rather than read onto the heap. The channel is
+	 * not closed by the tokenizer.
+	 *
+	 * @param channel
+	 *            - a channel open for reading on a file containing an
+	 *            arithmetic expression in prefix notation
+	 * @throws UncheckedIOException
+	 *             if the file can't be mapped
+	 */
+	public PrefixTokenizer(FileChannel channel) {
+		if (channel == null) {
+			throw new IllegalArgumentException("Channel was null");
+		}
+		this.text = null;
+		this.reader = null;
+		this.buffer = null;
+		this.channel = channel;
+		this.bytes = new byte[64];
+		try {
+			this.mapped = channel.position();
+			this.end = channel.size();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		advance();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public String next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+		String token = next;
+		advance();
+		return token;
+	}
+
+	// whitespace separates tokens. Assumed case of O(1).
+	static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	// share a single instance for the operators, as they make up about half of
+	// every expression
+	static String operator(char c) {
+		switch (c) {
+		case '+':
+			return "+";
+		case '-':
+			return "-";
+		case '*':
+			return "*";
+		default:
+			return null;
+		}
+	}
+
+	// check if a token is an integer, i.e. matches ^-?\\d+$. Assumed case of O(1).
+	static boolean isNumber(CharSequence s) {
+		int length = s.length();
+		int i = (length > 0 && s.charAt(0) == '-') ? 1 : 0;
+		if (i == length) {
+			return false;
+		}
+		for (; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// anything that isn't an operator or a number is a variable, which is
+	// replaced by its canonical instance
+	private static String literalOrVariable(String token) {
+		return isNumber(token) ? token : SymbolTable.canonical(token);
+	}
+
+	// find the next token and store it in next (null when there are no more)
+	private void advance() {
+		if (text != null) {
+			next = scanText();
+		} else if (reader != null) {
+			next = scanReader();
+		} else {
+			next = scanChannel();
+		}
+	}
+
+	private String scanText() {
+		int length = text.length();
+		while (pos < length && isSpace(text.charAt(pos))) {
+			pos++;
+		}
+		if (pos == length) {
+			return null;
+		}
+		int start = pos;
+		while (pos < length && !isSpace(text.charAt(pos))) {
+			pos++;
+		}
+		if (pos - start == 1) {
+			String op = operator(text.charAt(start));
+			if (op != null) {
+				return op;
+			}
+		}
+		return literalOrVariable(text.subSequence(start, pos).toString());
+	}
+
+	private String scanReader() {
+		// skip whitespace, refilling the buffer as needed
+		while (true) {
+			if (bufferPos == bufferLimit && !fill()) {
+				return null;
+			}
+			if (!isSpace(buffer[bufferPos])) {
+				break;
+			}
+			bufferPos++;
+		}
+		int start = bufferPos;
+		while (true) {
+			if (bufferPos == bufferLimit) {
+				// the token continues past the end of the buffer, so keep what we
+				// have before refilling
+				if (partial == null) {
+					partial = new StringBuilder();
+				}
+				partial.append(buffer, start, bufferPos - start);
+				start = 0;
+				if (!fill()) {
+					break;
+				}
+			}
+			if (isSpace(buffer[bufferPos])) {
+				break;
+			}
+			bufferPos++;
+		}
+		if (partial != null && partial.length() > 0) {
+			partial.append(buffer, start, bufferPos - start);
+			String token = partial.toString();
+			partial.setLength(0);
+			if (token.length() == 1) {
+				String op = operator(token.charAt(0));
+				if (op != null) {
+					return op;
+				}
+			}
+			return literalOrVariable(token);
+		}
+		if (bufferPos - start == 1) {
+			String op = operator(buffer[start]);
+			if (op != null) {
+				return op;
+			}
+		}
+		return literalOrVariable(new String(buffer, start, bufferPos - start));
+	}
+
+	private String scanChannel() {
+		// skip whitespace, mapping the next window as needed
+		while (true) {
+			if (bufferPos == bufferLimit && !map()) {
+				return null;
+			}
+			if (!isSpace(window.get(bufferPos))) {
+				break;
+			}
+			bufferPos++;
+		}
+		int length = 0;
+		while (true) {
+			int start = bufferPos;
+			while (bufferPos < bufferLimit && !isSpace(window.get(bufferPos))) {
+				bufferPos++;
+			}
+			// copy what we found of the token so far
+			int n = bufferPos - start;
+			if (length + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + n));
+			}
+			window.position(start);
+			window.get(bytes, length, n);
+			length += n;
+			// stop at whitespace, otherwise the token may continue in the next window
+			if (bufferPos < bufferLimit || !map()) {
+				break;
+			}
+		}
+		if (length == 1) {
+			String op = operator((char) bytes[0]);
+			if (op != null) {
+				return op;
+			}
+		}
+		return literalOrVariable(new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+	}
+
+	// map the next window of the file, false if the whole file has been read
+	private boolean map() {
+		if (mapped >= end) {
+			return false;
+		}
+		long size = Math.min(end - mapped, MAP_WINDOW);
+		try {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		mapped += size;
+		bufferPos = 0;
+		bufferLimit = (int) size;
+		return true;
+	}
+
+	// read more characters into the buffer, false if the reader is exhausted
+	private boolean fill() {
+		try {
+			int n;
+			do {
+				n = reader.read(buffer, 0, buffer.length);
+			} while (n == 0);
+			bufferPos = 0;
+			bufferLimit = Math.max(n, 0);
+			return n > 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
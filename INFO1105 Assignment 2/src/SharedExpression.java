@@ -0,0 +1,281 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import textbook.BinaryTree;
+import textbook.LinkedBinaryTree;
+import textbook.Position;
+
+/**
+ * An immutable node of an arithmetic expression, built by hash-consing: there
+ * is only ever one SharedExpression for each distinct (sub)expression, so an
+ * expression such as "* x y" that appears thousands of times is stored once
+ * and shared by every expression that contains it.
+ *
+ * The result is a DAG rather than a tree, which is why nodes have no parent and
+ * can't be changed. In exchange:
+ *
+ * - repetitive expressions take memory proportional to the number of distinct
+ * subexpressions, not the number of tokens
+ *
+ * - two expressions are equal exactly when they are the same object, so
+ * equals is O(1) whatever their size
+ *
+ * Nodes are interned in a weak table, so a subexpression is forgotten once no
+ * expression uses it any more.
+ *
+ * Example: SharedExpression.parse("- * x y * x y") has a root "-" whose left
+ * and right children are the same node "* x y"
+ */
+public final class SharedExpression implements Position<String> {
+
+	// canonical instance of every live node. The values are weak too, as a
+	// value that referred to its own key would keep it alive forever
+	private static final Map<SharedExpression, WeakReference<SharedExpression>> table = new WeakHashMap<SharedExpression, WeakReference<SharedExpression>>();
+
+	private final String element;
+	private final SharedExpression left;
+	private final SharedExpression right;
+	private final int hash;
+
+	private SharedExpression(String element, SharedExpression left, SharedExpression right) {
+		this.element = element;
+		this.left = left;
+		this.right = right;
+		// children are canonical, so their hash codes identify them
+		int h = element.hashCode();
+		if (left != null) {
+			h = 31 * (31 * h + left.hash) + right.hash;
+		}
+		this.hash = h;
+	}
+
+	/**
+	 * Returns the shared node for a variable or numeric value
+	 *
+	 * @param element
+	 *            - a variable or numeric value
+	 * @return the shared leaf storing element
+	 * @throws IllegalArgumentException
+	 *             if element is null
+	 */
+	public static SharedExpression leaf(String element) {
+		if (element == null) {
+			throw new IllegalArgumentException();
+		}
+		return intern(new SharedExpression(element, null, null));
+	}
+
+	/**
+	 * Returns the shared node for an operator applied to two subexpressions
+	 *
+	 * @param operator
+	 *            - one of +, - or *
+	 * @param left
+	 *            - the left operand
+	 * @param right
+	 *            - the right operand
+	 * @return the shared node representing (left operator right)
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public static SharedExpression of(String operator, SharedExpression left, SharedExpression right) {
+		if (operator == null || left == null || right == null) {
+			throw new IllegalArgumentException();
+		}
+		return intern(new SharedExpression(operator, left, right));
+	}
+
+	private static SharedExpression intern(SharedExpression candidate) {
+		synchronized (table) {
+			WeakReference<SharedExpression> ref = table.get(candidate);
+			SharedExpression existing = ref == null ? null : ref.get();
+			if (existing != null) {
+				return existing;
+			}
+			table.put(candidate, new WeakReference<SharedExpression>(candidate));
+			return candidate;
+		}
+	}
+
+	/**
+	 * Convert an arithmetic expression (in prefix notation) to shared nodes,
+	 * the same way as Assignment.prefix2tree. This method runs in O(n) time and
+	 * is not limited by the thread stack.
+	 *
+	 * @param expression
+	 *            - an arithmetic expression in prefix notation
+	 * @return the shared node for the whole expression
+	 * @throws IllegalArgumentException
+	 *             if expression was not a valid expression
+	 */
+	public static SharedExpression parse(CharSequence expression) throws IllegalArgumentException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression string was null");
+		}
+		Iterator<String> tokens = new PrefixTokenizer(expression);
+		// operators that are still being built, and their left operand once it
+		// is known (a node can only be built once both operands are)
+		ArrayList<String> operators = new ArrayList<String>();
+		ArrayList<SharedExpression> lefts = new ArrayList<SharedExpression>();
+		while (tokens.hasNext()) {
+			String token = tokens.next();
+			if (Term.of(token).isOperator()) {
+				operators.add(token);
+				lefts.add(null);
+				continue;
+			}
+			SharedExpression node = leaf(token);
+			// a finished operand completes every operator waiting on its right
+			int top = operators.size() - 1;
+			while (top >= 0 && lefts.get(top) != null) {
+				node = of(operators.remove(top), lefts.remove(top), node);
+				top--;
+			}
+			if (top < 0) {
+				return node;
+			}
+			lefts.set(top, node);
+		}
+		throw new IllegalArgumentException("String was not a valid arithmetic expression in prefix notation");
+	}
+
+	/**
+	 * Convert a tree to shared nodes
+	 *
+	 * @param tree
+	 *            - a tree representing an arithmetic expression
+	 * @return the shared node for the whole tree
+	 * @throws IllegalArgumentException
+	 *             if tree is null, empty, or has a node with only one child
+	 */
+	public static SharedExpression fromTree(BinaryTree<String> tree) throws IllegalArgumentException {
+		if (tree == null || tree.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		// post-order with an explicit stack, so that children are built first.
+		// Positions are compared with equals, as some trees hand out a new
+		// handle each time
+		Deque<Position<String>> todo = new ArrayDeque<Position<String>>();
+		Deque<SharedExpression> built = new ArrayDeque<SharedExpression>();
+		Position<String> last = null;
+		todo.push(tree.root());
+		while (!todo.isEmpty()) {
+			Position<String> p = todo.peek();
+			Position<String> left = tree.left(p);
+			Position<String> right = tree.right(p);
+			if ((left == null) != (right == null)) {
+				throw new IllegalArgumentException("Node with only one child");
+			}
+			if (left != null && !right.equals(last)) {
+				// first visit, build the children
+				todo.push(right);
+				todo.push(left);
+				continue;
+			}
+			todo.pop();
+			if (left == null) {
+				built.push(leaf(p.getElement()));
+			} else {
+				SharedExpression r = built.pop();
+				SharedExpression l = built.pop();
+				built.push(of(p.getElement(), l, r));
+			}
+			last = p;
+		}
+		return built.pop();
+	}
+
+	/** @return the operator, variable or value stored at this node */
+	public String getElement() {
+		return element;
+	}
+
+	/** @return the left operand, or null for a variable or value */
+	public SharedExpression getLeft() {
+		return left;
+	}
+
+	/** @return the right operand, or null for a variable or value */
+	public SharedExpression getRight() {
+		return right;
+	}
+
+	/** @return true for a variable or value, false for an operator */
+	public boolean isLeaf() {
+		return left == null;
+	}
+
+	/**
+	 * Expand the expression into a new (unshared) tree. Note the tree can be
+	 * much bigger than the shared nodes it came from.
+	 *
+	 * @return a tree representing the same expression
+	 */
+	public LinkedBinaryTree<String> toTree() {
+		LinkedBinaryTree<String> tree = new ExpressionTree();
+		tree.addRoot(element);
+		// pairs of (shared node, position of its copy) still to expand
+		Deque<SharedExpression> nodes = new ArrayDeque<SharedExpression>();
+		Deque<Position<String>> positions = new ArrayDeque<Position<String>>();
+		nodes.push(this);
+		positions.push(tree.root());
+		while (!nodes.isEmpty()) {
+			SharedExpression node = nodes.pop();
+			Position<String> p = positions.pop();
+			if (!node.isLeaf()) {
+				nodes.push(node.right);
+				positions.push(tree.addRight(p, node.right.element));
+				nodes.push(node.left);
+				positions.push(tree.addLeft(p, node.left.element));
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Shared nodes are equal exactly when they are the same object. Comparing
+	 * the children by identity also lets the intern table find an existing
+	 * node in O(1).
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof SharedExpression)) {
+			return false;
+		}
+		SharedExpression other = (SharedExpression) o;
+		return hash == other.hash && left == other.left && right == other.right && element.equals(other.element);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/** @return the expression in prefix notation */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		Deque<SharedExpression> todo = new ArrayDeque<SharedExpression>();
+		todo.push(this);
+		while (!todo.isEmpty()) {
+			SharedExpression node = todo.pop();
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(node.element);
+			if (!node.isLeaf()) {
+				todo.push(node.right);
+				todo.push(node.left);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,151 @@
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide table of variable names, in two parts.
+ *
+ * canonical keeps a single String instance for each name while anything still
+ * refers to it. prefix2tree stores that instance in every leaf that holds a
+ * variable, so a name repeated across millions of leaves is only stored once,
+ * and two leaves holding the same variable hold the same object. The table
+ * only refers to these names weakly, so names that are no longer in any tree
+ * (including those of malformed or discarded input) are dropped again.
+ *
+ * intern gives a name a small int id, for callers that store ids in place of
+ * names (such as OffHeapExpressionTree). Ids have to stay valid for as long
+ * as they might be stored, so names that have one are never removed; intern
+ * is meant for the (relatively few) names that are actually stored that way,
+ * not for arbitrary data.
+ *
+ * All methods are thread safe.
+ */
+public final class SymbolTable {
+
+	// the weak part is split by hash code, so threads parsing at the same time
+	// rarely wait for each other
+	private static final int SEGMENTS = 16;
+	private static final Segment[] segments = new Segment[SEGMENTS];
+	static {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	// names[id] is the canonical instance of the name with that id
+	private static volatile String[] names = new String[64];
+	private static int count = 0; // guarded by the class lock
+
+	// names (weakly) mapped to their canonical instance, used under its own lock
+	private static final class Segment {
+		private final WeakHashMap<String, WeakReference<String>> names = new WeakHashMap<String, WeakReference<String>>();
+	}
+
+	private SymbolTable() {
+	}
+
+	/**
+	 * Returns the canonical instance of a variable name, which is kept for as
+	 * long as anything else refers to it. No id is given to the name.
+	 *
+	 * @param name
+	 *            - a variable name
+	 * @return a String equal to name, which is the same instance for every
+	 *         call with an equal name while that instance is in use
+	 * @throws IllegalArgumentException
+	 *             if name is null
+	 */
+	public static String canonical(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Variable name was null");
+		}
+		int hash = name.hashCode();
+		Segment segment = segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+		synchronized (segment) {
+			WeakReference<String> reference = segment.names.get(name);
+			String existing = reference == null ? null : reference.get();
+			if (existing != null) {
+				return existing;
+			}
+			segment.names.put(name, new WeakReference<String>(name));
+			return name;
+		}
+	}
+
+	/**
+	 * Returns the id of a variable name, giving it one if needed. The name
+	 * then stays in the table for good.
+	 *
+	 * @param name
+	 *            - a variable name
+	 * @return the id of the name
+	 * @throws IllegalArgumentException
+	 *             if name is null
+	 */
+	public static int intern(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Variable name was null");
+		}
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		return add(canonical(name));
+	}
+
+	/**
+	 * Returns the id of a variable name, without giving it one
+	 *
+	 * @param name
+	 *            - a variable name
+	 * @return the id of the name, or -1 if it hasn't been given one
+	 */
+	public static int lookup(String name) {
+		if (name == null) {
+			return -1;
+		}
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the canonical name for an id
+	 *
+	 * @param id
+	 *            - an id returned by intern
+	 * @return the name with that id
+	 * @throws IllegalArgumentException
+	 *             if no name has that id
+	 */
+	public static String name(int id) {
+		String[] current = names;
+		if (id < 0 || id >= current.length || current[id] == null) {
+			throw new IllegalArgumentException("No variable with id " + id);
+		}
+		return current[id];
+	}
+
+	/**
+	 * @return the number of names that have an id (ids run from 0 to size()-1)
+	 */
+	public static int size() {
+		return ids.size();
+	}
+
+	// slow path of intern, only taken the first time a name is given an id
+	private static synchronized int add(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id; // another thread added it first
+		}
+		String[] grown = count == names.length ? Arrays.copyOf(names, 2 * count) : names;
+		grown[count] = name;
+		// publish the name before the id, so name(id) works as soon as the id
+		// can be seen
+		names = grown;
+		ids.put(name, count);
+		return count++;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * What a node of an expression tree holds: one of the three operators, an
+ * integer literal, or a variable.
+ *
+ * The nodes of an ExpressionTree are classified once with Term.of, when they
+ * are created, and walks read the result back (ExpressionTree.term) rather
+ * than testing the node's String against a regex and the operator symbols
+ * every time they need to know what the node is.
+ */
+public enum Term {
+	PLUS("+"), MINUS("-"), TIMES("*"), LITERAL(null), VARIABLE(null);
+
+	private final String symbol;
+
+	private Term(String symbol) {
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Classify the element of a node. This looks at each character at most
+	 * once and never allocates.
+	 *
+	 * @param element
+	 *            - an operator, number or variable from an expression
+	 * @return the kind of term element is
+	 */
+	public static Term of(String element) {
+		if (element.length() == 1) {
+			switch (element.charAt(0)) {
+			case '+':
+				return PLUS;
+			case '-':
+				return MINUS;
+			case '*':
+				return TIMES;
+			default:
+				break;
+			}
+		}
+		return PrefixTokenizer.isNumber(element) ? LITERAL : VARIABLE;
+	}
+
+	/** @return true for +, - and * */
+	public boolean isOperator() {
+		return symbol != null;
+	}
+
+	/** @return the operator symbol, or null for a literal or variable */
+	public String symbol() {
+		return symbol;
+	}
+
+	/**
+	 * Apply this operator to two values, with the same (wrapping) int
+	 * arithmetic that Assignment.simplify has always used
+	 *
+	 * @param left
+	 *            - the left operand
+	 * @param right
+	 *            - the right operand
+	 * @return left op right
+	 * @throws IllegalStateException
+	 *             if this is not an operator
+	 */
+	public int apply(int left, int right) {
+		switch (this) {
+		case PLUS:
+			return left + right;
+		case MINUS:
+			return left - right;
+		case TIMES:
+			return left * right;
+		default:
+			throw new IllegalStateException(this + " is not an operator");
+		}
+	}
+}
@@ -1,12 +1,47 @@
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import textbook.ArrayBinaryTree;
+import textbook.BinaryTree;
+import textbook.EulerTour;
+import textbook.EulerVisitor;
+import textbook.IntEulerVisitor;
 import textbook.LinkedBinaryTree;
+import textbook.PersistentBinaryTree;
+import textbook.Position;
+import textbook.TreeCursor;
+import textbook.TreeWalk;
 
 public class TestAssignment {
 	
@@ -54,6 +89,1251 @@ public class TestAssignment {
 		tree = Assignment.prefix2tree("+ 5 - 4");
 	}
 	
+	// tokens can be separated by any run of whitespace
+	@Test(timeout = 100)
+	public void testPrefix2treeWhitespace() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("  +   5\t- 4\n 3 ");
+		assertEquals("+ 5 - 4 3", Assignment.tree2prefix(tree));
+
+		tree = Assignment.prefix2tree(new StringBuilder("* x -1"));
+		assertEquals("* x -1", Assignment.tree2prefix(tree));
+
+		// an empty expression is a single empty token, as it was when the
+		// expression was split on spaces
+		tree = Assignment.prefix2tree("");
+		assertEquals(1, tree.size());
+		assertEquals("", tree.root().getElement());
+		assertTrue(Assignment.isArithmeticExpression(tree));
+
+		thrown.expect(IllegalArgumentException.class);
+		Assignment.prefix2tree("   ");
+	}
+
+	// reading from a Reader gives the same tree, even when tokens span buffer refills
+	@Test(timeout = 1000)
+	public void testPrefix2treeReader() {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			name.append('v');
+		}
+		for (int i = 0; i < 1000; i++) {
+			sb.append("+ ").append(name).append(i).append("  ");
+		}
+		sb.append("0");
+		LinkedBinaryTree<String> expected = Assignment.prefix2tree(sb);
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(new StringReader(sb.toString()));
+		assertEquals(2001, tree.size());
+		assertTrue(Assignment.equals(expected, tree));
+
+		// a reader that gives one character at a time splits every token,
+		// operators included, and they must not be taken for variables
+		Reader slow = new FilterReader(new StringReader("- * x y + x 1")) {
+			@Override
+			public int read(char[] buffer, int offset, int length) throws IOException {
+				return super.read(buffer, offset, Math.min(length, 1));
+			}
+		};
+		expected = Assignment.prefix2tree("- * x y + x 1");
+		int symbols = SymbolTable.size();
+		assertTrue(Assignment.equals(expected, Assignment.prefix2tree(slow)));
+		assertEquals(symbols, SymbolTable.size());
+	}
+
+	// parsing a memory mapped file gives the same tree as parsing the text
+	@Test(timeout = 1000)
+	public void testPrefix2treeFile() throws IOException {
+		String expression = "\n* - 1 +  b 3\td \n";
+		Path file = Files.createTempFile("expression", ".txt");
+		try {
+			Files.write(file, expression.getBytes(StandardCharsets.US_ASCII));
+			LinkedBinaryTree<String> tree = Assignment.prefix2tree(file);
+			assertTrue(Assignment.equals(Assignment.prefix2tree(expression), tree));
+			assertEquals("* - 1 + b 3 d", Assignment.tree2prefix(tree));
+
+			// an incomplete expression in a file is rejected the same way
+			Files.write(file, "+ 1".getBytes(StandardCharsets.US_ASCII));
+			thrown.expect(IllegalArgumentException.class);
+			Assignment.prefix2tree(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	// a batch keeps the input order, and one bad expression doesn't stop the rest
+	@Test(timeout = 5000)
+	public void testExpressionBatch() {
+		List<String> expressions = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			expressions.add(i == 500 ? "+ 1" : "+ " + (i + 1) + " * 1 x");
+		}
+		try (ExpressionBatch batch = new ExpressionBatch(4, ExpressionBatch.Simplification.SIMPLIFY_FANCY,
+				ExpressionBatch.Notation.INFIX)) {
+			List<ExpressionBatch.Result> results = batch.process(expressions);
+			assertEquals(1000, results.size());
+			for (int i = 0; i < 1000; i++) {
+				ExpressionBatch.Result result = results.get(i);
+				assertEquals(expressions.get(i), result.getInput());
+				if (i == 500) {
+					assertFalse(result.isSuccess());
+					assertTrue(result.getError() instanceof IllegalArgumentException);
+				} else {
+					assertTrue(result.isSuccess());
+					assertEquals("(" + (i + 1) + "+x)", result.getOutput());
+				}
+			}
+		}
+		try (ExpressionBatch batch = new ExpressionBatch(2, ExpressionBatch.Simplification.SIMPLIFY,
+				ExpressionBatch.Notation.PREFIX)) {
+			List<ExpressionBatch.Result> results = batch.process(Stream.of("+ 1 2", "- x * 2 3", "*"));
+			assertEquals("3", results.get(0).getOutput());
+			assertEquals("- x 6", results.get(1).getOutput());
+			assertFalse(results.get(2).isSuccess());
+		}
+	}
+
+	// identical subexpressions are the same shared node
+	@Test(timeout = 1000)
+	public void testSharedExpression() {
+		SharedExpression e = SharedExpression.parse("- * x y * x y");
+		assertSame(e.getLeft(), e.getRight());
+		assertSame(e, SharedExpression.parse(" - * x y   * x y"));
+		assertSame(e, SharedExpression.fromTree(Assignment.prefix2tree("- * x y * x y")));
+		assertNotSame(e, SharedExpression.parse("- * x y * y x"));
+		assertEquals("- * x y * x y", e.toString());
+		assertTrue(Assignment.equals(Assignment.prefix2tree("- * x y * x y"), e.toTree()));
+
+		// 2^21 leaves, but only 22 distinct subexpressions
+		SharedExpression big = SharedExpression.of("*", SharedExpression.leaf("x"), SharedExpression.leaf("x"));
+		for (int i = 0; i < 20; i++) {
+			big = SharedExpression.of("+", big, big);
+		}
+		assertSame(big.getLeft().getLeft(), big.getRight().getRight());
+
+		thrown.expect(IllegalArgumentException.class);
+		SharedExpression.parse("- * x y");
+	}
+
+	// fromTree works on trees that hand out a new position each time
+	@Test(timeout = 1000)
+	public void testSharedExpressionFromTree() {
+		SharedExpression e = SharedExpression.parse("- * x y + x 1");
+		assertSame(e, SharedExpression.fromTree(Assignment.prefix2tree("- * x y + x 1", new ArrayBinaryTree<String>())));
+		assertSame(e, SharedExpression.fromTree(Assignment.prefix2tree("- * x y + x 1", new OffHeapExpressionTree())));
+		assertSame(e, SharedExpression.fromTree(PersistentBinaryTree.copyOf(Assignment.prefix2tree("- * x y + x 1"))));
+		assertSame(SharedExpression.leaf("x"), SharedExpression.fromTree(Assignment.prefix2tree("x", new ArrayBinaryTree<String>())));
+	}
+
+	// every Assignment method works on an ArrayBinaryTree too
+	@Test(timeout = 1000)
+	public void testArrayBinaryTree() {
+		ArrayBinaryTree<String> tree = Assignment.prefix2tree("- * 1 c + c 0", new ArrayBinaryTree<String>());
+		assertEquals(7, tree.size());
+		assertTrue(Assignment.isArithmeticExpression(tree));
+		assertTrue(Assignment.equals(tree, Assignment.prefix2tree("- * 1 c + c 0")));
+		assertEquals("((1*c)-(c+0))", Assignment.tree2infix(tree));
+		tree = Assignment.simplifyFancy(tree);
+		assertEquals("0", Assignment.tree2prefix(tree));
+		assertEquals(1, tree.size());
+
+		tree = Assignment.prefix2tree("+ c - a b", new ArrayBinaryTree<String>(2));
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put("a", 6);
+		map.put("b", 5);
+		Assignment.substitute(tree, map);
+		Assignment.substitute(tree, "c", 2);
+		assertEquals("+ 2 - 6 5", Assignment.tree2prefix(tree));
+		assertEquals("3", Assignment.tree2prefix(Assignment.simplify(tree)));
+
+		// positions of removed nodes stay invalid after their slot is reused
+		ArrayBinaryTree<String> t = new ArrayBinaryTree<String>();
+		Position<String> root = t.addRoot("+");
+		Position<String> left = t.addLeft(root, "1");
+		assertEquals(left, t.left(root));
+		assertTrue(t.isRoot(t.root()));
+		assertEquals(t.right(root), t.sibling(left));
+		t.remove(left);
+		Position<String> reused = t.addLeft(root, "2");
+		assertFalse(left.equals(reused));
+		assertEquals("2", t.left(root).getElement());
+		thrown.expect(IllegalArgumentException.class);
+		t.parent(left);
+	}
+
+	// every Assignment method works on an OffHeapExpressionTree, which can't be
+	// used once closed
+	@Test(timeout = 1000)
+	public void testOffHeapExpressionTree() {
+		OffHeapExpressionTree tree = Assignment.prefix2tree("- * 1 c + c 0", new OffHeapExpressionTree());
+		assertEquals(7, tree.size());
+		assertTrue(Assignment.isArithmeticExpression(tree));
+		assertTrue(Assignment.equals(tree, Assignment.prefix2tree("- * 1 c + c 0")));
+		assertEquals("((1*c)-(c+0))", Assignment.tree2infix(tree));
+		tree = Assignment.simplifyFancy(tree);
+		assertEquals("0", Assignment.tree2prefix(tree));
+		tree.close();
+
+		// large and non-canonical numbers keep their spelling
+		tree = Assignment.prefix2tree("+ c * -9223372036854775808 - 007 99999999999999999999", new OffHeapExpressionTree());
+		assertEquals("+ c * -9223372036854775808 - 007 99999999999999999999", Assignment.tree2prefix(tree));
+		Assignment.substitute(tree, "c", -2);
+		assertEquals("-2", tree.left(tree.root()).getElement());
+		assertTrue(tree.storageBytes() > 0);
+		// closing gives the direct memory back at once, not at the next GC
+		long bytes = tree.storageBytes();
+		long before = directMemoryUsed();
+		tree.close();
+		assertTrue(tree.isClosed());
+		assertEquals(0, tree.storageBytes());
+		assertTrue(directMemoryUsed() <= before - bytes);
+		tree.close();
+		thrown.expect(IllegalStateException.class);
+		tree.root();
+	}
+
+	private static long directMemoryUsed() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				return pool.getMemoryUsed();
+			}
+		}
+		throw new IllegalStateException("No direct buffer pool");
+	}
+
+	// positions removed by simplify are rejected, and the positions left in
+	// the tree are handed out unchanged
+	@Test(timeout = 1000)
+	public void testRemovedPositions() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ * 2 3 - 4 x");
+		Position<String> removed = tree.left(tree.left(tree.root()));
+		Position<String> kept = tree.right(tree.root());
+		Assignment.simplify(tree);
+		assertEquals("+ 6 - 4 x", Assignment.tree2prefix(tree));
+		try {
+			tree.parent(removed);
+			fail("removed node was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			tree.set(removed, "z");
+			fail("removed node was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertSame(kept, tree.right(tree.root()));
+		assertSame(tree.root(), tree.parent(kept));
+	}
+
+	// cached subtree sizes and heights follow every kind of update
+	@Test(timeout = 5000)
+	public void testSubtreeSizeAndHeight() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 + x y + 3 4");
+		Position<String> times = tree.left(tree.root());
+		assertEquals(9, tree.subtreeSize(tree.root()));
+		assertEquals(3, tree.height(tree.root()));
+		assertEquals(5, tree.subtreeSize(times));
+		assertEquals(2, tree.height(times));
+		assertEquals(3, tree.depth(tree.left(tree.right(times))));
+
+		Assignment.simplify(tree);
+		assertEquals(7, tree.subtreeSize(tree.root()));
+		assertEquals(0, tree.height(tree.right(tree.root())));
+		Assignment.simplifyFancy(tree);
+		assertEquals("- + x y 7", Assignment.tree2prefix(tree));
+		assertEquals(5, tree.subtreeSize(tree.root()));
+		assertEquals(2, tree.height(tree.root()));
+
+		LinkedBinaryTree<String> left = Assignment.prefix2tree("* a b");
+		Position<String> leaf = tree.right(tree.root());
+		tree.set(leaf, "+");
+		tree.attach(leaf, left, Assignment.prefix2tree("c"));
+		assertEquals(9, tree.subtreeSize(tree.root()));
+		assertEquals(3, tree.height(tree.root()));
+		assertEquals(5, tree.subtreeSize(leaf));
+
+		// no recursion, however deep the tree
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(leftChain(1000000));
+		assertEquals(1000000, deep.height(deep.root()));
+		assertEquals(2000001, deep.subtreeSize(deep.root()));
+	}
+
+	// joins the elements of the positions, separated by spaces
+	private static String elements(Iterable<Position<String>> positions) {
+		StringBuilder sb = new StringBuilder();
+		for (Position<String> p : positions) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(p.getElement());
+		}
+		return sb.toString();
+	}
+
+	@Test(timeout = 5000)
+	public void testTraversals() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 + x y + 3 4");
+		assertEquals("- * 1 + x y + 3 4", elements(tree.preorder()));
+		assertEquals("1 * x + y - 3 + 4", elements(tree.inorder()));
+		assertEquals("1 x y + * 3 4 + -", elements(tree.postorder()));
+		assertEquals("- * + 1 + 3 4 x y", elements(tree.breadthfirst()));
+		assertEquals(elements(tree.preorder()), elements(tree.positions()));
+		StringBuilder sb = new StringBuilder();
+		for (String element : tree) {
+			sb.append(element);
+		}
+		assertEquals("-*1+xy+34", sb.toString());
+
+		assertEquals("", elements(new LinkedBinaryTree<String>().inorder()));
+		assertEquals("x", elements(Assignment.prefix2tree("x").postorder()));
+
+		// a tree too deep to walk recursively, and too wide for a small queue
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(leftChain(1000000));
+		int count = 0;
+		for (Position<String> p : deep.postorder()) {
+			count += p.getElement().length();
+		}
+		assertEquals(2000001, count);
+		StringBuilder balanced = new StringBuilder();
+		appendBalanced(balanced, 12);
+		count = 0;
+		int depth = 0;
+		LinkedBinaryTree<String> wide = Assignment.prefix2tree(balanced);
+		for (Position<String> p : wide.breadthfirst()) {
+			assertTrue(wide.depth(p) >= depth);
+			depth = wide.depth(p);
+			count++;
+		}
+		assertEquals(8191, count);
+	}
+
+	// every tree reports its positions and elements in preorder
+	@Test(timeout = 1000)
+	public void testPositionsAndIterator() {
+		List<BinaryTree<String>> trees = new ArrayList<BinaryTree<String>>();
+		trees.add(Assignment.prefix2tree("- * 1 + x y + 3 4", new ArrayBinaryTree<String>()));
+		trees.add(Assignment.prefix2tree("- * 1 + x y + 3 4", new OffHeapExpressionTree()));
+		trees.add(PersistentBinaryTree.copyOf(Assignment.prefix2tree("- * 1 + x y + 3 4")));
+		for (BinaryTree<String> tree : trees) {
+			assertEquals("- * 1 + x y + 3 4", elements(tree.positions()));
+			StringBuilder sb = new StringBuilder();
+			for (String element : tree) {
+				sb.append(element);
+			}
+			assertEquals("-*1+xy+34", sb.toString());
+			Position<String> last = null;
+			for (Position<String> p : tree.positions()) {
+				last = p;
+			}
+			assertEquals(tree.right(tree.right(tree.root())), last);
+		}
+		assertEquals("", elements(new ArrayBinaryTree<String>().positions()));
+		assertFalse(PersistentBinaryTree.<String>empty().iterator().hasNext());
+		assertEquals("x", elements(Assignment.prefix2tree("x", new OffHeapExpressionTree()).positions()));
+
+		Iterator<String> elements = new ArrayBinaryTree<String>().iterator();
+		thrown.expect(NoSuchElementException.class);
+		elements.next();
+	}
+
+	// streams see every position once, in preorder unless run in parallel
+	@Test(timeout = 5000)
+	public void testStreams() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 + x y + 3 4");
+		assertEquals("- * 1 + x y + 3 4",
+				tree.stream().map(Position::getElement).collect(Collectors.joining(" ")));
+		assertEquals("- * 1 + x y + 3 4",
+				tree.parallelStream().map(Position::getElement).collect(Collectors.joining(" ")));
+		assertEquals(9, StreamSupport.stream(tree.spliterator(), false).count());
+		assertEquals("- * 1 + x y + 3 4",
+				StreamSupport.stream(tree.spliterator(), true).collect(Collectors.joining(" ")));
+
+		// parts cover the tree exactly, whatever the split
+		Spliterator<Position<String>> all = tree.positionSpliterator();
+		Spliterator<Position<String>> prefix = all.trySplit();
+		assertEquals(9, prefix.estimateSize() + all.estimateSize());
+		assertTrue(all.hasCharacteristics(Spliterator.SUBSIZED));
+
+		StringBuilder balanced = new StringBuilder();
+		appendBalanced(balanced, 16);
+		LinkedBinaryTree<String> wide = Assignment.prefix2tree(balanced);
+		assertEquals(65536, wide.parallelStream().filter(wide::isExternal).count());
+		assertEquals(131071, wide.parallelStream().distinct().count());
+		assertEquals(0, new LinkedBinaryTree<String>().parallelStream().count());
+
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(leftChain(100000));
+		assertEquals(100000, deep.parallelStream().filter(p -> p.getElement().equals("2")).count());
+	}
+
+	// cursors move the same way over every kind of tree
+	@Test(timeout = 1000)
+	public void testTreeCursor() {
+		List<BinaryTree<String>> trees = new ArrayList<BinaryTree<String>>();
+		trees.add(Assignment.prefix2tree("- * 1 x 3"));
+		trees.add(Assignment.prefix2tree("- * 1 x 3", new ArrayBinaryTree<String>()));
+		trees.add(Assignment.prefix2tree("- * 1 x 3", new OffHeapExpressionTree()));
+		for (BinaryTree<String> tree : trees) {
+			TreeCursor<String> cursor = TreeCursor.of(tree);
+			assertEquals("-", cursor.element());
+			assertFalse(cursor.hasParent());
+			assertFalse(cursor.toParent());
+			assertFalse(cursor.toSibling());
+			assertTrue(cursor.toLeft());
+			assertEquals("*", cursor.element());
+			assertEquals(2, cursor.numChildren());
+			assertTrue(cursor.toRight());
+			assertEquals("x", cursor.element());
+			assertFalse(cursor.toLeft());
+			assertTrue(cursor.toSibling());
+			assertEquals("1", cursor.element());
+			assertTrue(cursor.toParent());
+			assertTrue(cursor.toSibling());
+			assertEquals("3", cursor.element());
+			assertEquals(tree.right(tree.root()), cursor.position());
+			assertEquals("- * 1 x 3", Assignment.tree2prefix(tree));
+			assertEquals("((1*x)-3)", Assignment.tree2infix(tree));
+			assertTrue(Assignment.equals(tree, trees.get(0)));
+		}
+		assertFalse(Assignment.equals(trees.get(0), Assignment.prefix2tree("- * 1 x 4")));
+		assertFalse(Assignment.equals(trees.get(0), Assignment.prefix2tree("- * 1 x + 3 y")));
+		assertTrue(Assignment.equals(new LinkedBinaryTree<String>(), new ArrayBinaryTree<String>()));
+
+		thrown.expect(IllegalArgumentException.class);
+		TreeCursor.of(new LinkedBinaryTree<String>());
+	}
+
+	@Test(timeout = 1000)
+	public void testPersistentBinaryTree() {
+		PersistentBinaryTree<String> tree = PersistentBinaryTree.copyOf(Assignment.prefix2tree("- * 1 x + * 2 3 y"));
+		assertEquals(9, tree.size());
+		assertEquals("- * 1 x + * 2 3 y", Assignment.tree2prefix(tree));
+		assertEquals(3, tree.height(tree.root()));
+
+		// updates return a new version and leave the old one alone
+		Position<String> y = tree.right(tree.right(tree.root()));
+		assertEquals(tree.right(tree.root()), tree.parent(y));
+		assertEquals(tree.left(tree.right(tree.root())), tree.sibling(y));
+		PersistentBinaryTree<String> z = tree.withElement(y, "z");
+		assertEquals("- * 1 x + * 2 3 z", Assignment.tree2prefix(z));
+		assertEquals("- * 1 x + * 2 3 y", Assignment.tree2prefix(tree));
+		assertEquals("- * 1 x 7", Assignment.tree2prefix(tree.withSubtree(tree.right(tree.root()), PersistentBinaryTree.leaf("7"))));
+		assertEquals("- * 1 x * 1 x", Assignment.tree2prefix(tree.withSubtree(tree.right(tree.root()), tree.leftSubtree())));
+
+		// the non-destructive operations don't change their argument
+		assertEquals("- x + 6 y", Assignment.tree2prefix(Assignment.simplifyFancy(tree)));
+		assertEquals("- * 1 x + 6 y", Assignment.tree2prefix(Assignment.simplify(tree)));
+		assertEquals("- * 1 4 + * 2 3 y", Assignment.tree2prefix(Assignment.substitute(tree, "x", 4)));
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put("x", 1);
+		map.put("y", 2);
+		assertEquals("-7", Assignment.tree2prefix(Assignment.simplify(Assignment.substitute(tree, map))));
+		assertEquals("- * 1 x + * 2 3 y", Assignment.tree2prefix(tree));
+		assertEquals("0", Assignment.tree2prefix(Assignment.simplifyFancy(PersistentBinaryTree.copyOf(Assignment.prefix2tree("- + x 1 + x 1")))));
+
+		// versions share whatever didn't change
+		PersistentBinaryTree<String> simple = PersistentBinaryTree.copyOf(Assignment.prefix2tree("+ x * y 2"));
+		assertSame(simple, Assignment.simplify(simple));
+		assertSame(simple, Assignment.substitute(simple, "w", 1));
+
+		// a subtree may appear twice in one version
+		PersistentBinaryTree<String> twice = PersistentBinaryTree.of("+", PersistentBinaryTree.leaf("x"), PersistentBinaryTree.leaf("x"));
+		twice = PersistentBinaryTree.of("-", twice.leftSubtree(), twice.leftSubtree());
+		assertFalse(twice.left(twice.root()).equals(twice.right(twice.root())));
+		assertEquals("- 5 x", Assignment.tree2prefix(twice.withElement(twice.left(twice.root()), "5")));
+	}
+
+	@Test(timeout = 1000)
+	public void testCopy() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 x + * 2 3 y");
+		LinkedBinaryTree<String> copy = tree.copy();
+		assertTrue(Assignment.equals(tree, copy));
+		assertEquals(9, copy.size());
+		assertEquals(3, copy.height(copy.root()));
+		assertEquals("- * 1 x + * 2 3 y", elements(copy.preorder()));
+
+		// the copy is independent of the original
+		Assignment.simplifyFancy(copy);
+		assertEquals("- x + 6 y", Assignment.tree2prefix(copy));
+		assertEquals("- * 1 x + * 2 3 y", Assignment.tree2prefix(tree));
+
+		LinkedBinaryTree<String> right = tree.copySubtree(tree.right(tree.root()));
+		assertEquals("+ * 2 3 y", Assignment.tree2prefix(right));
+		assertEquals(5, right.size());
+		assertNull(right.parent(right.root()));
+		assertEquals(1, right.depth(right.left(right.root())));
+		assertEquals("y", Assignment.tree2prefix(tree.copySubtree(tree.right(tree.right(tree.root())))));
+		assertTrue(new LinkedBinaryTree<String>().copy().isEmpty());
+
+		// subtrees with only a right child
+		LinkedBinaryTree<String> lopsided = new LinkedBinaryTree<String>();
+		Position<String> p = lopsided.addRoot("a");
+		lopsided.addRight(lopsided.addLeft(p, "b"), "c");
+		lopsided.addRight(lopsided.addRight(p, "d"), "e");
+		assertEquals("a b c d e", elements(lopsided.copy().preorder()));
+		assertEquals("b c a d e", elements(lopsided.copy().inorder()));
+
+		// copying is not limited by the thread stack
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(leftChain(100000));
+		LinkedBinaryTree<String> deepCopy = deep.copy();
+		assertEquals(200001, deepCopy.size());
+		assertEquals(100000, deepCopy.height(deepCopy.root()));
+		assertEquals(200000, deepCopy.subtreeSize(deepCopy.left(deepCopy.root())) + 1);
+	}
+
+	@Test(timeout = 1000)
+	public void testPruneAndReplace() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 x + * 2 3 y");
+		LinkedBinaryTree<String> pruned = tree.prune(tree.left(tree.right(tree.root())));
+		assertEquals("* 2 3", Assignment.tree2prefix(pruned));
+		assertEquals(3, pruned.size());
+		assertNull(pruned.parent(pruned.root()));
+		assertEquals(6, tree.size());
+		assertEquals(1, tree.numChildren(tree.right(tree.root())));
+
+		LinkedBinaryTree<String> old = tree.replaceSubtree(tree.left(tree.root()), pruned);
+		assertEquals("* 1 x", Assignment.tree2prefix(old));
+		assertTrue(pruned.isEmpty());
+		assertEquals(0, pruned.size());
+		assertEquals(6, tree.size());
+		assertEquals("* 2 3", Assignment.tree2prefix(tree.copySubtree(tree.left(tree.root()))));
+		assertEquals(2, tree.height(tree.root()));
+		tree.replaceSubtree(tree.root(), old);
+		assertEquals("* 1 x", Assignment.tree2prefix(tree));
+		assertEquals(3, tree.size());
+
+		// sizes that were not known yet are worked out when needed
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(leftChain(100000));
+		Position<String> middle = deep.root();
+		for (int i = 0; i < 50000; i++) {
+			middle = deep.left(middle);
+		}
+		LinkedBinaryTree<String> bottom = deep.prune(middle);
+		assertEquals(100001, bottom.size());
+		assertEquals(100000, deep.size());
+		assertEquals(50000, deep.height(deep.root()));
+
+		// removing a subtree takes O(1) time for a LinkedBinaryTree, and is done
+		// node by node for other trees
+		deep.removeSubtree(deep.left(deep.root()));
+		assertEquals(2, deep.size());
+		ArrayBinaryTree<String> array = Assignment.prefix2tree("+ * 1 x y", new ArrayBinaryTree<String>());
+		Position<String> times = array.left(array.root());
+		array.removeSubtree(times);
+		assertEquals(2, array.size());
+		assertEquals("y", array.right(array.root()).getElement());
+		thrown.expect(IllegalArgumentException.class);
+		array.left(times);
+	}
+
+	// positions below a removed or cut off subtree are rejected, as are
+	// positions of another tree
+	@Test(timeout = 1000)
+	public void testStaleSubtreePositions() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ * x y z");
+		Position<String> times = tree.left(tree.root());
+		Position<String> x = tree.left(times);
+		tree.removeSubtree(times);
+		assertEquals(2, tree.size());
+		int rejected = 0;
+		try {
+			tree.set(x, "w");
+		} catch (IllegalArgumentException e) {
+			rejected++;
+		}
+		try {
+			tree.addLeft(x, "w");
+		} catch (IllegalArgumentException e) {
+			rejected++;
+		}
+		try {
+			tree.depth(x);
+		} catch (IllegalArgumentException e) {
+			rejected++;
+		}
+		try {
+			tree.parent(x);
+		} catch (IllegalArgumentException e) {
+			rejected++;
+		}
+		assertEquals(4, rejected);
+		assertEquals(2, tree.size());
+		assertEquals("z", tree.right(tree.root()).getElement());
+		assertEquals(0, tree.height(tree.right(tree.root())));
+
+		// after replaceSubtree, the old subtree's positions belong to the returned tree
+		tree = Assignment.prefix2tree("- * 1 x + 2 y");
+		Position<String> one = tree.left(tree.left(tree.root()));
+		LinkedBinaryTree<String> old = tree.replaceSubtree(tree.left(tree.root()), Assignment.prefix2tree("z"));
+		assertEquals(1, old.depth(one));
+		old.set(one, "3");
+		assertEquals("* 3 x", Assignment.tree2prefix(old));
+		assertEquals("- z + 2 y", Assignment.tree2prefix(tree));
+		try {
+			tree.set(one, "4");
+			fail("replaced position was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		thrown.expect(IllegalArgumentException.class);
+		tree.depth(Assignment.prefix2tree("x").root());
+	}
+
+	// a tree grafted on by replaceSubtree or attach no longer accepts the
+	// positions of its nodes, which now belong to the other tree
+	@Test(timeout = 1000)
+	public void testGraftedDonorPositions() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ 1 y");
+		LinkedBinaryTree<String> donor = Assignment.prefix2tree("* x 2");
+		Position<String> x = donor.left(donor.root());
+		tree.replaceSubtree(tree.right(tree.root()), donor);
+		try {
+			donor.set(x, "z");
+			fail("grafted position was accepted by the donor");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			donor.addLeft(x, "z");
+			fail("grafted position was accepted by the donor");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertTrue(donor.isEmpty());
+		assertEquals(0, donor.size());
+		assertEquals(5, tree.size());
+		assertEquals("+ 1 * x 2", Assignment.tree2prefix(tree));
+		assertTrue(Assignment.isArithmeticExpression(tree));
+		assertEquals(2, tree.depth(x));
+
+		LinkedBinaryTree<String> left = Assignment.prefix2tree("a");
+		LinkedBinaryTree<String> right = Assignment.prefix2tree("- b c");
+		Position<String> b = right.left(right.root());
+		tree.set(x, "+");
+		tree.attach(x, left, right);
+		assertEquals("+ 1 * + a - b c 2", Assignment.tree2prefix(tree));
+		assertEquals(4, tree.depth(b));
+		for (LinkedBinaryTree<String> t : Arrays.asList(left, right)) {
+			try {
+				t.parent(b);
+				fail("attached position was accepted by the donor");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	// removing a subtree only visits that subtree, so simplifying a deep tree
+	// that needs a removal at every level takes linear time
+	@Test(timeout = 5000)
+	public void testDeepRemoveSubtree() {
+		StringBuilder expression = new StringBuilder();
+		for (int i = 0; i < 40000; i++) {
+			expression.append("+ * 0 + a b ");
+		}
+		expression.append("x");
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		Assignment.simplifyFancy(tree);
+		assertEquals("x", Assignment.tree2prefix(tree));
+		assertEquals(1, tree.size());
+	}
+
+	@Test(timeout = 1000)
+	public void testExpressionCodec() throws IOException {
+		String expression = "- * 1 x + * -300 007 + y * 9223372036854775807 + 99999999999999999999 \u00e9t\u00e9";
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		byte[] bytes = ExpressionCodec.encode(tree);
+		assertEquals(expression, Assignment.tree2prefix(ExpressionCodec.decode(bytes)));
+		// repeated variables refer back to the dictionary, small literals are one byte
+		assertEquals(4 + 6, ExpressionCodec.encode(Assignment.prefix2tree("+ x x")).length);
+		assertEquals(4 + 3, ExpressionCodec.encode(Assignment.prefix2tree("* 2 247")).length);
+
+		// several trees in a row on one stream, and in one buffer
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		ExpressionCodec.write(tree, data);
+		ExpressionCodec.write(Assignment.prefix2tree("x"), data);
+		ExpressionCodec.write(Assignment.prefix2tree(leftChain(100000)), data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(Assignment.equals(tree, ExpressionCodec.read(in)));
+		assertEquals("x", Assignment.tree2prefix(ExpressionCodec.read(in, new ArrayBinaryTree<String>())));
+		assertEquals(200001, ExpressionCodec.read(in).size());
+		assertEquals(-1, in.read());
+
+		ByteBuffer buffer = ByteBuffer.allocate(2 * bytes.length);
+		ExpressionCodec.write(tree, buffer);
+		ExpressionCodec.write(tree, buffer);
+		buffer.flip();
+		assertTrue(Assignment.equals(tree, ExpressionCodec.read(buffer)));
+		assertTrue(Assignment.equals(tree, ExpressionCodec.read(buffer)));
+		assertFalse(buffer.hasRemaining());
+
+		try {
+			ExpressionCodec.read(new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 1)));
+			fail("a truncated tree should not be read");
+		} catch (EOFException e) {
+			// expected
+		}
+		thrown.expect(IllegalArgumentException.class);
+		ExpressionCodec.decode("+ 1 2".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	// symbol lengths are checked before anything is allocated for them, and
+	// every truncation of a valid encoding is rejected
+	@Test(timeout = 5000)
+	public void testExpressionCodecCorrupt() throws IOException {
+		// the header and NEW_SYMBOL opcode of a one variable tree
+		byte[] header = Arrays.copyOf(ExpressionCodec.encode(Assignment.prefix2tree("x")), 5);
+		long[] lengths = { (1L << 32) + 5, Integer.MAX_VALUE - 8, Long.MAX_VALUE };
+		for (long length : lengths) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(header);
+			for (; (length & ~0x7FL) != 0; length >>>= 7) {
+				out.write((int) (length & 0x7F) | 0x80);
+			}
+			out.write((int) length);
+			out.write("xyz".getBytes(StandardCharsets.US_ASCII));
+			byte[] corrupt = out.toByteArray();
+			try {
+				ExpressionCodec.decode(corrupt);
+				fail("bad symbol length was accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			try {
+				ExpressionCodec.read(ByteBuffer.wrap(corrupt));
+				fail("bad symbol length was accepted");
+			} catch (IllegalArgumentException e) {
+				// expected, for lengths that don't fit in an int
+			} catch (BufferUnderflowException e) {
+				// expected, for lengths longer than the buffer
+			}
+			try {
+				ExpressionCodec.read(new DataInputStream(new ByteArrayInputStream(corrupt)));
+				fail("bad symbol length was accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+
+		byte[] bytes = ExpressionCodec.encode(Assignment.prefix2tree("- * 1 x + -300 \u00e9t\u00e9"));
+		for (int end = 0; end < bytes.length; end++) {
+			try {
+				ExpressionCodec.decode(Arrays.copyOf(bytes, end));
+				fail("truncated encoding was accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(timeout = 1000)
+	public void testFlatExpression() throws IOException {
+		String expression = "- * 1 x + * -300 007 + y * 9223372036854775807 + x y";
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(expression);
+		FlatExpression flat = FlatExpression.of(tree);
+		assertEquals(15, flat.size());
+		assertEquals(expression, flat.toPrefix());
+		assertEquals(Assignment.tree2infix(tree), flat.toInfix());
+		assertEquals("((1*x)-3)", FlatExpression.of(Assignment.prefix2tree("- * 1 x 3")).toInfix());
+		assertEquals("x", FlatExpression.of(Assignment.prefix2tree("x")).toInfix());
+
+		// moving about in O(1) using the subtree sizes
+		assertEquals(4, flat.right(0));
+		assertEquals("+", flat.elementAt(flat.right(0)));
+		assertEquals(11, flat.subtreeSize(4));
+		assertEquals("x", flat.elementAt(flat.right(flat.left(0))));
+		assertFalse(flat.isOperator(3));
+		assertArrayEquals(new String[] { "x", "007", "y" }, flat.symbols());
+		assertTrue(flat.contains("y"));
+		assertFalse(flat.contains("z"));
+
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put("x", 2);
+		map.put("y", 3);
+		LinkedBinaryTree<String> small = Assignment.prefix2tree("- * 1 x + * -300 007 + y * 4 + x y");
+		assertEquals(Assignment.tree2prefix(Assignment.simplify(Assignment.substitute(small.copy(), map))),
+				Integer.toString(FlatExpression.of(small).evaluate(map)));
+
+		// several expressions used in place from one buffer
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		buffer.putInt(7);
+		int first = FlatExpression.write(tree, buffer);
+		FlatExpression.write(Assignment.prefix2tree(leftChain(100)), buffer);
+		FlatExpression a = FlatExpression.at(buffer, 4);
+		FlatExpression b = FlatExpression.at(buffer, 4 + a.byteSize());
+		assertEquals(first, a.byteSize());
+		assertEquals(expression, a.toPrefix());
+		assertEquals(201, b.size());
+		assertEquals(201, b.evaluate(null));
+		assertEquals(4 + a.byteSize() + b.byteSize(), buffer.position());
+
+		thrown.expect(IllegalArgumentException.class);
+		flat.evaluate(map);
+	}
+
+	// corrupt records, symbols and counts in a stored expression are rejected
+	// with an IllegalArgumentException when they are read
+	@Test(timeout = 1000)
+	public void testFlatExpressionCorrupt() {
+		ByteBuffer good = ByteBuffer.allocate(256);
+		FlatExpression.write(Assignment.prefix2tree("+ x 2"), good);
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put("x", 1);
+		assertEquals(3, FlatExpression.at(good, 0).evaluate(map));
+
+		// (offset, int written there): node kinds 0, 6 and 7, symbol indices
+		// out of range, a leaf turned into an operator, a symbol ending before
+		// it starts, and node counts whose records don't fit in an int
+		int[][] corruptions = { { 16, 3 << 3 }, { 16, (3 << 3) | 6 }, { 28, (1 << 3) | 7 }, { 32, 1 },
+				{ 32, -1 }, { 40, (1 << 3) | 1 }, { 52, 2 }, { 4, 0x20000000 }, { 4, 0x7FFFFFFF } };
+		for (int[] corruption : corruptions) {
+			ByteBuffer bad = ByteBuffer.allocate(256);
+			bad.put(good.array());
+			bad.putInt(corruption[0], corruption[1]);
+			try {
+				FlatExpression flat = FlatExpression.at(bad, 0);
+				flat.evaluate(map);
+				flat.toPrefix();
+				flat.toInfix();
+				fail("corrupt expression was accepted: " + Arrays.toString(corruption));
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(timeout = 2000)
+	public void testStreamingWriters() throws IOException {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 x + 3 \u00e9");
+		StringWriter writer = new StringWriter();
+		Assignment.tree2prefix(tree, writer);
+		writer.append('|');
+		Assignment.tree2infix(tree, writer);
+		assertEquals("- * 1 x + 3 \u00e9|((1*x)-(3+\u00e9))", writer.toString());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assignment.tree2infix(tree, out);
+		assertEquals("((1*x)-(3+\u00e9))", new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals("x", Assignment.tree2infix(Assignment.prefix2tree("x")));
+
+		// writing is not limited by the thread stack
+		String chain = leftChain(1000000);
+		LinkedBinaryTree<String> deep = Assignment.prefix2tree(chain);
+		assertEquals(chain, Assignment.tree2prefix(deep));
+		String infix = Assignment.tree2infix(deep);
+		assertEquals(4000001, infix.length());
+		assertTrue(infix.startsWith("(1+2)+2)+2)", 999999));
+
+		LinkedBinaryTree<String> invalid = new LinkedBinaryTree<String>();
+		invalid.addLeft(invalid.addRoot("+"), "1");
+		thrown.expect(IllegalArgumentException.class);
+		Assignment.tree2prefix(invalid, new StringBuilder());
+	}
+
+	// the walk visits each node before, between and after its subtrees, over
+	// every kind of tree
+	@Test(timeout = 1000)
+	public void testTreeWalk() {
+		List<BinaryTree<String>> trees = new ArrayList<BinaryTree<String>>();
+		trees.add(Assignment.prefix2tree("- * 1 x 3"));
+		trees.add(Assignment.prefix2tree("- * 1 x 3", new ArrayBinaryTree<String>()));
+		trees.add(Assignment.prefix2tree("- * 1 x 3", new OffHeapExpressionTree()));
+		trees.add(PersistentBinaryTree.copyOf(trees.get(0)));
+		for (BinaryTree<String> tree : trees) {
+			StringBuilder pre = new StringBuilder();
+			StringBuilder in = new StringBuilder();
+			StringBuilder post = new StringBuilder();
+			TreeWalk<String> walk = TreeWalk.of(tree);
+			int deepest = 0;
+			while (walk.next()) {
+				String element = walk.cursor().element();
+				(walk.visit() == TreeWalk.Visit.PRE ? pre : walk.visit() == TreeWalk.Visit.IN ? in : post).append(element);
+				deepest = Math.max(deepest, walk.depth());
+			}
+			assertEquals("-*1x3", pre.toString());
+			assertEquals("1*x-3", in.toString());
+			assertEquals("1x*3-", post.toString());
+			assertEquals(2, deepest);
+			assertFalse(walk.next());
+			assertEquals("-", walk.cursor().element());
+		}
+
+		// a walk of a subtree stays inside it
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 x 3");
+		TreeWalk<String> walk = new TreeWalk<String>(tree.cursor(tree.left(tree.root())));
+		StringBuilder pre = new StringBuilder();
+		while (walk.next()) {
+			if (walk.visit() == TreeWalk.Visit.PRE) {
+				pre.append(walk.cursor().element());
+			}
+		}
+		assertEquals("*1x", pre.toString());
+	}
+
+	// every operation walks the tree without recursing, so deep trees work on a
+	// thread with a small stack
+	@Test(timeout = 5000)
+	public void testSmallStack() throws InterruptedException {
+		final int depth = 100000;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					LinkedBinaryTree<String> tree = Assignment.prefix2tree(leftChain(depth));
+					assertTrue(Assignment.isArithmeticExpression(tree));
+					assertTrue(Assignment.equals(tree, Assignment.prefix2tree(leftChain(depth))));
+					assertTrue(Assignment.tree2infix(tree).endsWith("+2)+2)"));
+					PersistentBinaryTree<String> persistent = PersistentBinaryTree.copyOf(tree);
+					assertEquals(Integer.toString(1 + 2 * depth), Assignment.tree2prefix(Assignment.simplify(persistent)));
+					assertEquals(Integer.toString(1 + 2 * depth), Assignment.tree2prefix(Assignment.simplifyFancy(persistent)));
+					assertEquals(2 * depth + 1, Assignment.substitute(persistent, "x", 1).size());
+					assertEquals(Integer.toString(1 + 2 * depth), Assignment.tree2prefix(Assignment.simplify(tree)));
+
+					tree = Assignment.prefix2tree(leftChain(depth).replace('1', 'x'));
+					Assignment.substitute(tree, "x", 5);
+					Assignment.simplifyFancy(tree);
+					assertEquals(Integer.toString(5 + 2 * depth), Assignment.tree2prefix(tree));
+
+					// - a a where a is deep, compared and removed in one go
+					String a = leftChain(depth / 2).replace('1', 'y');
+					tree = Assignment.prefix2tree("- " + a + " " + a);
+					assertEquals("0", Assignment.tree2prefix(Assignment.simplifyFancy(tree)));
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}
+		}, "small stack", 64 * 1024);
+		thread.start();
+		thread.join();
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+	}
+
+	// the tour calls the visitor at the visits it asks for, and stops when it
+	// returns false
+	@Test(timeout = 1000)
+	public void testEulerTour() throws IOException {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("- * 1 x 3");
+		final StringBuilder visits = new StringBuilder();
+		assertTrue(EulerTour.tour(tree, new EulerVisitor<String>() {
+			public boolean onPre(TreeCursor<String> node) {
+				visits.append('<').append(node.element());
+				return true;
+			}
+
+			public boolean onIn(TreeCursor<String> node) {
+				visits.append(node.element());
+				return true;
+			}
+
+			public boolean onPost(TreeCursor<String> node) {
+				visits.append(node.element()).append('>');
+				return true;
+			}
+		}));
+		assertEquals("<-<*<111>*<xxx>*>-<333>->", visits.toString());
+
+		// only the POST visits, stopping at x
+		visits.setLength(0);
+		assertFalse(EulerTour.tour(tree, new EulerVisitor<String>() {
+			public int visits() {
+				return EulerTour.POST;
+			}
+
+			public boolean onPost(TreeCursor<String> node) {
+				visits.append(node.element());
+				return !node.element().equals("x");
+			}
+		}));
+		assertEquals("1x", visits.toString());
+
+		// an int threaded through the tour: the number of leaves, and the
+		// largest number of operators on a path from the root
+		assertEquals(3, EulerTour.tour(tree, 0, new IntEulerVisitor<String>() {
+			public int visits() {
+				return EulerTour.PRE;
+			}
+
+			public int onPre(TreeCursor<String> node, int leaves) {
+				return node.numChildren() == 0 ? leaves + 1 : leaves;
+			}
+		}));
+		IntEulerVisitor<String> depth = new IntEulerVisitor<String>() {
+			private int operators = 0;
+
+			public int visits() {
+				return EulerTour.PRE | EulerTour.POST;
+			}
+
+			public int onPre(TreeCursor<String> node, int deepest) {
+				if (node.numChildren() != 0) {
+					operators++;
+				}
+				return Math.max(deepest, operators);
+			}
+
+			public int onPost(TreeCursor<String> node, int deepest) {
+				if (node.numChildren() != 0) {
+					operators--;
+				}
+				return deepest;
+			}
+		};
+		assertEquals(2, EulerTour.tour(tree, 0, depth));
+		assertEquals(100000, EulerTour.tour(Assignment.prefix2tree(leftChain(100000)), 0, depth));
+		assertEquals(7, EulerTour.tour(new LinkedBinaryTree<String>(), 7, depth));
+
+		// a failing Appendable ends the tour, and its exception is thrown
+		thrown.expect(IOException.class);
+		try {
+			Assignment.tree2infix(tree, new Appendable() {
+				public Appendable append(CharSequence csq) throws IOException {
+					throw new IOException("full");
+				}
+
+				public Appendable append(CharSequence csq, int start, int end) throws IOException {
+					throw new IOException("full");
+				}
+
+				public Appendable append(char c) throws IOException {
+					throw new IOException("full");
+				}
+			});
+		} catch (IOException e) {
+			assertEquals("full", e.getMessage());
+			throw e;
+		}
+	}
+
+	@Test(timeout = 1000)
+	public void testExpressionProgram() {
+		ExpressionProgram program = ExpressionProgram.compile(Assignment.prefix2tree("- * 2 x + y 007"));
+		assertEquals(Arrays.asList("x", "y"), program.variables());
+		assertEquals(1, program.slot("y"));
+		assertEquals(-1, program.slot("z"));
+		long[] stack = program.newStack();
+		assertEquals(0, program.evaluate(new long[] { 5, 3 }, stack));
+		assertEquals(-17, program.evaluate(new long[] { -4, 2 }, stack));
+
+		// the same answers as substituting and simplifying, for a bigger expression
+		String expression = "* - + x * 3 y - z 4 + * x x - 10 y";
+		program = ExpressionProgram.compile(Assignment.prefix2tree(expression));
+		stack = program.newStack();
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = -3; i <= 3; i++) {
+			map.put("x", i);
+			map.put("y", 2 * i + 1);
+			map.put("z", 7 - i);
+			LinkedBinaryTree<String> tree = Assignment.simplify(Assignment.substitute(Assignment.prefix2tree(expression), map));
+			assertEquals(Long.parseLong(Assignment.tree2prefix(tree)), program.evaluate(program.bindings(map), stack));
+		}
+
+		// subtrees without variables are worked out when compiling
+		assertEquals(3, ExpressionProgram.compile(Assignment.prefix2tree("+ x * 3 - 5 2")).length());
+		assertEquals(1, ExpressionProgram.compile(Assignment.prefix2tree("* 2 - 5 1")).length());
+		assertEquals(8, ExpressionProgram.compile(Assignment.prefix2tree("* 2 - 5 1")).evaluate(new long[0]));
+
+		// long arithmetic, and deep expressions
+		assertEquals(4000000000L, ExpressionProgram.compile(Assignment.prefix2tree("* x 2")).evaluate(new long[] { 2000000000L }));
+		program = ExpressionProgram.compile(Assignment.prefix2tree(leftChain(100000).replace("1", "w")));
+		assertEquals(2, program.maxStack());
+		assertEquals(200005, program.evaluate(new long[] { 5 }));
+
+		try {
+			program.evaluate(new long[0]);
+			fail("no bindings");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		thrown.expect(IllegalArgumentException.class);
+		ExpressionProgram.compile(Assignment.prefix2tree("+ 1 99999999999999999999"));
+	}
+
+	@Test(timeout = 2000)
+	public void testExpressionJit() {
+		String[] expressions = { "- * 2 x + y 007", "* - + x * 3 y - z 4 + * x x - 10 y", "x", "42",
+				"* 100000 * x 3000000000", "- -5 * y 200" };
+		long[][] rows = { { 0, 0, 0 }, { 5, 3, 1 }, { -4, 2, 9 }, { 1 << 20, -7, 1 } };
+		for (String expression : expressions) {
+			ExpressionProgram program = ExpressionProgram.compile(Assignment.prefix2tree(expression));
+			ExpressionJit.Evaluator evaluator = ExpressionJit.compile(program);
+			// a class of its own
+			assertFalse(evaluator.getClass().getClassLoader() == ExpressionJit.class.getClassLoader());
+			for (long[] row : rows) {
+				assertEquals(program.evaluate(row), evaluator.eval(row));
+			}
+		}
+
+		// the same structure shares a class, whatever the variables are called
+		assertSame(ExpressionJit.compile(Assignment.prefix2tree("+ a * b 3")),
+				ExpressionJit.compile(Assignment.prefix2tree("+ p * q 3")));
+		assertFalse(ExpressionJit.compile(Assignment.prefix2tree("+ a * b 3")) == ExpressionJit
+				.compile(Assignment.prefix2tree("+ a * b 4")));
+
+		// long programs run in the interpreter instead
+		ExpressionJit.Evaluator chain = ExpressionJit.compile(Assignment.prefix2tree(leftChain(100000).replace("1", "w")));
+		assertTrue(chain.getClass().getClassLoader() == ExpressionJit.class.getClassLoader());
+		assertEquals(200005, chain.eval(new long[] { 5 }));
+		ExpressionJit.Evaluator longest = ExpressionJit.compile(Assignment.prefix2tree(leftChain(749).replace("1", "w")));
+		assertFalse(longest.getClass().getClassLoader() == ExpressionJit.class.getClassLoader());
+		assertEquals(1503, longest.eval(new long[] { 5 }));
+	}
+
+	@Test(timeout = 2000)
+	public void testColumnarExpression() {
+		String[] expressions = { "- * 2 x + y 007", "* - + x * 3 y - z 4 + * x x - 10 y", "x", "42", "- 5 * 2 x",
+				"* 100000 * x 3000000000" };
+		int rows = 2 * ColumnarExpression.CHUNK + 500;
+		int[][] ints = new int[3][rows];
+		long[][] longs = new long[3][rows];
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < 3; column++) {
+				ints[column][row] = (row * (column + 7)) % 101 - 50;
+				longs[column][row] = ints[column][row];
+			}
+		}
+		for (String expression : expressions) {
+			ExpressionProgram program = ExpressionProgram.compile(Assignment.prefix2tree(expression));
+			ColumnarExpression columnar = ColumnarExpression.compile(Assignment.prefix2tree(expression));
+			assertEquals(program.variables(), columnar.variables());
+			long[] fromLongs = new long[rows];
+			long[] fromInts = new long[rows];
+			columnar.evaluate(longs, fromLongs);
+			columnar.evaluate(ints, fromInts);
+			HashMap<String, Object> named = new HashMap<String, Object>();
+			for (int i = 0; i < columnar.variables().size(); i++) {
+				named.put(columnar.variables().get(i), i % 2 == 0 ? ints[i] : longs[i]);
+			}
+			long[] fromMap = columnar.evaluate(named, rows);
+			long[] bindings = new long[3];
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < 3; column++) {
+					bindings[column] = longs[column][row];
+				}
+				long expected = program.evaluate(bindings);
+				assertEquals(expected, fromLongs[row]);
+				assertEquals(expected, fromInts[row]);
+				assertEquals(expected, fromMap[row]);
+			}
+		}
+
+		// rows beyond out are ignored, but a short column is an error
+		ColumnarExpression sum = ColumnarExpression.compile(Assignment.prefix2tree("+ a b"));
+		long[] out = new long[2];
+		sum.evaluate(new long[][] { { 1, 2, 3 }, { 10, 20, 30 } }, out);
+		assertEquals("[11, 22]", Arrays.toString(out));
+		thrown.expect(IllegalArgumentException.class);
+		sum.evaluate(new long[][] { { 1, 2, 3 }, { 10 } }, out);
+	}
+
+	@Test(timeout = 1000)
+	public void testTerm() {
+		assertEquals(Term.PLUS, Term.of("+"));
+		assertEquals(Term.MINUS, Term.of("-"));
+		assertEquals(Term.TIMES, Term.of("*"));
+		assertEquals(Term.LITERAL, Term.of("-12"));
+		assertEquals(Term.LITERAL, Term.of("007"));
+		assertEquals(Term.VARIABLE, Term.of("--1"));
+		assertEquals(Term.VARIABLE, Term.of("x1"));
+		assertEquals(Term.VARIABLE, Term.of("++"));
+		assertEquals(-6, Term.TIMES.apply(2, -3));
+
+		// simplifying a child tells its parent what it has become
+		assertEquals("x", Assignment.tree2prefix(Assignment.simplifyFancy(Assignment.prefix2tree("* 1 + 0 x"))));
+		assertEquals("0", Assignment.tree2prefix(Assignment.simplifyFancy(Assignment.prefix2tree("- * 1 x + x 0"))));
+		assertEquals("x", Assignment.tree2prefix(Assignment.simplifyFancy(Assignment.prefix2tree("+ * 1 x * 0 y"))));
+		assertEquals("* 3 - x 3", Assignment.tree2prefix(Assignment.simplify(Assignment.prefix2tree("* + 1 2 - x 3"))));
+	}
+
+	// parsed trees keep each node's Term, which follows set, and nodes grafted
+	// on from other trees are classified when they are visited
+	@Test(timeout = 1000)
+	public void testExpressionTree() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ x 2");
+		assertTrue(tree instanceof ExpressionTree);
+		TreeCursor<String> at = TreeCursor.of(tree);
+		assertEquals(Term.PLUS, ExpressionTree.term(at));
+		at.toLeft();
+		assertEquals(Term.VARIABLE, ExpressionTree.term(at));
+		tree.set(at.position(), "7");
+		assertEquals(Term.LITERAL, ExpressionTree.term(at));
+		at.toSibling();
+		tree.replaceSubtree(at.position(), Assignment.prefix2tree("y", new LinkedBinaryTree<String>()));
+		at = TreeCursor.of(tree, tree.right(tree.root()));
+		assertEquals(Term.VARIABLE, ExpressionTree.term(at));
+		assertEquals("+ 7 y", Assignment.tree2prefix(tree));
+		assertEquals(Term.TIMES, ExpressionTree.term(TreeCursor.of(PersistentBinaryTree.copyOf(Assignment.prefix2tree("* 2 3")))));
+	}
+
+	// appends a complete expression tree of the given height
+	private static void appendBalanced(StringBuilder sb, int height) {
+		if (height == 0) {
+			sb.append("1 ");
+		} else {
+			sb.append("+ ");
+			appendBalanced(sb, height - 1);
+			appendBalanced(sb, height - 1);
+		}
+	}
+
+	// builds "+ + + ... 1 2 2 ... 2", a left-leaning chain of the given depth
+	private static String leftChain(int depth) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			sb.append("+ ");
+		}
+		sb.append("1");
+		for (int i = 0; i < depth; i++) {
+			sb.append(" 2");
+		}
+		return sb.toString();
+	}
+
+	// parsing is not limited by the thread stack
+	@Test(timeout = 5000)
+	public void testPrefix2treeDeepLeft() {
+		int depth = 1000000;
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(leftChain(depth));
+		assertEquals(2 * depth + 1, tree.size());
+		Position<String> p = tree.root();
+		for (int i = 0; i < depth; i++) {
+			assertEquals("+", p.getElement());
+			assertEquals("2", tree.right(p).getElement());
+			p = tree.left(p);
+		}
+		assertEquals("1", p.getElement());
+		assertTrue(tree.isExternal(p));
+	}
+
+	@Test(timeout = 5000)
+	public void testPrefix2treeDeepRight() {
+		int depth = 1000000;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			sb.append("- x ");
+		}
+		sb.append("0");
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree(sb);
+		assertEquals(2 * depth + 1, tree.size());
+		Position<String> p = tree.root();
+		for (int i = 0; i < depth; i++) {
+			assertEquals("x", tree.left(p).getElement());
+			p = tree.right(p);
+		}
+		assertEquals("0", p.getElement());
+	}
+
+	// a deep expression missing its last operand is still rejected
+	@Test(timeout = 5000)
+	public void testPrefix2treeDeepInvalid() {
+		String expression = leftChain(1000000);
+		thrown.expect(IllegalArgumentException.class);
+		Assignment.prefix2tree(expression.substring(0, expression.length() - 2));
+	}
+
 	// example of using the Assignment.equals method to check that "- x + 1 2" simplifies to "- x 3"
 	@Test(timeout = 100)
 	public void testSimplify1() {
@@ -148,6 +1428,49 @@ public class TestAssignment {
 		assertEquals("+ -3 - -1 -5",Assignment.tree2prefix(tree2));
 		
 	}
+	// parsed variables share one instance per name, and substitution still works
+	// on trees built by hand from other instances
+	@Test(timeout = 100)
+	public void testSymbolTable() {
+		LinkedBinaryTree<String> tree = Assignment.prefix2tree("+ foo * foo bar");
+		Position<String> root = tree.root();
+		assertSame(tree.left(root).getElement(), tree.left(tree.right(root)).getElement());
+		assertSame(SymbolTable.canonical(new String("bar")), tree.right(tree.right(root)).getElement());
+		// parsing doesn't give names ids, only intern does
+		assertEquals(-1, SymbolTable.lookup("foo"));
+		int id = SymbolTable.intern(new String("foo"));
+		assertTrue(id >= 0);
+		assertEquals(id, SymbolTable.lookup("foo"));
+		assertSame(tree.left(root).getElement(), SymbolTable.name(id));
+		assertEquals(-1, SymbolTable.lookup("never seen in any expression"));
+
+		LinkedBinaryTree<String> built = new LinkedBinaryTree<String>();
+		built.addRoot("-");
+		built.addLeft(built.root(), new String("foo"));
+		built.addRight(built.root(), new String("baz"));
+		Assignment.substitute(built, "foo", 2);
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put(new String("baz"), 3);
+		map.put("not in any expression either", 4);
+		int symbols = SymbolTable.size();
+		assertEquals("- 2 3", Assignment.tree2prefix(Assignment.substitute(PersistentBinaryTree.copyOf(built), map)));
+		Assignment.substitute(built, map);
+		assertEquals("- 2 3", Assignment.tree2prefix(built));
+		// the map's keys are not given ids
+		assertEquals(symbols, SymbolTable.size());
+		assertEquals(-1, SymbolTable.lookup("baz"));
+
+		// nor are the names in malformed input
+		try {
+			Assignment.prefix2tree("* + qux quux");
+			fail("malformed expression was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(symbols, SymbolTable.size());
+		assertEquals(-1, SymbolTable.lookup("qux"));
+	}
+
 	@Test(timeout = 100)
 	public void substitueMapInvalid() {
 		
@@ -251,7 +1574,14 @@ public class TestAssignment {
 		assertTrue(Assignment.isArithmeticExpression(tree5));
 		assertFalse(Assignment.isArithmeticExpression(tree7));
 		assertTrue(Assignment.isArithmeticExpression(tree8));
-		
+
+		// below the root, an operator with one child is accepted (and its
+		// subtree isn't looked at), but a number or variable with one is not
+		LinkedBinaryTree<String> tree9 = Assignment.prefix2tree("+ * + 1 2 3 4");
+		tree9.remove(tree9.right(tree9.left(tree9.root())));
+		assertTrue(Assignment.isArithmeticExpression(tree9));
+		tree9.set(tree9.left(tree9.root()), "x");
+		assertFalse(Assignment.isArithmeticExpression(tree9));
 	}
 	@Test(timeout = 100)
 	public void testEqualsSubtreeSimplifyFancy(){
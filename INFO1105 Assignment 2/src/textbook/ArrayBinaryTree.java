@@ -0,0 +1,438 @@
+package textbook;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Concrete implementation of a binary tree that stores its structure in
+ * parallel arrays rather than in linked node objects.
+ *
+ * Each node is an index into the arrays: its parent, left child and right
+ * child are int indices, and its element is kept in a separate array. A node
+ * costs around 20 bytes and no object header, compared with a full object per
+ * node in LinkedBinaryTree, and walking the tree reads adjacent array slots
+ * rather than chasing pointers.
+ *
+ * Positions are small handles (a tree, an index and a generation stamp)
+ * created when they are returned, so positions for the same node are equal()
+ * but not necessarily ==. The index based accessors (rootIndex, leftIndex,
+ * elementAt, ...) avoid creating handles at all, for code that only needs to
+ * walk the tree.
+ *
+ * Slots freed by remove are reused by later additions. Each slot has a
+ * generation stamp that is bumped when it is freed, so positions for removed
+ * nodes are always detected as invalid, even after their slot is reused.
+ */
+public class ArrayBinaryTree<E> extends AbstractBinaryTree<E>
+                                implements MutableBinaryTree<E> {
+
+  /** Index used for a missing parent or child. */
+  public static final int NONE = -1;
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  //---------------- nested Slot class ----------------
+  /** A handle on the node at a given index of a given tree. */
+  private static final class Slot<E> implements Position<E> {
+    private final ArrayBinaryTree<E> tree;
+    private final int index;
+    private final int stamp;    // generation of the slot when the handle was made
+
+    Slot(ArrayBinaryTree<E> tree, int index) {
+      this.tree = tree;
+      this.index = index;
+      this.stamp = tree.stamp[index];
+    }
+
+    public E getElement() throws IllegalStateException {
+      if (!tree.isCurrent(index, stamp))
+        throw new IllegalStateException("Position no longer valid");
+      return tree.elementAt(index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Slot)) return false;
+      Slot<?> other = (Slot<?>) o;
+      return tree == other.tree && index == other.index && stamp == other.stamp;
+    }
+
+    @Override
+    public int hashCode() { return 31 * index + stamp; }
+  } //----------- end of nested Slot class -----------
+
+  // ArrayBinaryTree instance variables
+  private Object[] elements;      // element stored at each index
+  private int[] parent;           // parent index (NONE for the root, itself if free)
+  private int[] left;             // left child index (next free slot if free)
+  private int[] right;            // right child index
+  private int[] stamp;            // generation of each slot, bumped when freed
+  private int root = NONE;        // index of the root
+  private int size = 0;           // number of nodes in the tree
+  private int used = 0;           // slots [0, used) have been handed out at least once
+  private int free = NONE;        // head of the list of freed slots
+
+  /** Constructs an empty binary tree. */
+  public ArrayBinaryTree() { this(DEFAULT_CAPACITY); }
+
+  /**
+   * Constructs an empty binary tree with room for the given number of nodes
+   * before its arrays need to grow.
+   *
+   * @param capacity  initial number of nodes
+   */
+  public ArrayBinaryTree(int capacity) {
+    capacity = Math.max(capacity, 1);
+    elements = new Object[capacity];
+    parent = new int[capacity];
+    left = new int[capacity];
+    right = new int[capacity];
+    stamp = new int[capacity];
+  }
+
+  // nonpublic utilities
+  private boolean isCurrent(int index, int generation) {
+    return stamp[index] == generation && parent[index] != index;
+  }
+
+  /**
+   * Verifies that a Position is a handle on a node of this tree that has not
+   * been removed.
+   *
+   * @param p   a Position (that should belong to this tree)
+   * @return    the index of the node for the position
+   * @throws IllegalArgumentException if an invalid position is detected
+   */
+  protected int validate(Position<E> p) throws IllegalArgumentException {
+    if (!(p instanceof Slot))
+      throw new IllegalArgumentException("Not valid position type");
+    Slot<E> slot = (Slot<E>) p;         // safe cast
+    if (slot.tree != this)
+      throw new IllegalArgumentException("p does not belong to this tree");
+    if (!isCurrent(slot.index, slot.stamp))
+      throw new IllegalArgumentException("p is no longer in the tree");
+    return slot.index;
+  }
+
+  /** Returns a handle on the node at index i (or null for NONE). */
+  private Position<E> position(int i) {
+    return i == NONE ? null : new Slot<E>(this, i);
+  }
+
+  /** Takes a free slot (growing the arrays if needed) and fills it in. */
+  private int allocate(E e, int parentIndex) {
+    int i;
+    if (free != NONE) {
+      i = free;
+      free = left[i];
+    } else {
+      if (used == elements.length) {
+        int capacity = 2 * elements.length;
+        elements = Arrays.copyOf(elements, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        stamp = Arrays.copyOf(stamp, capacity);
+      }
+      i = used++;
+    }
+    elements[i] = e;
+    parent[i] = parentIndex;
+    left[i] = NONE;
+    right[i] = NONE;
+    size++;
+    return i;
+  }
+
+  // index based accessors
+  /**
+   * Returns the index of the root (or NONE if the tree is empty).
+   * @return index of the root
+   */
+  public int rootIndex() { return root; }
+
+  /**
+   * Returns the index of the parent of the node at index i (or NONE for the root).
+   * The index is not checked.
+   *
+   * @param i  index of a node in the tree
+   * @return index of the parent
+   */
+  public int parentIndex(int i) { return parent[i]; }
+
+  /**
+   * Returns the index of the left child of the node at index i (or NONE).
+   * The index is not checked.
+   *
+   * @param i  index of a node in the tree
+   * @return index of the left child
+   */
+  public int leftIndex(int i) { return left[i]; }
+
+  /**
+   * Returns the index of the right child of the node at index i (or NONE).
+   * The index is not checked.
+   *
+   * @param i  index of a node in the tree
+   * @return index of the right child
+   */
+  public int rightIndex(int i) { return right[i]; }
+
+  /**
+   * Returns the element of the node at index i. The index is not checked.
+   *
+   * @param i  index of a node in the tree
+   * @return the element stored at that node
+   */
+  @SuppressWarnings("unchecked")
+  public E elementAt(int i) { return (E) elements[i]; }
+
+  //---------------- nested IndexCursor class ----------------
+  /** A TreeCursor that moves over the indices of this tree directly. */
+  private class IndexCursor implements TreeCursor<E> {
+    private int at;                     // index of the current node
+
+    IndexCursor(int index) { at = index; }
+
+    public E element() { return elementAt(at); }
+    public Position<E> position() { return ArrayBinaryTree.this.position(at); }
+    public boolean hasLeft() { return left[at] != NONE; }
+    public boolean hasRight() { return right[at] != NONE; }
+    public boolean hasParent() { return parent[at] != NONE; }
+    public boolean isLeftChild() { return parent[at] != NONE && left[parent[at]] == at; }
+    public boolean toLeft() { return moveTo(left[at]); }
+    public boolean toRight() { return moveTo(right[at]); }
+    public boolean toParent() { return moveTo(parent[at]); }
+
+    public boolean toSibling() {
+      int above = parent[at];
+      if (above == NONE) return false;
+      return moveTo(left[above] == at ? right[above] : left[above]);
+    }
+
+    private boolean moveTo(int index) {
+      if (index == NONE) return false;
+      at = index;
+      return true;
+    }
+  } //----------- end of nested IndexCursor class -----------
+
+  /**
+   * Returns a cursor on Position p, which moves over the tree without
+   * creating or validating a Position at every step.
+   *
+   * @param p   A valid Position within the tree
+   * @return a cursor on p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public TreeCursor<E> cursor(Position<E> p) throws IllegalArgumentException {
+    return new IndexCursor(validate(p));
+  }
+
+  // accessor methods (not already implemented in AbstractBinaryTree)
+  /**
+   * Returns the number of nodes in the tree.
+   * @return number of nodes in the tree
+   */
+  @Override
+  public int size() { return size; }
+
+  /**
+   * Returns the root Position of the tree (or null if tree is empty).
+   * @return root Position of the tree (or null if tree is empty)
+   */
+  @Override
+  public Position<E> root() { return position(root); }
+
+  /**
+   * Returns the Position of p's parent (or null if p is root).
+   *
+   * @param p    A valid Position within the tree
+   * @return Position of p's parent (or null if p is root)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public Position<E> parent(Position<E> p) throws IllegalArgumentException {
+    return position(parent[validate(p)]);
+  }
+
+  /**
+   * Returns the Position of p's left child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the left child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> left(Position<E> p) throws IllegalArgumentException {
+    return position(left[validate(p)]);
+  }
+
+  /**
+   * Returns the Position of p's right child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the right child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> right(Position<E> p) throws IllegalArgumentException {
+    return position(right[validate(p)]);
+  }
+
+  /**
+   * Returns the Position of p's sibling (or null if no sibling exists).
+   * (Handles are compared by index, as they are not unique objects.)
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the sibling (or null if no sibling exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> sibling(Position<E> p) throws IllegalArgumentException {
+    int i = validate(p);
+    int above = parent[i];
+    if (above == NONE) return null;
+    return position(left[above] == i ? right[above] : left[above]);
+  }
+
+  /**
+   * Returns the number of children of Position p.
+   *
+   * @param p    A valid Position within the tree
+   * @return number of children of Position p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int numChildren(Position<E> p) throws IllegalArgumentException {
+    int i = validate(p);
+    return (left[i] != NONE ? 1 : 0) + (right[i] != NONE ? 1 : 0);
+  }
+
+  /**
+   * Returns true if Position p represents the root of the tree.
+   *
+   * @param p    A valid Position within the tree
+   * @return true if p is the root of the tree, false otherwise
+   */
+  @Override
+  public boolean isRoot(Position<E> p) { return validate(p) == root; }
+
+  /**
+   * Returns an iterable collection of the positions of the tree, in preorder
+   * (the order of the tokens of a prefix expression).
+   * @return iterable collection of the tree's positions
+   */
+  @Override
+  public Iterable<Position<E>> positions() { return TreeWalk.preorder(this); }
+
+  /**
+   * Returns an iterator of the elements stored in the tree, in preorder.
+   * @return iterator of the tree's elements
+   */
+  @Override
+  public Iterator<E> iterator() { return TreeWalk.elements(this); }
+
+  // update methods supported by this class
+  /**
+   * Places element e at the root of an empty tree and returns its new Position.
+   *
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalStateException if the tree is not empty
+   */
+  @Override
+  public Position<E> addRoot(E e) throws IllegalStateException {
+    if (!isEmpty()) throw new IllegalStateException("Tree is not empty");
+    root = allocate(e, NONE);
+    return position(root);
+  }
+
+  /**
+   * Creates a new left child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position to the left of which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a left child
+   */
+  @Override
+  public Position<E> addLeft(Position<E> p, E e) throws IllegalArgumentException {
+    int i = validate(p);
+    if (left[i] != NONE)
+      throw new IllegalArgumentException("p already has a left child");
+    int child = allocate(e, i);
+    left[i] = child;
+    return position(child);
+  }
+
+  /**
+   * Creates a new right child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position to the right of which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   * @throws IllegalArgumentException if p already has a right child
+   */
+  @Override
+  public Position<E> addRight(Position<E> p, E e) throws IllegalArgumentException {
+    int i = validate(p);
+    if (right[i] != NONE)
+      throw new IllegalArgumentException("p already has a right child");
+    int child = allocate(e, i);
+    right[i] = child;
+    return position(child);
+  }
+
+  /**
+   * Replaces the element at Position p with element e and returns the replaced element.
+   *
+   * @param p   the relevant Position
+   * @param e   the new element
+   * @return the replaced element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public E set(Position<E> p, E e) throws IllegalArgumentException {
+    int i = validate(p);
+    E temp = elementAt(i);
+    elements[i] = e;
+    return temp;
+  }
+
+  /**
+   * Removes the node at Position p and replaces it with its child, if any.
+   *
+   * @param p   the relevant Position
+   * @return element that was removed
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   * @throws IllegalArgumentException if p has two children.
+   */
+  @Override
+  public E remove(Position<E> p) throws IllegalArgumentException {
+    int i = validate(p);
+    if (left[i] != NONE && right[i] != NONE)
+      throw new IllegalArgumentException("p has two children");
+    int child = (left[i] != NONE ? left[i] : right[i]);
+    int above = parent[i];
+    if (child != NONE)
+      parent[child] = above;            // child's grandparent becomes its parent
+    if (i == root)
+      root = child;                     // child becomes root
+    else if (left[above] == i)
+      left[above] = child;
+    else
+      right[above] = child;
+    size--;
+    E temp = elementAt(i);
+    elements[i] = null;                 // help garbage collection
+    parent[i] = i;                      // our convention for a free slot
+    stamp[i]++;                         // invalidates outstanding positions
+    right[i] = NONE;
+    left[i] = free;                     // add to the list of free slots
+    free = i;
+    return temp;
+  }
+} //----------- end of ArrayBinaryTree class -----------
@@ -0,0 +1,131 @@
+package textbook;
+
+/**
+ * Runs Euler tours of binary trees: each node is visited on the left (PRE),
+ * from below (IN) and on the right (POST), and a visitor decides what
+ * happens at each visit. The tour is driven by a TreeWalk, so it never
+ * recurses, and it allocates only the walk and its cursor, once per tour;
+ * nothing is allocated per node.
+ *
+ * Tours that only want PRE or only want POST visits are run with the walk's
+ * nextPre() or nextPost(), which go straight from one such visit to the next.
+ */
+public final class EulerTour {
+
+  /** The visit before a node's subtrees. */
+  public static final int PRE = 1;
+
+  /** The visit between a node's subtrees. */
+  public static final int IN = 2;
+
+  /** The visit after a node's subtrees. */
+  public static final int POST = 4;
+
+  /** All three visits. */
+  public static final int ALL = PRE | IN | POST;
+
+  private EulerTour() { }
+
+  /**
+   * Runs a tour of a whole tree.
+   *
+   * @param tree     the tree (may be empty, in which case nothing is visited)
+   * @param visitor  what to do at each visit
+   * @param <E>      the type of the tree's elements
+   * @return true if the tour finished, false if the visitor ended it early
+   */
+  public static <E> boolean tour(BinaryTree<E> tree, EulerVisitor<E> visitor) {
+    return tree.isEmpty() || tour(TreeCursor.of(tree), visitor);
+  }
+
+  /**
+   * Runs a tour of the subtree at a cursor's current node. If the tour
+   * finishes, the cursor is back on that node.
+   *
+   * @param start    a cursor on the root of the subtree
+   * @param visitor  what to do at each visit
+   * @param <E>      the type of the tree's elements
+   * @return true if the tour finished, false if the visitor ended it early
+   */
+  public static <E> boolean tour(TreeCursor<E> start, EulerVisitor<E> visitor) {
+    TreeWalk<E> walk = new TreeWalk<E>(start);
+    int visits = visitor.visits();
+    if (visits == PRE) {
+      while (walk.nextPre())
+        if (!visitor.onPre(start)) return false;
+      return true;
+    }
+    if (visits == POST) {
+      while (walk.nextPost())
+        if (!visitor.onPost(start)) return false;
+      return true;
+    }
+    while (walk.next()) {
+      switch (walk.visit()) {
+        case PRE:
+          if ((visits & PRE) != 0 && !visitor.onPre(start)) return false;
+          break;
+        case IN:
+          if ((visits & IN) != 0 && !visitor.onIn(start)) return false;
+          break;
+        default:
+          if ((visits & POST) != 0 && !visitor.onPost(start)) return false;
+          break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs a tour of a whole tree, threading an int through the visits.
+   *
+   * @param tree     the tree (may be empty, in which case nothing is visited)
+   * @param initial  the value given to the first visit
+   * @param visitor  what to do at each visit
+   * @param <E>      the type of the tree's elements
+   * @return the value returned by the last visit (initial if there were none)
+   */
+  public static <E> int tour(BinaryTree<E> tree, int initial, IntEulerVisitor<E> visitor) {
+    return tree.isEmpty() ? initial : tour(TreeCursor.of(tree), initial, visitor);
+  }
+
+  /**
+   * Runs a tour of the subtree at a cursor's current node, threading an int
+   * through the visits. The cursor ends up back on that node.
+   *
+   * @param start    a cursor on the root of the subtree
+   * @param initial  the value given to the first visit
+   * @param visitor  what to do at each visit
+   * @param <E>      the type of the tree's elements
+   * @return the value returned by the last visit
+   */
+  public static <E> int tour(TreeCursor<E> start, int initial, IntEulerVisitor<E> visitor) {
+    TreeWalk<E> walk = new TreeWalk<E>(start);
+    int visits = visitor.visits();
+    int acc = initial;
+    if (visits == PRE) {
+      while (walk.nextPre())
+        acc = visitor.onPre(start, acc);
+      return acc;
+    }
+    if (visits == POST) {
+      while (walk.nextPost())
+        acc = visitor.onPost(start, acc);
+      return acc;
+    }
+    while (walk.next()) {
+      switch (walk.visit()) {
+        case PRE:
+          if ((visits & PRE) != 0) acc = visitor.onPre(start, acc);
+          break;
+        case IN:
+          if ((visits & IN) != 0) acc = visitor.onIn(start, acc);
+          break;
+        default:
+          if ((visits & POST) != 0) acc = visitor.onPost(start, acc);
+          break;
+      }
+    }
+    return acc;
+  }
+}
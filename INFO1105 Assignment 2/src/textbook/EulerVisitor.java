@@ -0,0 +1,44 @@
+package textbook;
+
+/**
+ * The actions of an Euler tour (see EulerTour), one for each time the tour
+ * reaches a node: on the left, before its subtrees (onPre), below, between
+ * its subtrees (onIn), and on the right, after its subtrees (onPost).
+ *
+ * Each action is given the tour's cursor, sitting on the node being visited,
+ * and returns false to end the tour there. A visitor only receives the
+ * visits it asks for in visits(); asking for just PRE or just POST lets the
+ * tour skip the others without stepping through them.
+ */
+public interface EulerVisitor<E> {
+
+  /**
+   * Returns which visits this visitor wants, as a combination of
+   * EulerTour.PRE, EulerTour.IN and EulerTour.POST.
+   * @return the visits wanted (all three by default)
+   */
+  default int visits() { return EulerTour.ALL; }
+
+  /**
+   * Called when the tour reaches a node, before either of its subtrees.
+   * @param node  a cursor on the node
+   * @return false to end the tour
+   */
+  default boolean onPre(TreeCursor<E> node) { return true; }
+
+  /**
+   * Called between the left and right subtrees of a node.
+   * @param node  a cursor on the node
+   * @return false to end the tour
+   */
+  default boolean onIn(TreeCursor<E> node) { return true; }
+
+  /**
+   * Called after both subtrees of a node. The visitor may change the tree
+   * below the node here, or replace the node by a child (after moving the
+   * cursor onto that child), as described for TreeWalk.
+   * @param node  a cursor on the node
+   * @return false to end the tour
+   */
+  default boolean onPost(TreeCursor<E> node) { return true; }
+}
@@ -0,0 +1,41 @@
+package textbook;
+
+/**
+ * The actions of an Euler tour that threads an int through the whole tour,
+ * e.g. to count or sum over the nodes without boxing. Each action is given
+ * the value returned by the previous one (or the tour's initial value), and
+ * the tour returns the value from the last.
+ */
+public interface IntEulerVisitor<E> {
+
+  /**
+   * Returns which visits this visitor wants, as a combination of
+   * EulerTour.PRE, EulerTour.IN and EulerTour.POST.
+   * @return the visits wanted (all three by default)
+   */
+  default int visits() { return EulerTour.ALL; }
+
+  /**
+   * Called when the tour reaches a node, before either of its subtrees.
+   * @param node  a cursor on the node
+   * @param acc   the value so far
+   * @return the new value
+   */
+  default int onPre(TreeCursor<E> node, int acc) { return acc; }
+
+  /**
+   * Called between the left and right subtrees of a node.
+   * @param node  a cursor on the node
+   * @param acc   the value so far
+   * @return the new value
+   */
+  default int onIn(TreeCursor<E> node, int acc) { return acc; }
+
+  /**
+   * Called after both subtrees of a node.
+   * @param node  a cursor on the node
+   * @param acc   the value so far
+   * @return the new value
+   */
+  default int onPost(TreeCursor<E> node, int acc) { return acc; }
+}
@@ -22,14 +22,42 @@
  */
 package textbook;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Concrete implementation of a binary tree using a node-based, linked structure.
  *
+ * Each node caches the size and height of its subtree. Updates only mark the
+ * ancestors of the change as stale (stopping at the first one that already
+ * is), and the cached values are brought up to date the next time they are
+ * asked for, so height(p) and subtreeSize(p) take O(1) time unless the
+ * subtree has changed since they were last computed.
+ *
+ * Whole subtrees can be cut off (prune) or swapped (replaceSubtree) in O(1)
+ * time. If the size of such a subtree is not already known, the size of the
+ * tree is worked out again the next time it is asked for.
+ *
+ * Each node refers to an owner, and a position is only accepted by the tree
+ * whose owner it leads to. Grafting a tree onto another (attach and
+ * replaceSubtree) merges the two owners in O(1) time, and the emptied tree
+ * is given a new one, so it no longer accepts its old positions. The nodes
+ * of a subtree that is cut off are handed to their new owner (or marked as
+ * removed) in one pass over that subtree only, before either tree next checks
+ * a position; the rest of the tree is not visited, and checking a position
+ * never changes the tree.
+ *
  * @author Michael T. Goodrich
  * @author Roberto Tamassia
  * @author Michael H. Goldwasser
  */
-public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
+public class LinkedBinaryTree<E> extends AbstractBinaryTree<E>
+                                 implements MutableBinaryTree<E> {
 
   //---------------- nested Node class ----------------
   /** Nested static class for a binary tree node. */
@@ -38,6 +66,12 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     private Node<E> parent;     // a reference to the parent node (if any)
     private Node<E> left;       // a reference to the left child (if any)
     private Node<E> right;      // a reference to the right child (if any)
+    private int size;           // number of nodes in this subtree (if not stale)
+    private int height;         // height of this subtree (if not stale)
+    private boolean stale;      // true if size and height need recomputing;
+                                // then so do those of every ancestor
+    private Owner owner;        // leads to the owner of the tree holding this
+                                // node (null once the node has been removed)
 
     /**
      * Constructs a node with the given element and neighbors.
@@ -52,6 +86,9 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
       parent = above;
       left = leftChild;
       right = rightChild;
+      size = 1;
+      height = 0;
+      stale = (leftChild != null || rightChild != null);
     }
 
     // accessor methods
@@ -67,18 +104,50 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     public void setRight(Node<E> rightChild) { right = rightChild; }
   } //----------- end of nested Node class -----------
 
+  //---------------- nested Owner class ----------------
+  /**
+   * Identifies the tree a node belongs to. When two trees are merged, one
+   * owner forwards to the other; ranks keep these chains short.
+   */
+  private static final class Owner {
+    private Owner forward;      // the owner this one was merged into (if any)
+    private int rank;           // bounds the length of chains leading here
+  } //----------- end of nested Owner class -----------
+
   /** Factory function to create a new node storing element e. */
   protected Node<E> createNode(E e, Node<E> parent,
                                   Node<E> left, Node<E> right) {
     return new Node<E>(e, parent, left, right);
   }
 
+  /** Creates a node with createNode, belonging to this tree. */
+  private Node<E> newNode(E e, Node<E> parent) {
+    Node<E> node = createNode(e, parent, null, null);
+    node.owner = owner;
+    return node;
+  }
+
   // LinkedBinaryTree instance variables
   /** The root of the binary tree */
   protected Node<E> root = null;     // root of the tree
 
   /** The number of nodes in the binary tree */
-  private int size = 0;              // number of nodes in the tree
+  private int size = 0;              // number of nodes in the tree (if sizeKnown)
+
+  /** False when a subtree of unknown size has been cut off or grafted on */
+  private boolean sizeKnown = true;
+
+  /** The owner of this tree's nodes (never forwards to another) */
+  private Owner owner = new Owner();
+
+  /** The root of a subtree cut off but whose nodes still lead to this tree */
+  private Node<E> cut = null;
+
+  /** The tree this one was cut from, while it may still hold its nodes */
+  private LinkedBinaryTree<E> source = null;
+
+  /** True while cut or source needs settling */
+  private volatile boolean unsettled = false;
 
   // constructor
   /** Construts an empty binary tree. */
@@ -87,9 +156,9 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
   // nonpublic utility
   /**
    * Verifies that a Position belongs to the appropriate class, and is
-   * not one that has been previously removed. Note that our current
-   * implementation does not actually verify that the position belongs
-   * to this particular list instance.
+   * not one that has been previously removed. The node's owner must lead
+   * to this tree's, so positions of another tree, or below a subtree that
+   * has since been cut off, are rejected.
    *
    * @param p   a Position (that should belong to this tree)
    * @return    the underlying Node instance for the position
@@ -101,9 +170,109 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     Node<E> node = (Node<E>) p;       // safe cast
     if (node.getParent() == node)     // our convention for defunct node
       throw new IllegalArgumentException("p is no longer in the tree");
+    if (unsettled) settle();
+    Owner o = node.owner;
+    if (o == null)
+      throw new IllegalArgumentException("p is no longer in the tree");
+    while (o.forward != null)
+      o = o.forward;
+    if (o != owner)
+      throw new IllegalArgumentException("p does not belong to this tree");
     return node;
   }
 
+  /**
+   * Hands the nodes of a subtree that has been cut off over to the owner of
+   * its root, once this tree (and the tree it was cut from, if any) can no
+   * longer accept them. Only the cut subtree is visited.
+   */
+  private synchronized void settle() {
+    if (source != null) {
+      source.settle();
+      source = null;
+    }
+    if (cut != null) {
+      Owner o = cut.owner;
+      Node<E> top = cut, walk = cut;
+      while (true) {
+        walk.owner = o;
+        if (walk.left != null)
+          walk = walk.left;
+        else if (walk.right != null)
+          walk = walk.right;
+        else {
+          // climb until we come up from a left child that has a right sibling
+          while (walk != top && (walk.parent.left != walk || walk.parent.right == null))
+            walk = walk.parent;
+          if (walk == top) break;
+          walk = walk.parent.right;
+        }
+      }
+      cut = null;
+    }
+    unsettled = false;
+  }
+
+  /**
+   * Makes the nodes of tree t (about to be grafted onto this tree) belong to
+   * this tree, and gives t a new owner so that it rejects their positions.
+   */
+  private void merge(LinkedBinaryTree<E> t) {
+    t.settle();
+    Owner other = t.owner;
+    if (owner.rank < other.rank) {
+      owner.forward = other;
+      owner = other;
+    } else {
+      other.forward = owner;
+      if (owner.rank == other.rank)
+        owner.rank++;
+    }
+    t.owner = new Owner();
+  }
+
+  /**
+   * Marks the cached size and height of node and its ancestors as stale. As
+   * the ancestors of a stale node are already stale, this stops at the first
+   * one that is.
+   */
+  private void invalidate(Node<E> node) {
+    while (node != null && !node.stale) {
+      node.stale = true;
+      node = node.getParent();
+    }
+  }
+
+  /**
+   * Brings the cached size and height of node up to date. Only the stale part
+   * of its subtree is visited (the children of a fresh node are fresh), and
+   * the walk follows parent links rather than using a stack.
+   */
+  private void refresh(Node<E> node) {
+    Node<E> walk = node;
+    while (node.stale) {
+      if (walk.left != null && walk.left.stale)
+        walk = walk.left;
+      else if (walk.right != null && walk.right.stale)
+        walk = walk.right;
+      else {                            // both children are up to date
+        int size = 1, height = 0;
+        if (walk.left != null) {
+          size += walk.left.size;
+          height = 1 + walk.left.height;
+        }
+        if (walk.right != null) {
+          size += walk.right.size;
+          height = Math.max(height, 1 + walk.right.height);
+        }
+        walk.size = size;
+        walk.height = height;
+        walk.stale = false;
+        walk = walk.getParent();
+      }
+    }
+  }
+
   // accessor methods (not already implemented in AbstractBinaryTree)
   /**
    * Returns the number of nodes in the tree.
@@ -111,9 +280,21 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
    */
   @Override
   public int size() {
+    if (!sizeKnown) {
+      if (root != null) refresh(root);
+      size = (root == null ? 0 : root.size);
+      sizeKnown = true;
+    }
     return size;
   }
 
+  /**
+   * Tests whether the tree is empty.
+   * @return true if the tree is empty, false otherwise
+   */
+  @Override
+  public boolean isEmpty() { return root == null; }
+
   /**
    * Returns the root Position of the tree (or null if tree is empty).
    * @return root Position of the tree (or null if tree is empty)
@@ -123,6 +304,48 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     return root;
   }
 
+  /**
+   * Returns the number of nodes in the subtree rooted at Position p.
+   *
+   * @param p    A valid Position within the tree
+   * @return number of nodes in the subtree rooted at p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public int subtreeSize(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    refresh(node);
+    return node.size;
+  }
+
+  /**
+   * Returns the height of the subtree rooted at Position p.
+   *
+   * @param p    A valid Position within the tree
+   * @return height of the subtree rooted at p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int height(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    refresh(node);
+    return node.height;
+  }
+
+  /**
+   * Returns the number of levels separating Position p from the root.
+   *
+   * @param p    A valid Position within the tree
+   * @return depth of p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int depth(Position<E> p) throws IllegalArgumentException {
+    int d = 0;
+    for (Node<E> walk = validate(p).getParent(); walk != null; walk = walk.getParent())
+      d++;
+    return d;
+  }
+
   /**
    * Returns the Position of p's parent (or null if p is root).
    *
@@ -172,7 +395,7 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
    */
   public Position<E> addRoot(E e) throws IllegalStateException {
     if (!isEmpty()) throw new IllegalStateException("Tree is not empty");
-    root = createNode(e, null, null, null);
+    root = newNode(e, null);
     size = 1;
     return root;
   }
@@ -191,8 +414,9 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     Node<E> parent = validate(p);
     if (parent.getLeft() != null)
       throw new IllegalArgumentException("p already has a left child");
-    Node<E> child = createNode(e, parent, null, null);
+    Node<E> child = newNode(e, parent);
     parent.setLeft(child);
+    invalidate(parent);
     size++;
     return child;
   }
@@ -211,8 +435,9 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     Node<E> parent = validate(p);
     if (parent.getRight() != null)
       throw new IllegalArgumentException("p already has a right child");
-    Node<E> child = createNode(e, parent, null, null);
+    Node<E> child = newNode(e, parent);
     parent.setRight(child);
+    invalidate(parent);
     size++;
     return child;
   }
@@ -248,17 +473,22 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     if (isInternal(p)) throw new IllegalArgumentException("p must be a leaf");
     size += t1.size() + t2.size();
     if (!t1.isEmpty()) {                  // attach t1 as left subtree of node
+      merge(t1);
       t1.root.setParent(node);
       node.setLeft(t1.root);
       t1.root = null;
       t1.size = 0;
+      t1.sizeKnown = true;
     }
     if (!t2.isEmpty()) {                  // attach t2 as right subtree of node
+      merge(t2);
       t2.root.setParent(node);
       node.setRight(t2.root);
       t2.root = null;
       t2.size = 0;
+      t2.sizeKnown = true;
     }
+    invalidate(node);
   }
 
   /**
@@ -284,6 +514,7 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
         parent.setLeft(child);
       else
         parent.setRight(child);
+      invalidate(parent);
     }
     size--;
     E temp = node.getElement();
@@ -291,6 +522,580 @@ public class LinkedBinaryTree<E> extends AbstractBinaryTree<E> {
     node.setLeft(null);
     node.setRight(null);
     node.setParent(node);                 // our convention for defunct node
+    node.owner = null;
     return temp;
   }
+
+  /**
+   * Cuts off the subtree rooted at Position p in O(1) time, and returns it as
+   * a tree of its own. Positions within the subtree stay valid, for the
+   * returned tree; they are handed over to it in O(k) time for a subtree of
+   * k nodes, the next time either tree checks a position.
+   *
+   * @param p   the root of the subtree to cut off
+   * @return a tree made of p's subtree
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public LinkedBinaryTree<E> prune(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    detach(node);
+    return adopt(node);
+  }
+
+  /**
+   * Replaces the subtree rooted at Position p with the structure of tree t in
+   * O(1) time, and returns the old subtree as a tree of its own (as for
+   * prune). As a side effect, t is set to an empty tree, and no longer
+   * accepts the positions of its nodes. If t is empty the subtree is just
+   * cut off.
+   *
+   * @param p   the root of the subtree to replace
+   * @param t   an independent tree whose structure takes the subtree's place
+   * @return a tree made of p's old subtree
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   * @throws IllegalArgumentException if t is this tree
+   */
+  public LinkedBinaryTree<E> replaceSubtree(Position<E> p, LinkedBinaryTree<E> t)
+                                            throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    if (t == this) throw new IllegalArgumentException("t must be another tree");
+    Node<E> parent = node.getParent();
+    boolean wasLeft = (parent != null && parent.getLeft() == node);
+    if (t.root != null)
+      merge(t);
+    detach(node);
+    if (t.root != null) {
+      Node<E> graft = t.root;
+      graft.setParent(parent);
+      if (parent == null)
+        root = graft;
+      else if (wasLeft)
+        parent.setLeft(graft);
+      else
+        parent.setRight(graft);
+      if (t.sizeKnown && sizeKnown)
+        size += t.size;
+      else
+        sizeKnown = false;
+      t.root = null;
+      t.size = 0;
+      t.sizeKnown = true;
+    }
+    return adopt(node);
+  }
+
+  /**
+   * Removes the whole subtree rooted at Position p in O(1) time. Only p
+   * itself is marked as removed straight away; the nodes below it are marked
+   * in O(k) time for a subtree of k nodes, before a position is next checked.
+   *
+   * @param p   the root of the subtree to remove
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public void removeSubtree(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    detach(node);
+    node.setParent(node);                 // our convention for defunct node
+    node.owner = null;
+    cut = node;
+    unsettled = true;
+  }
+
+  /**
+   * Unlinks node from its parent (or the root), keeping the size if it is
+   * known.
+   */
+  private void detach(Node<E> node) {
+    if (node == root) {
+      root = null;
+      size = 0;
+      sizeKnown = true;
+    } else {
+      Node<E> parent = node.getParent();
+      if (node == parent.getLeft())
+        parent.setLeft(null);
+      else
+        parent.setRight(null);
+      invalidate(parent);
+      if (node.stale)
+        sizeKnown = false;
+      else
+        size -= node.size;
+    }
+    node.setParent(null);
+  }
+
+  /**
+   * Returns a new tree whose root is the (detached) node. The node's subtree
+   * is handed over to it when this tree or the new one next settles.
+   */
+  private LinkedBinaryTree<E> adopt(Node<E> node) {
+    LinkedBinaryTree<E> result = new LinkedBinaryTree<E>();
+    result.root = node;
+    result.size = node.size;
+    result.sizeKnown = !node.stale;
+    node.owner = result.owner;
+    cut = node;
+    unsettled = true;
+    result.source = this;
+    result.unsettled = true;
+    return result;
+  }
+
+  /**
+   * Returns a deep copy of the tree. The elements
+   * themselves are not copied.
+   * @return a new tree with the same structure and elements
+   */
+  public LinkedBinaryTree<E> copy() {
+    LinkedBinaryTree<E> result = new LinkedBinaryTree<E>();
+    if (root != null) result.copyFrom(root);
+    return result;
+  }
+
+  /**
+   * Returns a deep copy of the subtree rooted at Position p, as a tree of its
+   * own. This tree is unchanged.
+   *
+   * @param p   a valid Position within the tree
+   * @return a new tree with the structure and elements of p's subtree
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public LinkedBinaryTree<E> copySubtree(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    LinkedBinaryTree<E> result = new LinkedBinaryTree<E>();
+    result.copyFrom(node);
+    return result;
+  }
+
+  /**
+   * Makes this (empty) tree a copy of the subtree at top, in one preorder
+   * pass. The walk follows the source's parent links and the copy is built
+   * in step with it, so no stack is needed however deep the subtree is. The
+   * source's sizes and heights are brought up to date first so that they can
+   * be copied too, leaving nothing stale in the copy.
+   */
+  private void copyFrom(Node<E> top) {
+    refresh(top);
+    Node<E> from = top;
+    Node<E> to = duplicate(top, null);
+    root = to;
+    size = top.size;
+    while (true) {
+      if (from.left != null) {
+        from = from.left;
+        to.left = duplicate(from, to);
+        to = to.left;
+      } else if (from.right != null) {
+        from = from.right;
+        to.right = duplicate(from, to);
+        to = to.right;
+      } else {
+        // climb until we come up from a left child that has a right sibling
+        while (from != top && (from.parent.left != from || from.parent.right == null)) {
+          from = from.parent;
+          to = to.parent;
+        }
+        if (from == top) return;
+        from = from.parent.right;
+        to = to.parent;
+        to.right = duplicate(from, to);
+        to = to.right;
+      }
+    }
+  }
+
+  /** Creates a childless copy of node under parent, with its (fresh) size and height. */
+  private Node<E> duplicate(Node<E> node, Node<E> parent) {
+    Node<E> copy = newNode(node.element, parent);
+    copy.size = node.size;
+    copy.height = node.height;
+    return copy;
+  }
+
+  //---------------- nested NodeCursor class ----------------
+  /** A TreeCursor that moves over the nodes of this tree directly. */
+  protected class NodeCursor implements TreeCursor<E> {
+    private Node<E> at;                 // the current node
+
+    /**
+     * Constructs a cursor on the given node.
+     *
+     * @param node  a (validated) node of this tree
+     */
+    protected NodeCursor(Node<E> node) { at = node; }
+
+    /** Returns the node the cursor is on. */
+    protected Node<E> node() { return at; }
+
+    public E element() { return at.element; }
+    public Position<E> position() { return at; }
+    public boolean hasLeft() { return at.left != null; }
+    public boolean hasRight() { return at.right != null; }
+    public boolean hasParent() { return at.parent != null; }
+    public boolean isLeftChild() { return at.parent != null && at.parent.left == at; }
+    public int numChildren() { return (at.left != null ? 1 : 0) + (at.right != null ? 1 : 0); }
+    public boolean toLeft() { return moveTo(at.left); }
+    public boolean toRight() { return moveTo(at.right); }
+    public boolean toParent() { return moveTo(at.parent); }
+
+    public boolean toSibling() {
+      Node<E> parent = at.parent;
+      if (parent == null) return false;
+      return moveTo(parent.left == at ? parent.right : parent.left);
+    }
+
+    private boolean moveTo(Node<E> node) {
+      if (node == null) return false;
+      at = node;
+      return true;
+    }
+  } //----------- end of nested NodeCursor class -----------
+
+  /**
+   * Returns a cursor on Position p, which moves over the tree without
+   * validating a Position at every step.
+   *
+   * @param p   A valid Position within the tree
+   * @return a cursor on p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public TreeCursor<E> cursor(Position<E> p) throws IllegalArgumentException {
+    return new NodeCursor(validate(p));
+  }
+
+  //---------- support for iterations of the tree ----------
+  // The traversals below find each next node from the current one using the
+  // parent and child links (breadth-first keeps a queue that is reused for
+  // the whole traversal), so they allocate nothing per node. The tree must
+  // not be changed while one of them is in progress.
+
+  private static final int PREORDER = 0;
+  private static final int INORDER = 1;
+  private static final int POSTORDER = 2;
+
+  //---------------- nested DepthFirstIterator class ----------------
+  /** Walks the tree in preorder, inorder or postorder without a stack. */
+  private class DepthFirstIterator implements Iterator<Position<E>> {
+    private final int order;
+    private Node<E> cursor;                     // next node to report
+
+    DepthFirstIterator(int order) {
+      this.order = order;
+      if (root == null)
+        cursor = null;
+      else if (order == PREORDER)
+        cursor = root;
+      else if (order == INORDER)
+        cursor = leftmost(root);
+      else
+        cursor = firstLeaf(root);
+    }
+
+    public boolean hasNext() { return cursor != null; }
+
+    public Position<E> next() throws NoSuchElementException {
+      if (cursor == null) throw new NoSuchElementException("nothing left");
+      Node<E> recent = cursor;
+      if (order == PREORDER)
+        cursor = afterPreorder(recent, root);
+      else if (order == INORDER)
+        cursor = afterInorder(recent);
+      else
+        cursor = afterPostorder(recent);
+      return recent;
+    }
+  } //------------ end of nested DepthFirstIterator class ------------
+
+  /** Returns the first node of the subtree at node in inorder. */
+  private Node<E> leftmost(Node<E> node) {
+    while (node.left != null)
+      node = node.left;
+    return node;
+  }
+
+  /** Returns the first node of the subtree at node in postorder. */
+  private Node<E> firstLeaf(Node<E> node) {
+    while (true) {
+      if (node.left != null)
+        node = node.left;
+      else if (node.right != null)
+        node = node.right;
+      else
+        return node;
+    }
+  }
+
+  /** Returns the node after node in a preorder walk of the subtree at top (or null). */
+  private Node<E> afterPreorder(Node<E> node, Node<E> top) {
+    if (node.left != null) return node.left;
+    if (node.right != null) return node.right;
+    // climb until we come up from a left child that has a right sibling
+    while (node != top) {
+      Node<E> parent = node.parent;
+      if (parent.left == node && parent.right != null)
+        return parent.right;
+      node = parent;
+    }
+    return null;
+  }
+
+  /** Returns the node after node in inorder (or null). */
+  private Node<E> afterInorder(Node<E> node) {
+    if (node.right != null) return leftmost(node.right);
+    // climb until we come up from a left child
+    Node<E> parent = node.parent;
+    while (parent != null && parent.right == node) {
+      node = parent;
+      parent = node.parent;
+    }
+    return parent;
+  }
+
+  /** Returns the node after node in postorder (or null). */
+  private Node<E> afterPostorder(Node<E> node) {
+    Node<E> parent = node.parent;
+    if (parent != null && parent.left == node && parent.right != null)
+      return firstLeaf(parent.right);
+    return parent;
+  }
+
+  //---------------- nested BreadthFirstIterator class ----------------
+  /** Walks the tree level by level, using a circular array as the queue. */
+  private class BreadthFirstIterator implements Iterator<Position<E>> {
+    private Node<?>[] queue = new Node<?>[16];
+    private int head = 0;                       // index of the next node to report
+    private int count = 0;                      // number of nodes in the queue
+
+    BreadthFirstIterator() {
+      if (root != null) enqueue(root);
+    }
+
+    private void enqueue(Node<E> node) {
+      if (count == queue.length) {              // unroll into a larger array
+        Node<?>[] larger = Arrays.copyOfRange(queue, head, head + 2 * queue.length);
+        System.arraycopy(queue, 0, larger, queue.length - head, head);
+        queue = larger;
+        head = 0;
+      }
+      queue[(head + count) & (queue.length - 1)] = node;
+      count++;
+    }
+
+    public boolean hasNext() { return count > 0; }
+
+    @SuppressWarnings("unchecked")
+    public Position<E> next() throws NoSuchElementException {
+      if (count == 0) throw new NoSuchElementException("nothing left");
+      Node<E> node = (Node<E>) queue[head];
+      queue[head] = null;
+      head = (head + 1) & (queue.length - 1);
+      count--;
+      if (node.left != null) enqueue(node.left);
+      if (node.right != null) enqueue(node.right);
+      return node;
+    }
+  } //------------ end of nested BreadthFirstIterator class ------------
+
+  //---------------- nested Traversal class ----------------
+  private class Traversal implements Iterable<Position<E>> {
+    private final int order;                    // -1 for breadth-first
+    Traversal(int order) { this.order = order; }
+    public Iterator<Position<E>> iterator() {
+      return order < 0 ? new BreadthFirstIterator() : new DepthFirstIterator(order);
+    }
+  } //------------ end of nested Traversal class ------------
+
+  //---------------- nested ElementIterator class ----------------
+  /* This class adapts the iteration produced by positions() to return elements. */
+  private class ElementIterator implements Iterator<E> {
+    Iterator<Position<E>> posIterator = new DepthFirstIterator(PREORDER);
+    public boolean hasNext() { return posIterator.hasNext(); }
+    public E next() { return posIterator.next().getElement(); } // return element!
+  } //----------- end of nested ElementIterator class -----------
+
+  /**
+   * Returns an iterable collection of positions of the tree, reported in preorder.
+   * @return iterable collection of the tree's positions in preorder
+   */
+  public Iterable<Position<E>> preorder() { return new Traversal(PREORDER); }
+
+  /**
+   * Returns an iterable collection of positions of the tree, reported in inorder.
+   * @return iterable collection of the tree's positions in inorder
+   */
+  public Iterable<Position<E>> inorder() { return new Traversal(INORDER); }
+
+  /**
+   * Returns an iterable collection of positions of the tree, reported in postorder.
+   * @return iterable collection of the tree's positions in postorder
+   */
+  public Iterable<Position<E>> postorder() { return new Traversal(POSTORDER); }
+
+  /**
+   * Returns an iterable collection of positions of the tree in breadth-first order.
+   * @return iterable collection of the tree's positions in breadth-first order
+   */
+  public Iterable<Position<E>> breadthfirst() { return new Traversal(-1); }
+
+  /**
+   * Returns an iterable collection of the positions of the tree, in preorder
+   * (the order of the tokens of a prefix expression).
+   * @return iterable collection of the tree's positions
+   */
+  @Override
+  public Iterable<Position<E>> positions() { return preorder(); }
+
+  /**
+   * Returns an iterator of the elements stored in the tree, in preorder.
+   * @return iterator of the tree's elements
+   */
+  @Override
+  public Iterator<E> iterator() { return new ElementIterator(); }
+  //---------------- nested PositionSpliterator class ----------------
+  /**
+   * Reports positions in preorder, and splits at subtree boundaries. It
+   * covers a run of items, each either a whole subtree or a single node;
+   * splitting a lone subtree turns it into its root, its left subtree and its
+   * right subtree. The cached subtree sizes give exact sizes for every part,
+   * and as they are brought up to date before the first split, parts of the
+   * tree can be walked from different threads.
+   */
+  private class PositionSpliterator implements Spliterator<Position<E>> {
+    private Node<?>[] items;
+    private boolean[] whole;            // whether each item is a whole subtree
+    private int lo, hi;                 // items still to walk are [lo, hi)
+    private Node<E> cursor = null;      // next node of the subtree being walked
+    private Node<E> top = null;         // root of the subtree being walked
+    private long remaining;             // nodes not yet reported
+
+    PositionSpliterator(Node<?>[] items, boolean[] whole, int lo, int hi) {
+      this.items = items;
+      this.whole = whole;
+      this.lo = lo;
+      this.hi = hi;
+      for (int i = lo; i < hi; i++)
+        remaining += whole[i] ? items[i].size : 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<E> item(int i) { return (Node<E>) items[i]; }
+
+    public boolean tryAdvance(Consumer<? super Position<E>> action) {
+      Node<E> node = nextNode();
+      if (node == null) return false;
+      action.accept(node);
+      return true;
+    }
+
+    /** Returns the next node to report (or null if there are none left). */
+    Node<E> nextNode() {
+      if (cursor == null) {
+        if (lo == hi) return null;
+        if (whole[lo]) {
+          top = item(lo++);
+          cursor = top;
+        } else {
+          remaining--;
+          return item(lo++);
+        }
+      }
+      Node<E> node = cursor;
+      cursor = afterPreorder(node, top);
+      remaining--;
+      return node;
+    }
+
+    public PositionSpliterator trySplit() {
+      if (cursor != null) return null;  // part way through a subtree
+      if (hi - lo == 1 && whole[lo]) {
+        // split the lone subtree into its root and its children's subtrees
+        Node<E> node = item(lo);
+        if (node.left == null && node.right == null) return null;
+        items = new Node<?>[3];
+        whole = new boolean[] { false, true, true };
+        items[0] = node;
+        lo = 0;
+        hi = 1;
+        if (node.left != null) items[hi++] = node.left;
+        if (node.right != null) items[hi++] = node.right;
+      }
+      if (hi - lo < 2) return null;
+      // give away the shortest run of items holding at least half the nodes
+      long half = 0;
+      int mid = lo;
+      while (mid < hi - 1 && 2 * half < remaining) {
+        half += whole[mid] ? items[mid].size : 1;
+        mid++;
+      }
+      PositionSpliterator prefix = new PositionSpliterator(items, whole, lo, mid);
+      remaining -= prefix.remaining;
+      lo = mid;
+      return prefix;
+    }
+
+    public long estimateSize() { return remaining; }
+
+    public int characteristics() {
+      return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+    }
+  } //------------ end of nested PositionSpliterator class ------------
+
+  /**
+   * Returns a Spliterator over the positions of the tree, in preorder. It
+   * splits at subtree boundaries, and knows the exact size of every part.
+   * The tree must not be changed while it is in use.
+   * @return a Spliterator over the tree's positions
+   */
+  public Spliterator<Position<E>> positionSpliterator() { return nodeSpliterator(); }
+
+  private PositionSpliterator nodeSpliterator() {
+    if (root == null)
+      return new PositionSpliterator(new Node<?>[0], new boolean[0], 0, 0);
+    refresh(root);                      // so parts never need to write to the tree
+    return new PositionSpliterator(new Node<?>[] { root }, new boolean[] { true }, 0, 1);
+  }
+
+  /**
+   * Returns a sequential Stream of the positions of the tree, in preorder.
+   * @return a Stream of the tree's positions
+   */
+  public Stream<Position<E>> stream() {
+    return StreamSupport.stream(positionSpliterator(), false);
+  }
+
+  /**
+   * Returns a parallel Stream of the positions of the tree, in preorder.
+   * @return a parallel Stream of the tree's positions
+   */
+  public Stream<Position<E>> parallelStream() {
+    return StreamSupport.stream(positionSpliterator(), true);
+  }
+
+  //---------------- nested ElementSpliterator class ----------------
+  /* This class reports the elements of the nodes walked by a PositionSpliterator. */
+  private class ElementSpliterator implements Spliterator<E> {
+    private final PositionSpliterator positions;
+    ElementSpliterator(PositionSpliterator positions) { this.positions = positions; }
+    public boolean tryAdvance(Consumer<? super E> action) {
+      Node<E> node = positions.nextNode();
+      if (node == null) return false;
+      action.accept(node.getElement());
+      return true;
+    }
+    public Spliterator<E> trySplit() {
+      PositionSpliterator prefix = positions.trySplit();
+      return prefix == null ? null : new ElementSpliterator(prefix);
+    }
+    public long estimateSize() { return positions.estimateSize(); }
+    public int characteristics() { return ORDERED | SIZED | SUBSIZED; }
+  } //----------- end of nested ElementSpliterator class -----------
+
+  /**
+   * Returns a Spliterator over the elements of the tree, in preorder.
+   * @return a Spliterator over the tree's elements
+   */
+  @Override
+  public Spliterator<E> spliterator() { return new ElementSpliterator(nodeSpliterator()); }
 } //----------- end of LinkedBinaryTree class -----------
@@ -0,0 +1,85 @@
+package textbook;
+
+/**
+ * An interface for a binary tree that can be built and changed one position at
+ * a time. It captures the update methods of LinkedBinaryTree, so that code
+ * which edits trees can work with any implementation.
+ */
+public interface MutableBinaryTree<E> extends BinaryTree<E> {
+
+  /**
+   * Places element e at the root of an empty tree and returns its new Position.
+   *
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalStateException if the tree is not empty
+   */
+  Position<E> addRoot(E e) throws IllegalStateException;
+
+  /**
+   * Creates a new left child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position to the left of which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a left child
+   */
+  Position<E> addLeft(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Creates a new right child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position to the right of which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   * @throws IllegalArgumentException if p already has a right child
+   */
+  Position<E> addRight(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Replaces the element at Position p with element e and returns the replaced element.
+   *
+   * @param p   the relevant Position
+   * @param e   the new element
+   * @return the replaced element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  E set(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Removes the node at Position p and replaces it with its child, if any.
+   *
+   * @param p   the relevant Position
+   * @return element that was removed
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   * @throws IllegalArgumentException if p has two children.
+   */
+  E remove(Position<E> p) throws IllegalArgumentException;
+
+  /**
+   * Removes the whole subtree rooted at Position p. By default the nodes are
+   * removed one at a time, leaves first, in time proportional to the size of
+   * the subtree; implementations may do better.
+   *
+   * @param p   the root of the subtree to remove
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  default void removeSubtree(Position<E> p) throws IllegalArgumentException {
+    Position<E> walk = p;
+    while (true) {
+      Position<E> child = left(walk) != null ? left(walk) : right(walk);
+      if (child != null) {
+        walk = child;                     // go down to a leaf
+      } else if (walk.equals(p)) {
+        remove(walk);
+        return;
+      } else {
+        Position<E> above = parent(walk);
+        remove(walk);
+        walk = above;
+      }
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package textbook;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * An immutable binary tree. Instead of changing the tree, updates return a new
+ * version of it that shares every node not on the path from the change up to
+ * the root, so an update costs O(depth) time and memory, and any number of
+ * versions of a large tree can be kept at little cost.
+ *
+ * Nodes don't refer to their parents (a node can belong to many versions), so
+ * a Position is a small handle that remembers the path it was reached by. As
+ * for ArrayBinaryTree, positions for the same place in the tree are equal()
+ * but not necessarily ==. A position is only valid for the version it came
+ * from. A subtree may also be shared within one version (for example by
+ * of(e, t, t)); its nodes then have a position for each place they appear.
+ *
+ * Each node also records the size and height of its subtree, so size() and
+ * height(p) take O(1) time.
+ */
+public class PersistentBinaryTree<E> extends AbstractBinaryTree<E> {
+
+  //---------------- nested Node class ----------------
+  /** An immutable node, which may be shared by many versions of a tree. */
+  private static final class Node<E> {
+    private final E element;
+    private final Node<E> left;
+    private final Node<E> right;
+    private final int size;             // number of nodes in this subtree
+    private final int height;           // height of this subtree
+
+    Node(E e, Node<E> leftChild, Node<E> rightChild) {
+      element = e;
+      left = leftChild;
+      right = rightChild;
+      size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+      height = Math.max(left == null ? 0 : 1 + left.height, right == null ? 0 : 1 + right.height);
+    }
+  } //----------- end of nested Node class -----------
+
+  //---------------- nested Handle class ----------------
+  /**
+   * A node of a given version, reached from the handle of its parent (if any)
+   * by going left or right. As a node may appear more than once in a version,
+   * the path, not just the node, identifies a position.
+   */
+  private static final class Handle<E> implements Position<E> {
+    private final PersistentBinaryTree<E> tree;
+    private final Node<E> node;
+    private final Handle<E> parent;
+    private final boolean isLeft;       // whether node is the left child of parent
+
+    Handle(PersistentBinaryTree<E> tree, Node<E> node, Handle<E> parent, boolean isLeft) {
+      this.tree = tree;
+      this.node = node;
+      this.parent = parent;
+      this.isLeft = isLeft;
+    }
+
+    public E getElement() { return node.element; }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Handle)) return false;
+      Handle<?> a = this;
+      Handle<?> b = (Handle<?>) o;
+      if (a.tree != b.tree) return false;
+      while (a != b) {
+        if (a == null || b == null || a.node != b.node || a.isLeft != b.isLeft) return false;
+        a = a.parent;
+        b = b.parent;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() { return System.identityHashCode(node); }
+  } //----------- end of nested Handle class -----------
+
+  private static final PersistentBinaryTree<?> EMPTY = new PersistentBinaryTree<Object>(null);
+
+  /** The root of this version (null if it is empty). */
+  private final Node<E> root;
+
+  private PersistentBinaryTree(Node<E> root) { this.root = root; }
+
+  // factory methods
+  /**
+   * Returns the empty tree.
+   * @param <E>  the type of the tree's elements
+   * @return an empty tree
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentBinaryTree<E> empty() { return (PersistentBinaryTree<E>) EMPTY; }
+
+  /**
+   * Returns a tree with a single node.
+   * @param e    the element of the node
+   * @param <E>  the type of the tree's elements
+   * @return a tree storing just e
+   */
+  public static <E> PersistentBinaryTree<E> leaf(E e) {
+    return new PersistentBinaryTree<E>(new Node<E>(e, null, null));
+  }
+
+  /**
+   * Returns a tree with element e at the root, and the given trees as its
+   * subtrees. The nodes of left and right are shared, not copied.
+   *
+   * @param e      the element of the root
+   * @param left   the left subtree (may be empty)
+   * @param right  the right subtree (may be empty)
+   * @param <E>    the type of the tree's elements
+   * @return the combined tree
+   */
+  public static <E> PersistentBinaryTree<E> of(E e, PersistentBinaryTree<E> left,
+                                                PersistentBinaryTree<E> right) {
+    return new PersistentBinaryTree<E>(new Node<E>(e, left.root, right.root));
+  }
+
+  /**
+   * Returns a persistent copy of any binary tree. This runs in O(n) time and
+   * is not limited by the thread stack.
+   *
+   * @param tree  the tree to copy
+   * @param <E>   the type of the tree's elements
+   * @return a persistent tree with the same structure and elements
+   */
+  public static <E> PersistentBinaryTree<E> copyOf(BinaryTree<E> tree) {
+    if (tree instanceof PersistentBinaryTree) return (PersistentBinaryTree<E>) tree;
+    if (tree.isEmpty()) return empty();
+    // post-order with an explicit stack, as nodes can only be built after their children
+    Deque<Position<E>> todo = new ArrayDeque<>();
+    Deque<Node<E>> built = new ArrayDeque<>();
+    Position<E> last = null;
+    todo.push(tree.root());
+    while (!todo.isEmpty()) {
+      Position<E> p = todo.peek();
+      Position<E> left = tree.left(p);
+      Position<E> right = tree.right(p);
+      boolean leftDone = left == null || left.equals(last);
+      boolean rightDone = right == null || right.equals(last);
+      if (right != null && !rightDone && leftDone) {
+        todo.push(right);                 // left subtree (if any) is built
+        continue;
+      }
+      if (left != null && !leftDone && !rightDone) {
+        todo.push(left);
+        continue;
+      }
+      todo.pop();
+      Node<E> r = right == null ? null : built.pop();
+      Node<E> l = left == null ? null : built.pop();
+      built.push(new Node<E>(p.getElement(), l, r));
+      last = p;
+    }
+    return new PersistentBinaryTree<E>(built.pop());
+  }
+
+  // nonpublic utilities
+  /**
+   * Verifies that a Position is a handle on a node of this version.
+   *
+   * @param p   a Position (that should belong to this tree)
+   * @return    the handle for the position
+   * @throws IllegalArgumentException if an invalid position is detected
+   */
+  private Handle<E> validate(Position<E> p) throws IllegalArgumentException {
+    if (!(p instanceof Handle))
+      throw new IllegalArgumentException("Not valid position type");
+    Handle<E> handle = (Handle<E>) p;   // safe cast
+    if (handle.tree != this)
+      throw new IllegalArgumentException("p does not belong to this version of the tree");
+    return handle;
+  }
+
+  private Position<E> child(Handle<E> parent, Node<E> node, boolean isLeft) {
+    return node == null ? null : new Handle<E>(this, node, parent, isLeft);
+  }
+
+  // accessor methods
+  /**
+   * Returns the number of nodes in the tree.
+   * @return number of nodes in the tree
+   */
+  @Override
+  public int size() { return root == null ? 0 : root.size; }
+
+  /**
+   * Returns the root Position of the tree (or null if tree is empty).
+   * @return root Position of the tree (or null if tree is empty)
+   */
+  @Override
+  public Position<E> root() { return child(null, root, false); }
+
+  /**
+   * Returns the Position of p's parent (or null if p is root).
+   *
+   * @param p    A valid Position within the tree
+   * @return Position of p's parent (or null if p is root)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public Position<E> parent(Position<E> p) throws IllegalArgumentException {
+    return validate(p).parent;
+  }
+
+  /**
+   * Returns the Position of p's left child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the left child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> left(Position<E> p) throws IllegalArgumentException {
+    Handle<E> handle = validate(p);
+    return child(handle, handle.node.left, true);
+  }
+
+  /**
+   * Returns the Position of p's right child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the right child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> right(Position<E> p) throws IllegalArgumentException {
+    Handle<E> handle = validate(p);
+    return child(handle, handle.node.right, false);
+  }
+
+  /**
+   * Returns the Position of p's sibling (or null if no sibling exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the sibling (or null if no sibling exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> sibling(Position<E> p) throws IllegalArgumentException {
+    Handle<E> handle = validate(p);
+    if (handle.parent == null) return null;
+    Node<E> above = handle.parent.node;
+    return handle.isLeft ? child(handle.parent, above.right, false) : child(handle.parent, above.left, true);
+  }
+
+  /**
+   * Returns the number of children of Position p.
+   *
+   * @param p    A valid Position within the tree
+   * @return number of children of Position p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int numChildren(Position<E> p) throws IllegalArgumentException {
+    Node<E> node = validate(p).node;
+    return (node.left != null ? 1 : 0) + (node.right != null ? 1 : 0);
+  }
+
+  /**
+   * Returns true if Position p represents the root of the tree.
+   *
+   * @param p    A valid Position within the tree
+   * @return true if p is the root of the tree, false otherwise
+   */
+  @Override
+  public boolean isRoot(Position<E> p) { return validate(p).parent == null; }
+
+  /**
+   * Returns an iterable collection of the positions of the tree, in preorder
+   * (the order of the tokens of a prefix expression).
+   * @return iterable collection of the tree's positions
+   */
+  @Override
+  public Iterable<Position<E>> positions() { return TreeWalk.preorder(this); }
+
+  /**
+   * Returns an iterator of the elements stored in the tree, in preorder.
+   * @return iterator of the tree's elements
+   */
+  @Override
+  public Iterator<E> iterator() { return TreeWalk.elements(this); }
+
+  /**
+   * Returns the height of the subtree rooted at Position p.
+   *
+   * @param p    A valid Position within the tree
+   * @return height of the subtree rooted at p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int height(Position<E> p) throws IllegalArgumentException {
+    return validate(p).node.height;
+  }
+
+  /**
+   * Returns the subtree rooted at Position p as a tree of its own, in O(1) time.
+   *
+   * @param p    A valid Position within the tree
+   * @return the subtree rooted at p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public PersistentBinaryTree<E> subtree(Position<E> p) throws IllegalArgumentException {
+    return new PersistentBinaryTree<E>(validate(p).node);
+  }
+
+  /**
+   * Returns the left subtree of the root (empty if there is none).
+   * @return the root's left subtree
+   */
+  public PersistentBinaryTree<E> leftSubtree() {
+    return root == null || root.left == null ? PersistentBinaryTree.<E>empty() : new PersistentBinaryTree<E>(root.left);
+  }
+
+  /**
+   * Returns the right subtree of the root (empty if there is none).
+   * @return the root's right subtree
+   */
+  public PersistentBinaryTree<E> rightSubtree() {
+    return root == null || root.right == null ? PersistentBinaryTree.<E>empty() : new PersistentBinaryTree<E>(root.right);
+  }
+
+  // update methods, which return a new version and leave this one unchanged
+  /**
+   * Returns a version of this tree with the element at Position p replaced by e.
+   *
+   * @param p   the relevant Position
+   * @param e   the new element
+   * @return the new version
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public PersistentBinaryTree<E> withElement(Position<E> p, E e) throws IllegalArgumentException {
+    Handle<E> handle = validate(p);
+    return rebuild(handle, new Node<E>(e, handle.node.left, handle.node.right));
+  }
+
+  /**
+   * Returns a version of this tree with the subtree rooted at Position p
+   * replaced by another tree (which may be empty, to remove the subtree).
+   *
+   * @param p         the relevant Position
+   * @param subtree   the tree to put in its place
+   * @return the new version
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public PersistentBinaryTree<E> withSubtree(Position<E> p, PersistentBinaryTree<E> subtree)
+                                             throws IllegalArgumentException {
+    return rebuild(validate(p), subtree.root);
+  }
+
+  /**
+   * Returns a tree with the same root element as this one and the given
+   * subtrees. If they are this tree's own subtrees, this tree itself is
+   * returned, so rewriting a tree bottom-up only creates nodes for the
+   * parts that actually change.
+   *
+   * @param left    the new left subtree (may be empty)
+   * @param right   the new right subtree (may be empty)
+   * @return a tree with this root element and the given subtrees
+   * @throws IllegalStateException if this tree is empty
+   */
+  public PersistentBinaryTree<E> withSubtrees(PersistentBinaryTree<E> left, PersistentBinaryTree<E> right)
+                                              throws IllegalStateException {
+    if (root == null) throw new IllegalStateException("Tree is empty");
+    if (left.root == root.left && right.root == root.right) return this;
+    return new PersistentBinaryTree<E>(new Node<E>(root.element, left.root, right.root));
+  }
+
+  /** Copies the path from the node at handle up to the root, ending in replacement. */
+  private PersistentBinaryTree<E> rebuild(Handle<E> handle, Node<E> replacement) {
+    while (handle.parent != null) {
+      Node<E> above = handle.parent.node;
+      if (handle.isLeft)
+        replacement = new Node<E>(above.element, replacement, above.right);
+      else
+        replacement = new Node<E>(above.element, above.left, replacement);
+      handle = handle.parent;
+    }
+    return new PersistentBinaryTree<E>(replacement);
+  }
+}
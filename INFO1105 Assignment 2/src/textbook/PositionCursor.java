@@ -0,0 +1,38 @@
+package textbook;
+
+/**
+ * A TreeCursor for any binary tree, which moves by calling the tree's
+ * left, right and parent methods.
+ */
+class PositionCursor<E> implements TreeCursor<E> {
+  private final BinaryTree<E> tree;
+  private Position<E> at;               // the current position
+
+  PositionCursor(BinaryTree<E> tree, Position<E> p) {
+    tree.parent(p);                     // validates p
+    this.tree = tree;
+    this.at = p;
+  }
+
+  public E element() { return at.getElement(); }
+  public Position<E> position() { return at; }
+  public boolean hasLeft() { return tree.left(at) != null; }
+  public boolean hasRight() { return tree.right(at) != null; }
+  public boolean hasParent() { return tree.parent(at) != null; }
+
+  public boolean isLeftChild() {
+    Position<E> parent = tree.parent(at);
+    return parent != null && at.equals(tree.left(parent));
+  }
+
+  public boolean toLeft() { return moveTo(tree.left(at)); }
+  public boolean toRight() { return moveTo(tree.right(at)); }
+  public boolean toParent() { return moveTo(tree.parent(at)); }
+  public boolean toSibling() { return moveTo(tree.sibling(at)); }
+
+  private boolean moveTo(Position<E> p) {
+    if (p == null) return false;
+    at = p;
+    return true;
+  }
+}
@@ -0,0 +1,116 @@
+package textbook;
+
+/**
+ * A cursor sits on one node of a binary tree and moves to its neighbours.
+ * The position it starts from is validated once, when the cursor is created;
+ * after that each move follows the tree's own links directly, rather than
+ * validating a Position on every call as left(p), right(p) and parent(p) do.
+ *
+ * Cursors are meant for algorithms that read a tree. The tree must not be
+ * changed while a cursor is in use, except through Positions obtained from
+ * the cursor itself for nodes that are not removed.
+ *
+ * Each move returns true and moves the cursor if the neighbour exists, and
+ * returns false leaving the cursor where it was if it does not.
+ */
+public interface TreeCursor<E> {
+
+  /**
+   * Returns the element stored at the current node.
+   * @return the current node's element
+   */
+  E element();
+
+  /**
+   * Returns a Position for the current node.
+   * @return the current node's Position
+   */
+  Position<E> position();
+
+  /**
+   * Tests whether the current node has a left child.
+   * @return true if there is a left child
+   */
+  boolean hasLeft();
+
+  /**
+   * Tests whether the current node has a right child.
+   * @return true if there is a right child
+   */
+  boolean hasRight();
+
+  /**
+   * Tests whether the current node has a parent.
+   * @return true unless the current node is the root
+   */
+  boolean hasParent();
+
+  /**
+   * Tests whether the current node is the left child of its parent.
+   * @return true if the current node is a left child, false if it is a right
+   *         child or the root
+   */
+  boolean isLeftChild();
+
+  /**
+   * Returns the number of children of the current node.
+   * @return number of children (0, 1 or 2)
+   */
+  default int numChildren() { return (hasLeft() ? 1 : 0) + (hasRight() ? 1 : 0); }
+
+  /**
+   * Moves to the left child of the current node.
+   * @return true if the cursor moved
+   */
+  boolean toLeft();
+
+  /**
+   * Moves to the right child of the current node.
+   * @return true if the cursor moved
+   */
+  boolean toRight();
+
+  /**
+   * Moves to the parent of the current node.
+   * @return true if the cursor moved
+   */
+  boolean toParent();
+
+  /**
+   * Moves to the sibling of the current node.
+   * @return true if the cursor moved
+   */
+  boolean toSibling();
+
+  /**
+   * Returns a cursor on the root of a tree. LinkedBinaryTree and
+   * ArrayBinaryTree give cursors over their own nodes; any other tree gets a
+   * cursor that goes through its BinaryTree methods.
+   *
+   * @param tree  a nonempty tree
+   * @param <E>   the type of the tree's elements
+   * @return a cursor on the root of the tree
+   * @throws IllegalArgumentException if the tree is empty
+   */
+  static <E> TreeCursor<E> of(BinaryTree<E> tree) throws IllegalArgumentException {
+    if (tree.isEmpty()) throw new IllegalArgumentException("Tree is empty");
+    return of(tree, tree.root());
+  }
+
+  /**
+   * Returns a cursor on a given position of a tree.
+   *
+   * @param tree  a tree
+   * @param p     a valid Position within the tree
+   * @param <E>   the type of the tree's elements
+   * @return a cursor on p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  static <E> TreeCursor<E> of(BinaryTree<E> tree, Position<E> p) throws IllegalArgumentException {
+    if (tree instanceof LinkedBinaryTree)
+      return ((LinkedBinaryTree<E>) tree).cursor(p);
+    if (tree instanceof ArrayBinaryTree)
+      return ((ArrayBinaryTree<E>) tree).cursor(p);
+    return new PositionCursor<E>(tree, p);
+  }
+}
@@ -0,0 +1,244 @@
+package textbook;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a subtree of a binary tree in preorder, inorder and postorder at
+ * once, using only a TreeCursor and its parent links. Each node is visited
+ * three times: PRE before its left subtree, IN between its subtrees and POST
+ * after its right subtree (a leaf gets all three in a row). The walk keeps
+ * nothing but the cursor, the kind of the current visit and its depth below
+ * the starting node, so it uses the same small amount of memory however deep
+ * the tree is, and never recurses.
+ *
+ * The tree may be changed during a POST visit, within the subtree of the
+ * current node, as long as the cursor is left on whichever node then stands
+ * in the current node's place. For example, to replace the current node by
+ * its only child, move the cursor to that child and then remove the node.
+ * If the starting node itself is replaced this way, the walk ends there.
+ *
+ * nextPre() and nextPost() skip straight to the next visit of one kind, for
+ * walks that only need preorder or postorder. Typical use:
+ *
+ *   TreeWalk<E> walk = TreeWalk.of(tree);
+ *   while (walk.nextPre())
+ *     process(walk.cursor().element());
+ */
+public class TreeWalk<E> {
+
+  /** The three times a node is visited. */
+  public enum Visit { PRE, IN, POST }
+
+  private final TreeCursor<E> cursor;
+  private Visit visit = null;           // null before the first step
+  private int depth = 0;                // depth of the cursor below the start
+  private boolean done = false;
+
+  /**
+   * Constructs a walk of the subtree at the cursor's current node. The first
+   * call to next() gives the PRE visit of that node.
+   * @param cursor  a cursor on the root of the subtree to walk
+   */
+  public TreeWalk(TreeCursor<E> cursor) { this.cursor = cursor; }
+
+  /**
+   * Returns a walk of a whole tree.
+   * @param tree  a nonempty tree
+   * @param <E>   the type of the tree's elements
+   * @return a walk starting at the root
+   * @throws IllegalArgumentException if the tree is empty
+   */
+  public static <E> TreeWalk<E> of(BinaryTree<E> tree) throws IllegalArgumentException {
+    return new TreeWalk<E>(TreeCursor.of(tree));
+  }
+
+  /**
+   * Moves on to the next visit.
+   * @return true if there was one, false once the POST visit of the starting
+   *         node has been passed (the cursor is then back on that node)
+   */
+  public boolean next() {
+    if (done) return false;
+    if (visit == null) {
+      visit = Visit.PRE;
+      return true;
+    }
+    switch (visit) {
+      case PRE:
+        if (cursor.toLeft()) {
+          depth++;
+        } else {
+          visit = Visit.IN;
+        }
+        return true;
+      case IN:
+        if (cursor.toRight()) {
+          depth++;
+          visit = Visit.PRE;
+        } else {
+          visit = Visit.POST;
+        }
+        return true;
+      default:
+        if (depth == 0) {
+          done = true;
+          return false;
+        }
+        visit = cursor.isLeftChild() ? Visit.IN : Visit.POST;
+        cursor.toParent();
+        depth--;
+        return true;
+    }
+  }
+
+  /**
+   * Moves on to the next PRE visit, skipping any IN and POST visits before it.
+   * @return true if there was one, false once the walk is over
+   */
+  public boolean nextPre() {
+    if (done) return false;
+    if (visit == null) {
+      visit = Visit.PRE;
+      return true;
+    }
+    if (visit == Visit.PRE && cursor.toLeft()) {
+      depth++;
+      return true;
+    }
+    if (visit != Visit.POST && cursor.toRight()) {
+      depth++;
+      visit = Visit.PRE;
+      return true;
+    }
+    // climb until we come up from a left child that has a right sibling
+    while (depth > 0) {
+      boolean left = cursor.isLeftChild();
+      cursor.toParent();
+      depth--;
+      if (left && cursor.toRight()) {
+        depth++;
+        visit = Visit.PRE;
+        return true;
+      }
+    }
+    visit = Visit.POST;
+    done = true;
+    return false;
+  }
+
+  /**
+   * Moves on to the next POST visit, skipping any PRE and IN visits before it.
+   * @return true if there was one, false once the walk is over
+   */
+  public boolean nextPost() {
+    if (done) return false;
+    if (visit == Visit.IN) {
+      if (cursor.toRight()) {
+        depth++;
+        firstLeaf();
+      }
+    } else if (visit != Visit.POST) {
+      firstLeaf();                      // before the first step, or at a PRE visit
+    } else if (depth == 0) {
+      done = true;
+      return false;
+    } else {
+      boolean left = cursor.isLeftChild();
+      cursor.toParent();
+      depth--;
+      if (left && cursor.toRight()) {
+        depth++;
+        firstLeaf();
+      }
+    }
+    visit = Visit.POST;
+    return true;
+  }
+
+  /** Moves down from the current node to the first node of its subtree in postorder. */
+  private void firstLeaf() {
+    while (cursor.toLeft() || cursor.toRight())
+      depth++;
+  }
+
+  /**
+   * Returns the kind of the current visit.
+   * @return PRE, IN or POST (null before the first call to next())
+   */
+  public Visit visit() { return visit; }
+
+  /**
+   * Returns the cursor, which is on the node being visited.
+   * @return the walk's cursor
+   */
+  public TreeCursor<E> cursor() { return cursor; }
+
+  /**
+   * Returns the depth of the current node below the node the walk started at.
+   * @return 0 for the starting node, 1 for its children, and so on
+   */
+  public int depth() { return depth; }
+
+  //---------------- nested Preorder class ----------------
+  /** Iterates over a tree in preorder, reporting something for each node. */
+  private static abstract class Preorder<E, T> implements Iterator<T> {
+    private final TreeWalk<E> walk;     // null for an empty tree
+    private boolean ready;              // whether the walk is on the next node to report
+    private boolean more;               // whether there is such a node
+
+    Preorder(BinaryTree<E> tree) {
+      walk = tree.isEmpty() ? null : of(tree);
+      ready = (walk == null);
+    }
+
+    public boolean hasNext() {
+      if (!ready) {
+        more = walk.nextPre();
+        ready = true;
+      }
+      return more;
+    }
+
+    public T next() throws NoSuchElementException {
+      if (!hasNext()) throw new NoSuchElementException("nothing left");
+      ready = false;
+      return report(walk.cursor());
+    }
+
+    /** Returns what to report for the cursor's current node. */
+    abstract T report(TreeCursor<E> at);
+  } //----------- end of nested Preorder class -----------
+
+  /**
+   * Returns the positions of a tree in preorder, found by walking it with a
+   * cursor, for trees that have no faster way. The tree must not be changed
+   * while they are being iterated.
+   * @param tree  the tree (may be empty)
+   * @param <E>   the type of the tree's elements
+   * @return iterable collection of the tree's positions in preorder
+   */
+  public static <E> Iterable<Position<E>> preorder(final BinaryTree<E> tree) {
+    return new Iterable<Position<E>>() {
+      public Iterator<Position<E>> iterator() {
+        return new Preorder<E, Position<E>>(tree) {
+          Position<E> report(TreeCursor<E> at) { return at.position(); }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator of the elements of a tree in preorder, without
+   * making a Position for each node. The tree must not be changed while it
+   * is in use.
+   * @param tree  the tree (may be empty)
+   * @param <E>   the type of the tree's elements
+   * @return iterator of the tree's elements in preorder
+   */
+  public static <E> Iterator<E> elements(BinaryTree<E> tree) {
+    return new Preorder<E, E>(tree) {
+      E report(TreeCursor<E> at) { return at.element(); }
+    };
+  }
+}